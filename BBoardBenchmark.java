@@ -0,0 +1,762 @@
+import Server.BatchRequest;
+import Server.Board;
+import Server.CachedResponse;
+import Server.ClientHandler;
+import Server.GetQuery;
+import Server.Journal;
+import Server.RequestParser;
+import Server.ResponseSink;
+import Server.SnapshotFile;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.ref.Reference;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * In-process benchmarks for the BBoard server's board operations.
+ * Drives Server.Board directly (no sockets, except bulk), so the numbers are the board's own cost per command.
+ * Usage (after compiling Server/ and this file):
+ *   java BBoardBenchmark post [notes]
+ *   java BBoardBenchmark search [maxNotes]
+ *   java BBoardBenchmark readscale [maxThreads]
+ *   java BBoardBenchmark writescale [maxThreads]
+ *   java BBoardBenchmark repeatget [notes]
+ *   java BBoardBenchmark parse [rounds]
+ *   java BBoardBenchmark bulk [notes]
+ *   java BBoardBenchmark journal [notes] [clients]
+ *   java BBoardBenchmark restore [notes]
+ *   java BBoardBenchmark compact [notes]
+ *   java BBoardBenchmark pins [notes]
+ *   java BBoardBenchmark memory [notes]
+ *
+ * post   - POSTs notes (default 1,000,000) onto one board and prints the average cost per POST
+ *          for every batch, which should stay flat as the board fills up. The GC time spent in each batch
+ *          is shown next to it, since a board of a million notes mostly stresses the collector.
+ * search - GET refersTo= for a word on 1 in 1000 notes, on boards growing up to maxNotes (default 1,000,000).
+ *          The latency should follow the number of matches rather than the number of notes.
+ * readscale - GET throughput from 1, 2, 4 ... maxThreads (default: available cores) concurrent readers
+ *          on a 100,000 note board, alone and next to a thread doing PIN/UNPIN. Readers share the
+ *          board's read lock, so the total should grow with the number of cores.
+ * writescale - PIN/UNPIN/POST throughput from 1, 2, 4 ... maxThreads writers, each working on its own rows
+ *          of a 100,000 note board. Every mutation holds the board's write lock, so this shows what
+ *          that one lock costs as writers are added.
+ * repeatget - the same GETs repeated on an idle board of notes (default 10,000) against the first (uncached) time,
+ *          repeats are served from the response cache.
+ * parse  - bytes allocated and time per request for requests run through RequestParser (default 1,000,000 rounds
+ *          each) on a 10,000 note board. Requests the board answers without creating anything allocate
+ *          (close to) nothing, since the parser only copies out a POST message, a color or a refersTo=.
+ * bulk   - loads notes (default 100,000) onto an empty board through a connection to an in-process ClientHandler,
+ *          first as one POST per round trip, then as POSTMANY batches. A batch is one round trip, takes the
+ *          board's locks once and publishes its snapshot once.
+ * journal - POST throughput with no journal and with each journal sync mode (off, batch, always), from one client
+ *          and from clients (default 16) concurrent ones, notes (default 20,000) each run. Also shows how many POSTs
+ *          each write to the journal file carried: with sync=always concurrent POSTs share one force.
+ * restore - a cold start of a board of notes (default 200,000, 1 in 7 pinned) from its journal alone, and from a
+ *          snapshot plus the journal's last 1% of changes. Also times the background indexing a snapshot restore leaves.
+ *          A fixed heap (-Xms1g -Xmx1g for a million notes) keeps the restore from waiting on the heap growing.
+ * compact - PIN/UNPIN throughput and worst latency on a journaled board of notes (default 200,000), alone and while
+ *          the journal is compacted over and over. Writers only wait while the board is copied, not while the
+ *          compacted file is written. Also shows the journal's size before and after compacting.
+ * pins   - heap bytes per note on a board of notes (default 200,000) with no pins and with two pins on every note,
+ *          then the cost of a PIN + UNPIN on notes already carrying 0 to 64 pins. A note only keeps a count of its pins,
+ *          the board's pin registry knows which notes each pin pierces, so neither should grow with the pins a note has.
+ * memory - heap bytes per note on a board of notes (default 1,000,000) with short and with longer messages, and how
+ *          many such notes a GB of heap holds. Notes live in the board's columnar store, a few array slots each plus
+ *          their message bytes, and the trigram index keeps note ids delta-encoded.
+ */
+public class BBoardBenchmark {
+
+    private static final int BATCHES = 10;
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        String scenario = args.length > 0 ? args[0] : "post";
+
+        System.out.println("========================================");
+        System.out.println("  BBoard Benchmark: " + scenario);
+        System.out.println("========================================\n");
+
+        switch (scenario) {
+            case "post":
+                benchPost(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                break;
+            case "search":
+                benchSearch(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                break;
+            case "writescale":
+                benchWriteScale(args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors());
+                break;
+            case "repeatget":
+                benchRepeatGet(args.length > 1 ? Integer.parseInt(args[1]) : 10_000);
+                break;
+            case "parse":
+                benchParse(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                break;
+            case "bulk":
+                benchBulk(args.length > 1 ? Integer.parseInt(args[1]) : 100_000);
+                break;
+            case "journal":
+                benchJournal(args.length > 1 ? Integer.parseInt(args[1]) : 20_000,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 16);
+                break;
+            case "restore":
+                benchRestore(args.length > 1 ? Integer.parseInt(args[1]) : 200_000);
+                break;
+            case "compact":
+                benchCompact(args.length > 1 ? Integer.parseInt(args[1]) : 200_000);
+                break;
+            case "pins":
+                benchPins(args.length > 1 ? Integer.parseInt(args[1]) : 200_000);
+                break;
+            case "memory":
+                benchMemory(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                break;
+            case "readscale":
+                benchReadScale(args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors());
+                break;
+            default:
+                System.out.println("Unknown scenario: " + scenario);
+                System.exit(1);
+        }
+    }
+
+    // --- POST: per-POST cost as the board fills ---
+    private static void benchPost(int count) {
+        // Warm up on a throwaway board so the first batch is not measuring the JIT
+        postRange(newBoard(count), 0, Math.min(count, 200_000));
+
+        Board board = newBoard(count);
+        int batchSize = Math.max(1, count / BATCHES);
+        System.out.printf("%12s %12s %14s %14s %18s%n", "notes", "batch", "ns/POST", "GC ms", "ns/POST excl. GC");
+        for (int start = 0; start < count; start += batchSize) {
+            int end = Math.min(count, start + batchSize);
+            long gc0 = gcMillis();
+            long t0 = System.nanoTime();
+            postRange(board, start, end);
+            long elapsed = System.nanoTime() - t0;
+            long gc = gcMillis() - gc0;
+            System.out.printf("%12d %12d %14.1f %14d %18.1f%n", end, end - start, (double) elapsed / (end - start),
+                    gc, (double) Math.max(0, elapsed - gc * 1_000_000) / (end - start));
+        }
+    }
+
+    // POSTs notes start..end-1, each at its own position, and checks that every one was accepted
+    private static void postRange(Board board, int start, int end) {
+        for (int i = start; i < end; i++) {
+            String response = board.addNote(noteX(i), noteY(i), "red", "note" + i);
+            if (!response.equals("OK NOTE_POSTED"))
+                throw new IllegalStateException("POST " + i + " failed: " + response);
+        }
+    }
+
+    // --- SEARCH: GET refersTo= latency against board size ---
+    private static final int SEARCH_ROUNDS = 200;
+    private static final int NEEDLE_EVERY = 1000;
+
+    private static void benchSearch(int maxNotes) {
+        GetQuery needle = new GetQuery(null, null, null, "needle");
+        GetQuery absent = new GetQuery(null, null, null, "no such words");
+        System.out.printf("%12s %10s %16s %16s%n", "notes", "matches", "us/GET needle", "us/GET absent");
+
+        for (int count = 10_000; count <= maxNotes; count *= 10) {
+            Board board = newBoard(count);
+            for (int i = 0; i < count; i++) {
+                String message = (i % NEEDLE_EVERY == 0 ? "find the needle " : "just some hay ") + i;
+                board.addNote(noteX(i), noteY(i), "red", message);
+            }
+
+            timeGet(board, needle); // warm-up
+            System.out.printf("%12d %10d %16.1f %16.1f%n", count, count / NEEDLE_EVERY,
+                    timeGet(board, needle) / 1000.0, timeGet(board, absent) / 1000.0);
+        }
+    }
+
+    // Average time of one GET, in ns, with the response lines discarded
+    private static double timeGet(Board board, GetQuery query) {
+        long t0 = System.nanoTime();
+        for (int i = 0; i < SEARCH_ROUNDS; i++)
+            board.writeNotes(query, line -> {});
+        return (double) (System.nanoTime() - t0) / SEARCH_ROUNDS;
+    }
+
+    // --- READSCALE: concurrent GET throughput against reader threads ---
+    private static final int READSCALE_NOTES = 100_000;
+    private static final long READSCALE_MILLIS = 2000;
+
+    private static void benchReadScale(int maxThreads) throws InterruptedException {
+        Board board = newBoard(READSCALE_NOTES);
+        postRange(board, 0, READSCALE_NOTES);
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %16s %16s %20s%n", "readers", "GETs/s", "GETs/s/reader", "GETs/s with writer");
+
+        runReaders(board, 1, false); // warm-up
+        for (int threads = 1; ; threads = Math.min(maxThreads, threads * 2)) {
+            double alone = runReaders(board, threads, false);
+            double withWriter = runReaders(board, threads, true);
+            System.out.printf("%8d %16.0f %16.0f %20.0f%n", threads, alone, alone / threads, withWriter);
+            if (threads >= maxThreads)
+                break;
+        }
+    }
+
+    // Runs reader threads doing small GETs (contains= and color= with refersTo=) for a fixed time,
+    // optionally next to a writer pinning and unpinning, and returns the readers' total GETs per second
+    private static double runReaders(Board board, int threads, boolean writer) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        LongAdder gets = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!stop.get()) {
+                    int i = random.nextInt(READSCALE_NOTES);
+                    GetQuery query = random.nextBoolean()
+                            ? new GetQuery(null, noteX(i) + 1, noteY(i) + 1, null)
+                            : new GetQuery("red", null, null, "note" + i);
+                    board.writeNotes(query, line -> {});
+                    gets.increment();
+                }
+            }));
+        }
+        if (writer) {
+            workers.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!stop.get()) {
+                    int i = random.nextInt(READSCALE_NOTES);
+                    board.addPin(noteX(i) + 1, noteY(i) + 1);
+                    board.unPin(noteX(i) + 1, noteY(i) + 1);
+                }
+            }));
+        }
+
+        long t0 = System.nanoTime();
+        for (Thread worker : workers)
+            worker.start();
+        Thread.sleep(READSCALE_MILLIS);
+        stop.set(true);
+        for (Thread worker : workers)
+            worker.join();
+        return gets.sum() / ((System.nanoTime() - t0) / 1e9);
+    }
+
+    // Total time the JVM's collectors have spent so far
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, gc.getCollectionTime());
+        return total;
+    }
+
+    // --- WRITESCALE: concurrent mutation throughput against writer threads ---
+    private static void benchWriteScale(int maxThreads) throws InterruptedException {
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %16s %18s%n", "writers", "commands/s", "commands/s/writer");
+
+        runWriters(1); // warm-up
+        for (int threads = 1; ; threads = Math.min(maxThreads, threads * 2)) {
+            double total = runWriters(threads);
+            System.out.printf("%8d %16.0f %18.0f%n", threads, total, total / threads);
+            if (threads >= maxThreads)
+                break;
+        }
+    }
+
+    // Runs writer threads on a fresh board for a fixed time, each pinning, unpinning and re-posting
+    // (an overlap) notes in its own band of rows, and returns the total commands per second
+    private static double runWriters(int threads) throws InterruptedException {
+        Board board = newBoard(READSCALE_NOTES);
+        postRange(board, 0, READSCALE_NOTES);
+        AtomicBoolean stop = new AtomicBoolean();
+        LongAdder commands = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+
+        int band = READSCALE_NOTES / threads;
+        for (int t = 0; t < threads; t++) {
+            int first = t * band;
+            workers.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!stop.get()) {
+                    int i = first + random.nextInt(band);
+                    board.addPin(noteX(i) + 1, noteY(i) + 1);
+                    board.unPin(noteX(i) + 1, noteY(i) + 1);
+                    board.addNote(noteX(i), noteY(i), "red", "again"); // COMPLETE_OVERLAP
+                    commands.add(3);
+                }
+            }));
+        }
+
+        long t0 = System.nanoTime();
+        for (Thread worker : workers)
+            worker.start();
+        Thread.sleep(READSCALE_MILLIS);
+        stop.set(true);
+        for (Thread worker : workers)
+            worker.join();
+        return commands.sum() / ((System.nanoTime() - t0) / 1e9);
+    }
+
+    // --- REPEATGET: cached GET responses on an idle board ---
+    private static final int REPEAT_ROUNDS = 100_000;
+
+    private static void benchRepeatGet(int count) {
+        Board board = newBoard(count);
+        postRange(board, 0, count);
+        ResponseSink discard = new ResponseSink() {
+            @Override
+            public void line(CharSequence s) {
+            }
+
+            @Override
+            public void cached(CachedResponse response) {
+            }
+        };
+
+        GetQuery[] queries = {
+                GetQuery.ALL,
+                new GetQuery("red", null, null, null),
+                new GetQuery(null, null, null, "note1"),
+                new GetQuery(null, noteX(count / 2) + 1, noteY(count / 2) + 1, null),
+        };
+        String[] names = { "GET", "GET color=red", "GET refersTo=note1", "GET contains=" };
+        System.out.printf("%22s %14s %14s%n", "query", "us first", "us repeat");
+
+        for (int i = 0; i < queries.length; i++) {
+            // Changing the board invalidates the cache, so the first GET after it is a miss
+            board.addPin(noteX(i) + 1, noteY(i) + 1);
+            long t0 = System.nanoTime();
+            board.writeNotes(queries[i], discard);
+            long first = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            for (int n = 0; n < REPEAT_ROUNDS; n++)
+                board.writeNotes(queries[i], discard);
+            double repeat = (double) (System.nanoTime() - t0) / REPEAT_ROUNDS;
+            System.out.printf("%22s %14.1f %14.3f%n", names[i], first / 1000.0, repeat / 1000.0);
+        }
+    }
+
+    // --- PARSE: allocations per request through RequestParser ---
+    private static void benchParse(int rounds) {
+        Board board = newBoard(10_000);
+        postRange(board, 0, 10_000);
+        board.addPin(noteX(0) + 1, noteY(0) + 1);
+        ResponseSink discard = new ResponseSink() {
+            @Override
+            public void line(CharSequence s) {
+            }
+
+            @Override
+            public void cached(CachedResponse response) {
+            }
+        };
+
+        // None of these change the board, so every round sees the same state
+        String[] requests = {
+                "PIN " + (noteX(0) + 1) + " " + (noteY(0) + 1),
+                "UNPIN " + (noteX(1) + 1) + " " + (noteY(1) + 1),
+                "POST " + noteX(2) + " " + noteY(2) + " red overlaps note 2",
+                "POST -5 -5 red off the board",
+                "GET",
+                "GET PINS",
+                "GET SINCE " + board.version(),
+                "GET color=red",
+                "GET contains=" + (noteX(3) + 1) + " " + (noteY(3) + 1),
+                "PIN 1 2 3",
+                "SHAKE now",
+                "post 1 2 red lowercase",
+        };
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+        System.out.printf("%-40s %12s %12s  %s%n", "request", "bytes/req", "ns/req", "response");
+
+        for (String request : requests) {
+            // Warm up first, so the JIT has compiled the path before it is measured
+            for (int n = 0; n < rounds / 10; n++)
+                RequestParser.execute(request, board, discard);
+
+            long bytes0 = threads.getThreadAllocatedBytes(self);
+            long t0 = System.nanoTime();
+            String status = null;
+            for (int n = 0; n < rounds; n++)
+                status = RequestParser.execute(request, board, discard);
+            long elapsed = System.nanoTime() - t0;
+            long bytes = threads.getThreadAllocatedBytes(self) - bytes0;
+            System.out.printf("%-40s %12.1f %12.1f  %s%n", request, (double) bytes / rounds,
+                    (double) elapsed / rounds, status);
+        }
+    }
+
+    // --- BULK: loading a board with POST vs POSTMANY over a connection ---
+    private static void benchBulk(int count) throws IOException {
+        String[] items = new String[count];
+        for (int i = 0; i < count; i++)
+            items[i] = noteX(i) + " " + noteY(i) + " red note" + i;
+
+        // Warm up both paths on throwaway boards
+        loadOverSocket(newBoard(count), items, Math.min(count, 20_000), false);
+        loadOverSocket(newBoard(count), items, Math.min(count, 20_000), true);
+
+        System.out.printf("%12s %12s %14s %12s%n", "load", "requests", "ms total", "us/note");
+        for (boolean batched : new boolean[] { false, true }) {
+            Board board = newBoard(count);
+            long t0 = System.nanoTime();
+            int requests = loadOverSocket(board, items, count, batched);
+            long elapsed = System.nanoTime() - t0;
+            if (board.version() != count)
+                throw new IllegalStateException("posted " + board.version() + " of " + count + " notes");
+            System.out.printf("%12s %12d %14.1f %12.2f%n", batched ? "POSTMANY" : "POST", requests,
+                    elapsed / 1e6, elapsed / 1000.0 / count);
+        }
+    }
+
+    // Posts the first count items through a ClientHandler on a loopback connection, either one POST per round trip
+    // (as BBoardClient.sendRequest does) or as POSTMANY batches. Returns the number of requests sent
+    private static int loadOverSocket(Board board, String[] items, int count, boolean batched) throws IOException {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread handler = new Thread(() -> {
+                try {
+                    new ClientHandler(server.accept(), board, task -> new Thread(task).start()).run();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            handler.start();
+
+            int requests = 0;
+            try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+                in.readLine(); // greeting
+
+                if (batched) {
+                    for (int start = 0; start < count; start += BatchRequest.MAX_ITEMS) {
+                        int end = Math.min(count, start + BatchRequest.MAX_ITEMS);
+                        out.println("POSTMANY " + (end - start));
+                        for (int i = start; i < end; i++)
+                            out.println(items[i]);
+                        out.flush();
+                        expect(in.readLine(), "OK 0");
+                        requests++;
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        out.println("POST " + items[i]);
+                        out.flush();
+                        expect(in.readLine(), "OK NOTE_POSTED");
+                        requests++;
+                    }
+                }
+                out.println("DISCONNECT");
+                out.flush();
+                in.readLine();
+            }
+            try {
+                handler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return requests;
+        }
+    }
+
+    // --- JOURNAL: POST throughput under each journal sync mode ---
+    private static void benchJournal(int count, int clients) throws IOException, InterruptedException {
+        runJournaled(null, Math.min(count, 20_000), clients); // warm-up
+
+        System.out.printf("%10s %8s %14s %14s %16s%n", "sync", "clients", "POSTs/s", "us/POST", "POSTs/write");
+        for (Journal.SyncMode mode : new Journal.SyncMode[] { null, Journal.SyncMode.OFF, Journal.SyncMode.BATCH,
+                Journal.SyncMode.ALWAYS }) {
+            for (int threads : new int[] { 1, clients }) {
+                double[] result = runJournaled(mode, count, threads);
+                System.out.printf("%10s %8d %14.0f %14.1f %16s%n", mode == null ? "none" : mode.name().toLowerCase(),
+                        threads, result[0], result[1], mode == null ? "-" : String.format("%.1f", result[2]));
+            }
+        }
+    }
+
+    // POSTs count notes from threads clients through Board.handleCommand (which waits for the journal as a
+    // connection would) on a fresh board, journaled to a temporary file unless mode is null.
+    // Returns POSTs per second, microseconds per POST as a client sees it, and POSTs per journal write
+    private static double[] runJournaled(Journal.SyncMode mode, int count, int threads)
+            throws IOException, InterruptedException {
+        Board board = newBoard(count);
+        Path file = Files.createTempFile("bboard", ".journal");
+        Files.delete(file);
+        Journal journal = mode == null ? null : Journal.open(file, mode, Journal.DEFAULT_SYNC_MILLIS);
+        if (journal != null)
+            board.useJournal(journal);
+        ResponseSink discard = s -> { };
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            workers.add(new Thread(() -> {
+                for (int i = first; i < count; i += threads) {
+                    String status = board.handleCommand("POST " + noteX(i) + " " + noteY(i) + " red note" + i, null, discard);
+                    expect(status, "OK NOTE_POSTED");
+                }
+            }));
+        }
+        long t0 = System.nanoTime();
+        for (Thread worker : workers)
+            worker.start();
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - t0;
+
+        double perWrite = 0;
+        if (journal != null) {
+            journal.close();
+            perWrite = (double) count / Math.max(1, journal.flushes());
+        }
+        Files.deleteIfExists(file);
+        return new double[] { count / (elapsed / 1e9), elapsed / 1000.0 * threads / count, perWrite };
+    }
+
+    // --- RESTORE: cold start from the journal against a snapshot and the journal's tail ---
+    private static final int PIN_EVERY = 7;
+
+    private static void benchRestore(int count) throws IOException {
+        Path journalFile = Files.createTempFile("bboard", ".journal");
+        Path snapshotFile = Files.createTempFile("bboard", ".snapshot");
+        Files.delete(journalFile);
+        try {
+            restoreBoth(Math.min(count, 20_000), journalFile, snapshotFile); // warm-up
+
+            long[] result = restoreBoth(count, journalFile, snapshotFile);
+            System.out.printf("%12s %12s %14s %14s%n", "from", "version", "restore ms", "index ms");
+            System.out.printf("%12s %12d %14d %14s%n", "journal", result[0], result[1], "-");
+            System.out.printf("%12s %12d %14d %14d%n", "snapshot", result[2], result[3], result[4]);
+            System.out.printf("(%d notes, snapshot %.1f MB, journal tail of %d changes)%n", count,
+                    Files.size(snapshotFile) / 1e6, result[5]);
+        } finally {
+            Files.deleteIfExists(journalFile);
+            Files.deleteIfExists(snapshotFile);
+        }
+    }
+
+    // Journals a board of count notes with a snapshot taken before its last 1%, then restores it both ways.
+    // Returns the version and milliseconds of each restore, the milliseconds finishIndexes() took
+    // and the number of journal changes replayed after the snapshot
+    private static long[] restoreBoth(int count, Path journalFile, Path snapshotFile) throws IOException {
+        Files.deleteIfExists(journalFile);
+        Board board = newBoard(count);
+        Journal journal = Journal.open(journalFile, Journal.SyncMode.OFF, Journal.DEFAULT_SYNC_MILLIS);
+        board.useJournal(journal);
+        int snapshotAt = count - count / 100;
+        for (int i = 0; i < count; i++) {
+            if (i == snapshotAt)
+                board.writeSnapshot(snapshotFile);
+            expect(board.addNote(noteX(i), noteY(i), "red", "note" + i), "OK NOTE_POSTED");
+            if (i % PIN_EVERY == 0)
+                expect(board.addPin(noteX(i) + 1, noteY(i) + 1), "OK PIN_ADDED");
+        }
+        journal.close();
+        board = null;
+        System.gc();
+
+        long t0 = System.nanoTime();
+        Board fromJournal = newBoard(count);
+        Journal.replay(journalFile, fromJournal, -1);
+        long journalMillis = (System.nanoTime() - t0) / 1_000_000;
+        long journalVersion = fromJournal.version();
+        fromJournal = null;
+        System.gc();
+
+        t0 = System.nanoTime();
+        Board fromSnapshot = newBoard(count);
+        long tail = Journal.replay(journalFile, fromSnapshot, SnapshotFile.load(snapshotFile, fromSnapshot, 0));
+        long snapshotMillis = (System.nanoTime() - t0) / 1_000_000;
+        t0 = System.nanoTime();
+        fromSnapshot.finishIndexes();
+        long indexMillis = (System.nanoTime() - t0) / 1_000_000;
+
+        return new long[] { journalVersion, journalMillis, fromSnapshot.version(), snapshotMillis, indexMillis, tail };
+    }
+
+    // --- COMPACT: writers while the journal is being compacted ---
+    private static final long CHURN_MILLIS = 3000;
+
+    private static void benchCompact(int count) throws IOException, InterruptedException {
+        Path file = Files.createTempFile("bboard", ".journal");
+        Files.delete(file);
+        Journal journal = Journal.open(file, Journal.SyncMode.BATCH, Journal.DEFAULT_SYNC_MILLIS);
+        try {
+            Board board = newBoard(count);
+            board.useJournal(journal);
+            for (int i = 0; i < count; i++)
+                expect(board.addNote(noteX(i), noteY(i), "red", "note" + i), "OK NOTE_POSTED");
+            churn(board, count, false); // warm-up, and history for the compactions to drop
+            long before = Files.size(file);
+
+            System.out.printf("%12s %14s %16s %14s %16s%n", "compacting", "writes/s", "max write ms", "compactions",
+                    "ms/compaction");
+            for (boolean compacting : new boolean[] { false, true }) {
+                double[] result = churn(board, count, compacting);
+                System.out.printf("%12s %14.0f %16.2f %14s %16s%n", compacting ? "yes" : "no", result[0], result[1],
+                        compacting ? String.format("%.0f", result[2]) : "-",
+                        compacting ? String.format("%.0f", result[3]) : "-");
+            }
+            board.compactJournal();
+            System.out.printf("(%d notes, journal %.1f MB before compacting, %.1f MB after)%n", count, before / 1e6,
+                    Files.size(file) / 1e6);
+        } finally {
+            journal.close();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // PINs and UNPINs random notes for CHURN_MILLIS, with the journal compacted in a loop next to it if compacting.
+    // Returns writes per second, the slowest write in ms, and the number and average ms of compactions
+    private static double[] churn(Board board, int count, boolean compacting) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        long[] compactions = new long[2];
+        Thread compactor = new Thread(() -> {
+            while (!stop.get()) {
+                long t0 = System.nanoTime();
+                try {
+                    board.compactJournal();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                compactions[0]++;
+                compactions[1] += System.nanoTime() - t0;
+            }
+        });
+        if (compacting)
+            compactor.start();
+
+        ResponseSink discard = s -> { };
+        long writes = 0;
+        long slowest = 0;
+        long end = System.nanoTime() + CHURN_MILLIS * 1_000_000;
+        long start = System.nanoTime();
+        while (System.nanoTime() < end) {
+            int i = ThreadLocalRandom.current().nextInt(count);
+            long t0 = System.nanoTime();
+            board.handleCommand("PIN " + (noteX(i) + 1) + " " + (noteY(i) + 1), null, discard);
+            board.handleCommand("UNPIN " + (noteX(i) + 1) + " " + (noteY(i) + 1), null, discard);
+            slowest = Math.max(slowest, System.nanoTime() - t0);
+            writes += 2;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        stop.set(true);
+        if (compacting)
+            compactor.join();
+        return new double[] { writes / seconds, slowest / 1e6, compactions[0],
+                compactions[0] == 0 ? 0 : compactions[1] / 1e6 / compactions[0] };
+    }
+
+    // --- PINS: memory per note and PIN/UNPIN cost against pins per note ---
+    private static final int PIN_ROUNDS = 200_000;
+
+    private static void benchPins(int count) {
+        long empty = usedHeap();
+        Board board = newBoard(count);
+        for (int i = 0; i < count; i++)
+            expect(board.addNote(noteX(i), noteY(i), "red", "note" + i), "OK NOTE_POSTED");
+        long unpinned = usedHeap();
+        for (int i = 0; i < count; i++) {
+            expect(board.addPin(noteX(i) + 1, noteY(i) + 1), "OK PIN_ADDED");
+            expect(board.addPin(noteX(i) + 2, noteY(i) + 2), "OK PIN_ADDED");
+        }
+        long pinned = usedHeap();
+        Reference.reachabilityFence(board);
+        System.out.printf("%14s %14s %18s%n", "pins/note", "bytes/note", "of which pins");
+        System.out.printf("%14d %14.1f %18s%n", 0, (double) (unpinned - empty) / count, "-");
+        System.out.printf("%14d %14.1f %18.1f%n", 2, (double) (pinned - empty) / count,
+                (double) (pinned - unpinned) / count);
+
+        // Each note has NOTE_SIZE - 1 squared points inside it to pin, the last one is kept free for the timed PIN
+        int notes = 1000;
+        System.out.printf("%n%14s %20s%n", "pins/note", "ns/PIN+UNPIN");
+        for (int pins : new int[] { 0, 1, 2, 4, 16, 64 }) {
+            Board pinnedBoard = newBoard(notes);
+            for (int i = 0; i < notes; i++) {
+                expect(pinnedBoard.addNote(noteX(i), noteY(i), "red", "note" + i), "OK NOTE_POSTED");
+                for (int p = 0; p < pins; p++)
+                    expect(pinnedBoard.addPin(noteX(i) + 1 + p % (NOTE_SIZE - 1), noteY(i) + 1 + p / (NOTE_SIZE - 1)),
+                            "OK PIN_ADDED");
+            }
+            int free = NOTE_SIZE - 1;
+            for (int round = 0; round < 2; round++) { // the first round warms up
+                long t0 = System.nanoTime();
+                for (int r = 0; r < PIN_ROUNDS; r++) {
+                    int i = r % notes;
+                    expect(pinnedBoard.addPin(noteX(i) + free, noteY(i) + free), "OK PIN_ADDED");
+                    expect(pinnedBoard.unPin(noteX(i) + free, noteY(i) + free), "OK PIN_REMOVED");
+                }
+                if (round == 1)
+                    System.out.printf("%14d %20.1f%n", pins, (double) (System.nanoTime() - t0) / PIN_ROUNDS);
+            }
+        }
+    }
+
+    // --- MEMORY: heap per note for short and longer messages ---
+    private static final String[] COLORS = { "red", "white", "green", "yellow" };
+
+    private static void benchMemory(int count) {
+        String[] labels = { "note<i>", "note number <i> says hello" };
+        List<IntFunction<String>> messages = Arrays.asList(i -> "note" + i, i -> "note number " + i + " says hello");
+        System.out.printf("%28s %14s %16s%n", "message", "bytes/note", "notes per GB");
+        for (int m = 0; m < labels.length; m++) {
+            long empty = usedHeap();
+            Board board = newBoard(count);
+            for (int i = 0; i < count; i++)
+                expect(board.addNote(noteX(i), noteY(i), COLORS[i % COLORS.length], messages.get(m).apply(i)),
+                        "OK NOTE_POSTED");
+            double perNote = (double) (usedHeap() - empty) / count;
+            Reference.reachabilityFence(board);
+            System.out.printf("%28s %14.1f %16.0f%n", labels[m], perNote, (1L << 30) / perNote);
+        }
+    }
+
+    // Heap in use after a full collection
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void expect(String response, String expected) {
+        if (!expected.equals(response))
+            throw new IllegalStateException("expected " + expected + ", got " + response);
+    }
+
+    /* Board layout */
+    // Notes are laid out 1000 to a row on a board big enough for all of them, none overlap
+    private static final int NOTES_PER_ROW = 1000;
+    private static final int NOTE_SIZE = 10;
+
+    private static Board newBoard(int count) {
+        int rows = (count + NOTES_PER_ROW - 1) / NOTES_PER_ROW;
+        return new Board(NOTES_PER_ROW * NOTE_SIZE, Math.max(1, rows) * NOTE_SIZE, NOTE_SIZE, NOTE_SIZE,
+                Arrays.asList("red", "white", "green", "yellow"));
+    }
+
+    private static int noteX(int i) {
+        return (i % NOTES_PER_ROW) * NOTE_SIZE;
+    }
+
+    private static int noteY(int i) {
+        return (i / NOTES_PER_ROW) * NOTE_SIZE;
+    }
+}
@@ -0,0 +1,493 @@
+import Server.Board;
+import Server.Journal;
+import Server.ResponseSink;
+import Server.Session;
+import Server.SnapshotFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Automated restart tests for the board's journal, snapshots and compaction, in-process (no server needed):
+ *   javac BBoardRestartTest.java Server/*.java
+ *   java BBoardRestartTest
+ *
+ * Each test changes a board that journals its changes, stops it the way a crash would (copying or cutting short
+ * its files while they are still open), restores a new board from them the way the server starts, and compares
+ * what GET and GET PINS answer.
+ */
+public class BBoardRestartTest {
+
+    private static int passed = 0;
+    private static int failed = 0;
+    private static int testNum = 0;
+
+    private static final List<String> COLORS = Arrays.asList("red", "white", "green", "yellow");
+
+    private Path dir;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("========================================");
+        System.out.println("  BBoard Restart Test Suite");
+        System.out.println("========================================\n");
+
+        BBoardRestartTest tester = new BBoardRestartTest();
+        tester.dir = Files.createTempDirectory("bboard-restart");
+        try {
+            // --- Section 1: Journal Replay ---
+            System.out.println("--- Section 1: Journal Replay ---");
+            tester.testReplay();
+
+            // --- Section 2: Torn Tail ---
+            System.out.println("\n--- Section 2: Torn Tail ---");
+            tester.testTornRecord();
+            tester.testTornGroup();
+            tester.testDamagedGroup();
+
+            // --- Section 3: Snapshots ---
+            System.out.println("\n--- Section 3: Snapshots ---");
+            tester.testSnapshotLoad();
+            tester.testSnapshotWithoutJournal();
+            tester.testSnapshotOlderThanJournalBase();
+            tester.testJournalOlderThanSnapshot();
+            tester.testSnapshotOfOtherBoard();
+
+            // --- Section 4: Compaction ---
+            System.out.println("\n--- Section 4: Compaction ---");
+            tester.testCompaction();
+            tester.testCompactionWhileWriting();
+
+            // --- Section 5: Killed Server ---
+            System.out.println("\n--- Section 5: Killed Server ---");
+            tester.testKilledServer();
+        } finally {
+            tester.deleteDir();
+        }
+
+        System.out.println("\n========================================");
+        System.out.println("  RESULTS: " + passed + " passed, " + failed + " failed, " + testNum + " total");
+        System.out.println("========================================");
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    // ---- Helpers ----
+
+    private static Board newBoard() {
+        return new Board(200, 100, 20, 10, COLORS);
+    }
+
+    // A board journaling to path, syncing every change
+    private static Board journaledBoard(Path path) throws IOException {
+        Board board = newBoard();
+        board.useJournal(Journal.open(path, Journal.SyncMode.ALWAYS, Journal.DEFAULT_SYNC_MILLIS));
+        return board;
+    }
+
+    // Restores a new board the way Server.BBoard starts: from the snapshot (null if none), then the journal's
+    // changes after it
+    private static Board restore(Path journalPath, Path snapshotPath) throws IOException {
+        Board board = newBoard();
+        long journalFrom = -1;
+        if (snapshotPath != null)
+            journalFrom = SnapshotFile.load(snapshotPath, board, Journal.baseVersion(journalPath));
+        Journal.replay(journalPath, board, journalFrom);
+        board.finishIndexes();
+        return board;
+    }
+
+    // Runs request lines through a connection's session, as a client sending them would
+    private static void send(Board board, Session session, String... lines) {
+        for (String line : lines)
+            board.handleCommand(line, session, new ResponseSink.Text());
+    }
+
+    // What a client sees of the board: the GET and GET PINS responses
+    private static String state(Board board) {
+        return String.join("\n", board.handleCommand("GET")) + "\n" + String.join("\n", board.handleCommand("GET PINS"));
+    }
+
+    // A copy of the file cut short after length bytes, as a crash while writing would leave it
+    private Path cutCopy(Path path, long length) throws IOException {
+        Path copy = dir.resolve(path.getFileName() + "." + length);
+        Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+        return copy;
+    }
+
+    // Random POST/PIN/UNPIN/SHAKE/CLEAR commands (mostly POST and PIN), from a fixed seed
+    private static String[] randomCommands(long seed, int count) {
+        Random random = new Random(seed);
+        String[] commands = new String[count];
+        for (int i = 0; i < count; i++) {
+            int x = random.nextInt(10) * 20, y = random.nextInt(10) * 10;
+            int kind = random.nextInt(100);
+            if (kind < 55)
+                commands[i] = "POST " + x + " " + y + " " + COLORS.get(random.nextInt(COLORS.size())) + " note " + seed + "-" + i;
+            else if (kind < 85)
+                commands[i] = "PIN " + (x + random.nextInt(20)) + " " + (y + random.nextInt(10));
+            else if (kind < 95)
+                commands[i] = "UNPIN " + (x + random.nextInt(20)) + " " + (y + random.nextInt(10));
+            else if (kind < 99)
+                commands[i] = "SHAKE";
+            else
+                commands[i] = "CLEAR";
+        }
+        return commands;
+    }
+
+    // Runs the commands from threads clients at once, each with its own seed
+    private static void sendConcurrently(Board board, int clients, long seed, int perClient) throws InterruptedException {
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            String[] commands = randomCommands(seed + c, perClient);
+            threads[c] = new Thread(() -> send(board, null, commands));
+            threads[c].start();
+        }
+        for (Thread t : threads)
+            t.join();
+    }
+
+    // Copies the file as it is while the board still has it open, as a kill -9 would leave it
+    private Path killCopy(Path path, String suffix) throws IOException {
+        Path copy = dir.resolve(path.getFileName() + "." + suffix);
+        if (Files.exists(path))
+            Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    private void deleteDir() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private void check(String testName, boolean condition, String details) {
+        testNum++;
+        if (condition) {
+            passed++;
+            System.out.println("  [PASS] #" + testNum + " " + testName);
+        } else {
+            failed++;
+            System.out.println("  [FAIL] #" + testNum + " " + testName + " -- " + details);
+        }
+    }
+
+    private void checkResponse(String testName, String actual, String expected) {
+        check(testName, expected.equals(actual), "expected \"" + expected + "\", got \"" + actual + "\"");
+    }
+
+    // ---- Test cases ----
+
+    // --- Section 1: Journal Replay ---
+
+    private void testReplay() throws Exception {
+        Path path = dir.resolve("replay.journal");
+        Board board = journaledBoard(path);
+        Session session = new Session(board, () -> {});
+        send(board, session,
+                "POST 0 0 red First note",
+                "POST 20 0 white Second note",
+                "POST 500 0 red Off the board",
+                "PIN 5 5",
+                "PIN 25 5",
+                "UNPIN 25 5",
+                "POSTMANY 2", "40 0 green Batch one", "60 0 yellow Batch two",
+                "MULTI", "POST 80 0 red In a transaction", "PIN 85 5", "EXEC",
+                "SHAKE",
+                "POST 100 0 white After the shake");
+        String expected = state(board);
+        long version = board.version();
+        board.journal().close();
+
+        Board restored = restore(path, null);
+        checkResponse("Replay restores GET and GET PINS", state(restored), expected);
+        check("Replay restores the version", restored.version() == version,
+              "expected " + version + ", got " + restored.version());
+        checkResponse("GET refersTo= works after replay", String.join("\n", restored.handleCommand("GET refersTo=shake")),
+                      "OK 1\nNOTE 100 0 white After the shake PINNED=false");
+
+        Board again = restore(path, null);
+        checkResponse("Replaying twice gives the same board", state(again), expected);
+    }
+
+    // --- Section 2: Torn Tail ---
+
+    private void testTornRecord() throws Exception {
+        Path path = dir.resolve("record.journal");
+        Board board = journaledBoard(path);
+        send(board, null, "POST 0 0 red Kept", "PIN 5 5");
+        long end = board.journal().committed();
+        String expected = state(board);
+        send(board, null, "POST 20 0 white Cut short");
+        board.journal().close();
+
+        Path torn = cutCopy(path, Files.size(path) - 3);
+        Board restored = restore(torn, null);
+        checkResponse("A record cut short is dropped", state(restored), expected);
+        check("The file is truncated before it", Files.size(torn) == end,
+              "expected " + end + " bytes, got " + Files.size(torn));
+    }
+
+    private void testTornGroup() throws Exception {
+        Path path = dir.resolve("group.journal");
+        Board board = journaledBoard(path);
+        Session session = new Session(board, () -> {});
+        send(board, session, "POST 0 0 red Before the batch", "PIN 5 5");
+        long groupStart = board.journal().committed();
+        long version = board.version();
+        String before = state(board);
+        send(board, session, "POSTMANY 3", "20 0 white One", "40 0 green Two", "60 0 yellow Three");
+        long groupEnd = board.journal().committed();
+        String after = state(board);
+        board.journal().close();
+
+        checkResponse("A whole batch is replayed", state(restore(cutCopy(path, groupEnd), null)), after);
+
+        // In the GROUP record, just past it, in the first item's record, one byte short of the last one
+        long[] cuts = { groupStart + 5, groupStart + 21, groupStart + 40, groupEnd - 1 };
+        for (long cut : cuts) {
+            Path torn = cutCopy(path, cut);
+            Board restored = restore(torn, null);
+            checkResponse("A batch cut short at +" + (cut - groupStart) + " is dropped whole", state(restored), before);
+            check("  ... at the version before it", restored.version() == version,
+                  "expected " + version + ", got " + restored.version());
+            check("  ... and cut off the file", Files.size(torn) == groupStart,
+                  "expected " + groupStart + " bytes, got " + Files.size(torn));
+        }
+
+        // The server carries on from the dropped batch, what it journals next replays after the kept records
+        Path torn = cutCopy(path, groupEnd - 1);
+        Board restarted = restore(torn, null);
+        restarted.useJournal(Journal.open(torn, Journal.SyncMode.ALWAYS, Journal.DEFAULT_SYNC_MILLIS));
+        send(restarted, null, "POST 80 0 red After the restart");
+        String expected = state(restarted);
+        restarted.journal().close();
+        checkResponse("Changes after a dropped batch replay", state(restore(torn, null)), expected);
+    }
+
+    private void testDamagedGroup() throws Exception {
+        Path path = dir.resolve("damaged.journal");
+        Board board = journaledBoard(path);
+        Session session = new Session(board, () -> {});
+        send(board, session, "POST 0 0 red Before the transaction");
+        long groupStart = board.journal().committed();
+        String before = state(board);
+        send(board, session, "MULTI", "POST 20 0 white One", "PIN 25 5", "EXEC");
+        long groupEnd = board.journal().committed();
+        board.journal().close();
+
+        // A damaged byte in the transaction's last record (its CRC)
+        Path damaged = cutCopy(path, groupEnd);
+        try (FileChannel channel = FileChannel.open(damaged, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, groupEnd - 2);
+            b.put(0, (byte) ~b.get(0));
+            b.rewind();
+            channel.write(b, groupEnd - 2);
+        }
+        checkResponse("A damaged transaction is dropped whole", state(restore(damaged, null)), before);
+        check("  ... and cut off the file", Files.size(damaged) == groupStart,
+              "expected " + groupStart + " bytes, got " + Files.size(damaged));
+    }
+
+    // --- Section 3: Snapshots ---
+
+    private void testSnapshotLoad() throws Exception {
+        Path path = dir.resolve("load.journal");
+        Path snapshot = dir.resolve("load.snapshot");
+        Board board = journaledBoard(path);
+        Session session = new Session(board, () -> {});
+        send(board, session, "POST 0 0 red Saved", "POST 20 0 white Saved too", "PIN 5 5");
+        long saved = board.writeSnapshot(snapshot);
+        send(board, session, "POST 40 0 green After", "PIN 45 5", "UNPIN 5 5",
+                "POSTMANY 2", "60 0 yellow Batch one", "80 0 red Batch two");
+        String expected = state(board);
+        long version = board.version();
+        board.journal().close();
+
+        Board restored = newBoard();
+        long from = SnapshotFile.load(snapshot, restored, Journal.baseVersion(path));
+        check("The snapshot says where the journal's tail starts", from > 0, "got " + from);
+        check("The snapshot restores its version", restored.version() == saved,
+              "expected " + saved + ", got " + restored.version());
+        long applied = Journal.replay(path, restored, from);
+        check("Only the journal's tail is replayed", applied == version - saved,
+              "expected " + (version - saved) + " records, got " + applied);
+        restored.finishIndexes();
+        checkResponse("Snapshot plus tail restores GET and GET PINS", state(restored), expected);
+        checkResponse("GET refersTo= works after a snapshot load",
+                      String.join("\n", restored.handleCommand("GET refersTo=Saved too")),
+                      "OK 1\nNOTE 20 0 white Saved too PINNED=false");
+    }
+
+    private void testSnapshotWithoutJournal() throws Exception {
+        Path snapshot = dir.resolve("alone.snapshot");
+        Board board = newBoard();
+        send(board, null, "POST 0 0 red Only", "POST 20 0 white In the snapshot", "PIN 25 5");
+        String expected = state(board);
+        board.writeSnapshot(snapshot);
+
+        Board restored = newBoard();
+        long from = SnapshotFile.load(snapshot, restored, 0);
+        checkResponse("A snapshot alone restores GET and GET PINS", state(restored), expected);
+        check("  ... with no journal position", from == -1, "got " + from);
+        check("A missing snapshot loads nothing", SnapshotFile.load(dir.resolve("none.snapshot"), newBoard(), 0) == -1,
+              "expected -1");
+    }
+
+    private void testSnapshotOlderThanJournalBase() throws Exception {
+        Path path = dir.resolve("base.journal");
+        Path snapshot = dir.resolve("base.snapshot");
+        Board board = journaledBoard(path);
+        send(board, null, "POST 0 0 red Old", "PIN 5 5");
+        board.writeSnapshot(snapshot);
+        send(board, null, "POST 20 0 white Newer", "SHAKE", "POST 40 0 green Newest");
+        board.compactJournal();
+        send(board, null, "PIN 45 5");
+        String expected = state(board);
+        board.journal().close();
+
+        Board restored = newBoard();
+        long from = SnapshotFile.load(snapshot, restored, Journal.baseVersion(path));
+        check("A snapshot older than the compacted journal is not loaded", from == -1 && restored.version() == 0,
+              "got " + from + " at version " + restored.version());
+        checkResponse("The compacted journal restores the board on its own", state(restore(path, snapshot)), expected);
+    }
+
+    private void testJournalOlderThanSnapshot() throws Exception {
+        Path path = dir.resolve("older.journal");
+        Path snapshot = dir.resolve("older.snapshot");
+        Board board = journaledBoard(path);
+        send(board, null, "POST 0 0 red In both");
+        long end = board.journal().committed();
+        send(board, null, "POST 20 0 white Only in the snapshot", "PIN 25 5");
+        String expected = state(board);
+        board.writeSnapshot(snapshot);
+        board.journal().close();
+
+        // The journal's records end before the position the snapshot points to, it is read from the start instead
+        Path older = cutCopy(path, end);
+        checkResponse("A journal older than the snapshot leaves the snapshot as it is",
+                      state(restore(older, snapshot)), expected);
+    }
+
+    private void testSnapshotOfOtherBoard() throws Exception {
+        Path snapshot = dir.resolve("other.snapshot");
+        Board board = newBoard();
+        send(board, null, "POST 0 0 red Small board");
+        board.writeSnapshot(snapshot);
+
+        String error = null;
+        try {
+            SnapshotFile.load(snapshot, new Board(400, 100, 20, 10, COLORS), 0);
+        } catch (IOException e) {
+            error = e.getMessage();
+        }
+        check("A snapshot of a board of another size is refused", error != null && error.contains("200x100"),
+              "got " + error);
+    }
+
+    // --- Section 4: Compaction ---
+
+    private void testCompaction() throws Exception {
+        Path path = dir.resolve("compact.journal");
+        Board board = journaledBoard(path);
+        send(board, null, randomCommands(1, 600));
+        send(board, null, "CLEAR", "POST 0 0 red Kept", "POST 20 0 white Kept too", "PIN 5 5");
+        long version = board.version();
+        long before = Files.size(path);
+        long size = board.compactJournal();
+        check("Compaction drops the history CLEAR undid", size > 0 && size < before / 4,
+              "from " + before + " to " + size + " bytes");
+        check("The compacted journal starts at the board's version", Journal.baseVersion(path) == version,
+              "expected " + version + ", got " + Journal.baseVersion(path));
+        send(board, null, "POST 40 0 green After", "UNPIN 5 5", "PIN 45 5");
+        String expected = state(board);
+        board.journal().close();
+
+        Board restored = restore(path, null);
+        checkResponse("The compacted journal restores GET and GET PINS", state(restored), expected);
+        check("  ... and the version", restored.version() == board.version(),
+              "expected " + board.version() + ", got " + restored.version());
+        checkResponse("GET refersTo= works after restoring the compacted journal",
+                      String.join("\n", restored.handleCommand("GET refersTo=too")),
+                      "OK 1\nNOTE 20 0 white Kept too PINNED=false");
+    }
+
+    private void testCompactionWhileWriting() throws Exception {
+        Path path = dir.resolve("busy.journal");
+        Board board = journaledBoard(path);
+        send(board, null, randomCommands(2, 300));
+        Thread writers = new Thread(() -> {
+            try {
+                sendConcurrently(board, 4, 100, 150);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        writers.start();
+        int compactions = 0;
+        while (writers.isAlive() && compactions < 20) {
+            board.compactJournal();
+            compactions++;
+        }
+        writers.join();
+        String expected = state(board);
+        board.journal().close();
+
+        check("Compaction ran while clients wrote", compactions > 1, "compacted " + compactions + " times");
+        checkResponse("Compacting while clients write loses nothing", state(restore(path, null)), expected);
+    }
+
+    // --- Section 5: Killed Server ---
+
+    // Runs a server's life in rounds of concurrent clients, snapshots and compactions, kills it (copying its files
+    // while they are open, without the shutdown snapshot or close), restarts from the copies and carries on the
+    // same way, checking every restart answers GET and GET PINS as the board did when it was killed
+    private void testKilledServer() throws Exception {
+        Path path = dir.resolve("killed.journal");
+        Path snapshot = dir.resolve("killed.snapshot");
+        Board board = journaledBoard(path);
+        for (int life = 0; life < 3; life++) {
+            for (int round = 0; round < 4; round++) {
+                sendConcurrently(board, 4, life * 1000 + round * 10, 60);
+                if (round % 2 == 0)
+                    board.writeSnapshot(snapshot);
+                if (round == 1 + life % 2)
+                    board.compactJournal();
+            }
+            // Changes after the last snapshot are only in the journal
+            send(board, null, "POST 0 0 red Last before kill " + life, "PIN 5 5");
+            String expected = state(board);
+            long version = board.version();
+
+            Path journalCopy = killCopy(path, "life" + life);
+            Path snapshotCopy = killCopy(snapshot, "life" + life);
+            board.journal().close(); // only so the old board stops writing, the copies are what a kill leaves
+
+            Board restored = restore(journalCopy, snapshotCopy);
+            checkResponse("Restart " + (life + 1) + " after kill -9 restores GET and GET PINS", state(restored), expected);
+            check("  ... and the version", restored.version() == version,
+                  "expected " + version + ", got " + restored.version());
+
+            // The restarted server carries on from the copies
+            path = journalCopy;
+            snapshot = snapshotCopy;
+            restored.useJournal(Journal.open(path, Journal.SyncMode.ALWAYS, Journal.DEFAULT_SYNC_MILLIS));
+            board = restored;
+        }
+        board.journal().close();
+    }
+}
@@ -104,6 +104,8 @@ public class BBoardTest {
         System.out.println("\n--- Section 11: Whitespace Handling ---");
         tester.testLeadingWhitespace();
         tester.testTrailingWhitespace();
+        tester.testControlCharsAroundCommand();
+        tester.testControlCharInsideCommand();
 
         // --- Section 12: Invalid/Unknown Commands ---
         System.out.println("\n--- Section 12: Invalid Commands ---");
@@ -124,6 +126,26 @@ public class BBoardTest {
         System.out.println("\n--- Section 15: Multiple Concurrent Clients ---");
         tester.testConcurrentClients(port);
 
+        // --- Section 16: Pipelined Requests ---
+        System.out.println("\n--- Section 16: Pipelined Requests ---");
+        tester.testPipelinedCommands(port);
+
+        // --- Section 17: SUBSCRIBE Push Events ---
+        System.out.println("\n--- Section 17: SUBSCRIBE Push Events ---");
+        tester.testSubscribeEvents(port);
+
+        // --- Section 18: GET SINCE Delta Sync ---
+        System.out.println("\n--- Section 18: GET SINCE Delta Sync ---");
+        tester.testGetSince(port);
+
+        // --- Section 19: Batch Commands ---
+        System.out.println("\n--- Section 19: Batch Commands ---");
+        tester.testBatchCommands(port);
+
+        // --- Section 20: MULTI / EXEC Transactions ---
+        System.out.println("\n--- Section 20: MULTI / EXEC Transactions ---");
+        tester.testTransactions(port);
+
         // --- Summary ---
         System.out.println("\n========================================");
         System.out.println("  RESULTS: " + passed + " passed, " + failed + " failed, " + (passed + failed) + " total");
@@ -154,6 +176,11 @@ public class BBoardTest {
 
     private String sendFull(String cmd) throws Exception {
         out.println(cmd);
+        return readFull();
+    }
+
+    // Reads one response: the status line plus the data lines an "OK <count>" announces
+    private String readFull() throws Exception {
         String first = in.readLine();
         if (first == null) return null;
         StringBuilder sb = new StringBuilder(first);
@@ -529,6 +556,17 @@ public class BBoardTest {
         checkResponse("Trailing whitespace handled", resp, "OK CLEAR_COMPLETE");
     }
 
+    // Control characters at either end are trimmed along with whitespace, as String.trim() does
+    private void testControlCharsAroundCommand() throws Exception {
+        String resp = send("\u0001\tCLEAR\u0007\u001F");
+        checkResponse("Control characters around command trimmed", resp, "OK CLEAR_COMPLETE");
+    }
+
+    private void testControlCharInsideCommand() throws Exception {
+        String resp = send("CL\u0001EAR");
+        checkStartsWith("Control character inside command", resp, "ERROR INVALID_FORMAT");
+    }
+
     // --- Section 12: Invalid Commands ---
 
     private void testUnknownCommand() throws Exception {
@@ -636,4 +674,230 @@ public class BBoardTest {
         send("CLEAR");
         disconnect();
     }
+
+    // --- Section 16: Pipelined Requests ---
+
+    private void testPipelinedCommands(int port) throws Exception {
+        final int NUM_POSTS = 100;
+
+        connect("localhost", port);
+        in.readLine(); // greeting
+
+        // Send every command in one write without waiting for responses
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < NUM_POSTS; i++) {
+            batch.append("POST ").append((i % 10) * 10).append(" ").append((i / 10) * 5)
+                 .append(" red Pipelined ").append(i).append("\n");
+        }
+        batch.append("GET refersTo=Pipelined\n");
+        batch.append("PIN 5 5\n");
+        batch.append("CLEAR\n");
+        out.print(batch);
+        out.flush();
+
+        int posted = 0;
+        for (int i = 0; i < NUM_POSTS; i++) {
+            if ("OK NOTE_POSTED".equals(in.readLine())) posted++;
+        }
+        check("Pipelined: all " + NUM_POSTS + " POSTs answered in order", posted == NUM_POSTS,
+              posted + "/" + NUM_POSTS + " OK NOTE_POSTED");
+
+        String header = in.readLine();
+        checkResponse("Pipelined: GET sees every earlier POST", header, "OK " + NUM_POSTS);
+        int noteLines = 0;
+        for (int i = 0; i < NUM_POSTS; i++) {
+            String line = in.readLine();
+            if (line != null && line.startsWith("NOTE ")) noteLines++;
+        }
+        check("Pipelined: GET data lines follow header", noteLines == NUM_POSTS,
+              "got " + noteLines + " NOTE lines");
+
+        checkResponse("Pipelined: PIN answered after GET", in.readLine(), "OK PIN_ADDED");
+        checkResponse("Pipelined: CLEAR answered last", in.readLine(), "OK CLEAR_COMPLETE");
+
+        disconnect();
+    }
+
+    // --- Section 17: SUBSCRIBE Push Events ---
+
+    private void testSubscribeEvents(int port) throws Exception {
+        // Main connection makes the changes
+        connect("localhost", port);
+        in.readLine(); // greeting
+        send("CLEAR");
+        send("POST 100 50 green Before subscribe");
+
+        // Subscriber on its own connection
+        Socket s = new Socket("localhost", port);
+        s.setSoTimeout(5000);
+        BufferedReader subIn = new BufferedReader(new InputStreamReader(s.getInputStream()));
+        PrintWriter subOut = new PrintWriter(new OutputStreamWriter(s.getOutputStream()), true);
+        subIn.readLine(); // greeting
+
+        subOut.println("SUBSCRIBE");
+        checkResponse("SUBSCRIBE returns snapshot header", subIn.readLine(), "OK 1");
+        checkResponse("SUBSCRIBE snapshot has existing note", subIn.readLine(),
+                      "NOTE 100 50 green Before subscribe PINNED=false");
+
+        send("POST 10 10 red Pushed note");
+        checkResponse("Event for POST", subIn.readLine(), "EVENT NOTE 10 10 red Pushed note PINNED=false");
+
+        send("PIN 15 15");
+        checkResponse("Event for note pinned by PIN", subIn.readLine(), "EVENT NOTE 10 10 red Pushed note PINNED=true");
+        checkResponse("Event for PIN", subIn.readLine(), "EVENT PIN 15 15");
+
+        send("PIN 15 15"); // duplicate pin changes nothing, so no event
+        send("UNPIN 15 15");
+        checkResponse("Event for note unpinned by UNPIN", subIn.readLine(), "EVENT NOTE 10 10 red Pushed note PINNED=false");
+        checkResponse("Event for UNPIN", subIn.readLine(), "EVENT UNPIN 15 15");
+
+        send("SHAKE");
+        checkResponse("Event for SHAKE", subIn.readLine(), "EVENT SHAKE");
+
+        send("CLEAR");
+        checkResponse("Event for CLEAR", subIn.readLine(), "EVENT CLEAR");
+
+        subOut.println("UNSUBSCRIBE");
+        checkResponse("UNSUBSCRIBE", subIn.readLine(), "OK UNSUBSCRIBED");
+
+        send("POST 10 10 red After unsubscribe");
+        subOut.println("GET PINS");
+        checkResponse("No events after UNSUBSCRIBE", subIn.readLine(), "OK 0");
+
+        checkStartsWith("SUBSCRIBE with args", send("SUBSCRIBE now"), "ERROR INVALID_FORMAT");
+
+        subOut.println("DISCONNECT");
+        subIn.readLine();
+        s.close();
+
+        send("CLEAR"); // cleanup
+        disconnect();
+    }
+
+    // --- Section 18: GET SINCE Delta Sync ---
+
+    private void testGetSince(int port) throws Exception {
+        connect("localhost", port);
+        in.readLine(); // greeting
+        send("CLEAR");
+
+        // Right after a CLEAR everything older needs a full snapshot
+        String resp = sendFull("GET SINCE 0");
+        String[] lines = resp.split("\n");
+        check("GET SINCE across CLEAR is FULL", lines.length > 1 && lines[1].endsWith(" FULL"), "got: " + resp);
+        long version = Long.parseLong(lines[1].split("\\s+")[1]);
+
+        resp = sendFull("GET SINCE " + version);
+        checkResponse("GET SINCE current version is empty delta", resp, "OK 1\nVERSION " + version + " DELTA");
+
+        send("POST 10 10 red Delta one");
+        send("POST 40 10 red Delta two");
+        send("PIN 15 15");
+        resp = sendFull("GET SINCE " + version);
+        checkResponse("GET SINCE returns only changes", resp,
+                      "OK 4\nVERSION " + (version + 3) + " DELTA\n"
+                      + "NOTE 10 10 red Delta one PINNED=true\n"
+                      + "NOTE 40 10 red Delta two PINNED=false\n"
+                      + "PIN 15 15");
+
+        version += 3;
+        send("SHAKE");
+        send("UNPIN 15 15");
+        resp = sendFull("GET SINCE " + version);
+        checkResponse("GET SINCE reports removals and unpins", resp,
+                      "OK 4\nVERSION " + (version + 2) + " DELTA\n"
+                      + "NOTE 10 10 red Delta one PINNED=false\n"
+                      + "REMOVED 40 10\n"
+                      + "UNPIN 15 15");
+
+        resp = sendFull("GET SINCE 999999");
+        lines = resp.split("\n");
+        check("GET SINCE future version is FULL", lines.length > 1 && lines[1].endsWith(" FULL"), "got: " + resp);
+
+        checkStartsWith("GET SINCE non-integer", send("GET SINCE abc"), "ERROR INVALID_FORMAT");
+        checkStartsWith("GET SINCE missing version", send("GET SINCE"), "ERROR INVALID_FORMAT");
+
+        send("CLEAR"); // cleanup
+        disconnect();
+    }
+
+    // --- Section 19: Batch Commands ---
+
+    private void testBatchCommands(int port) throws Exception {
+        connect("localhost", port);
+        in.readLine(); // greeting
+        send("CLEAR");
+
+        out.print("POSTMANY 4\n10 10 red Batch one\n40 10 white Batch two\n500 10 red Off the board\n10 10 red Same spot\n");
+        out.flush();
+        checkResponse("POSTMANY lists only failed items", readFull(),
+                      "OK 2\nITEM 3 ERROR OUT_OF_BOUNDS\nITEM 4 ERROR COMPLETE_OVERLAP");
+        check("POSTMANY notes are on the board", sendFull("GET").startsWith("OK 2\n"), "expected 2 notes");
+
+        out.print("PINMANY 3\n15 15\n45 15\nnot a pin\n");
+        out.flush();
+        checkResponse("PINMANY with a malformed item", readFull(), "OK 1\nITEM 3 ERROR INVALID_FORMAT");
+        checkResponse("PINMANY pins are on the board", sendFull("GET PINS"), "OK 2\nPIN 15 15\nPIN 45 15");
+
+        out.print("UNPINMANY 2\n15 15\n45 15\n");
+        out.flush();
+        checkResponse("UNPINMANY all succeed", readFull(), "OK 0");
+
+        out.print("POSTMANY 3\n70 10 red " + "x".repeat(257) + "\n70 20\n70 30 red Kept\n");
+        out.flush();
+        checkResponse("POSTMANY rejects over-long and malformed items", readFull(),
+                      "OK 2\nITEM 1 ERROR INVALID_FORMAT\nITEM 2 ERROR INVALID_FORMAT");
+
+        checkResponse("Empty batch", send("POSTMANY 0"), "OK 0");
+        checkStartsWith("Batch without a count", send("POSTMANY"), "ERROR INVALID_FORMAT");
+        checkStartsWith("Batch over the item limit", send("PINMANY 1001"), "ERROR INVALID_FORMAT");
+
+        send("CLEAR"); // cleanup
+        disconnect();
+    }
+
+    // --- Section 20: MULTI / EXEC Transactions ---
+
+    private void testTransactions(int port) throws Exception {
+        connect("localhost", port);
+        in.readLine(); // greeting
+        send("CLEAR");
+
+        checkResponse("MULTI starts a transaction", send("MULTI"), "OK TRANSACTION_STARTED");
+        checkResponse("POST is queued", send("POST 10 10 red In a transaction"), "OK QUEUED");
+        checkResponse("PIN is queued", send("PIN 15 15"), "OK QUEUED");
+        checkResponse("GET is queued", send("GET PINS"), "OK QUEUED");
+        checkStartsWith("Nested MULTI", send("MULTI"), "ERROR INVALID_FORMAT");
+        checkResponse("EXEC answers every queued command", sendFull("EXEC"),
+                      "OK 4\nOK NOTE_POSTED\nOK PIN_ADDED\nOK 1\nPIN 15 15");
+        check("EXEC applied the commands", sendFull("GET").startsWith("OK 1\n"), "expected 1 note");
+
+        send("MULTI");
+        send("POST 40 10 white Never posted");
+        checkResponse("DISCARD drops the queue", send("DISCARD"), "OK TRANSACTION_DISCARDED");
+        check("Discarded POST not applied", sendFull("GET").startsWith("OK 1\n"), "expected 1 note");
+
+        send("MULTI");
+        send("POST 500 10 red Off the board");
+        checkResponse("Failed command answered in EXEC", sendFull("EXEC"), "OK 1\nERROR OUT_OF_BOUNDS");
+
+        // 300 commands of about 4 KB go past the 1 MiB a transaction may queue
+        send("MULTI");
+        String big = "GET refersTo=" + "x".repeat(4000);
+        for (int i = 0; i < 300; i++)
+            out.println(big);
+        String first = in.readLine(), last = first;
+        for (int i = 1; i < 300; i++)
+            last = in.readLine();
+        checkResponse("Transaction queues commands within its size limit", first, "OK QUEUED");
+        checkStartsWith("Transaction rejects commands past its size limit", last, "ERROR INVALID_FORMAT");
+        checkResponse("Oversized transaction can be discarded", send("DISCARD"), "OK TRANSACTION_DISCARDED");
+
+        checkStartsWith("EXEC without MULTI", send("EXEC"), "ERROR INVALID_FORMAT");
+        checkStartsWith("DISCARD without MULTI", send("DISCARD"), "ERROR INVALID_FORMAT");
+        checkStartsWith("MULTI with parameters", send("MULTI now"), "ERROR INVALID_FORMAT");
+
+        send("CLEAR"); // cleanup
+        disconnect();
+    }
 }
@@ -5,7 +5,11 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /*
 BBoardClient class is the main network client for the BBoard protocol
@@ -23,6 +27,10 @@ public class BBoardClient {
         void displayError(String errorCode);
 
         void refreshBoard(List<NoteData> notes);
+
+        // Pins on the board as [x, y], only sent while subscribed
+        default void refreshPins(List<int[]> pins) {
+        }
     }
 
     // Hold note data for the UI
@@ -47,6 +55,27 @@ public class BBoardClient {
     private BufferedReader in;
     private PrintWriter out;
 
+    // Number of pipelined commands written before their responses are read back
+    private static final int PIPELINE_WINDOW = 256;
+    // Most items the server takes in one POSTMANY / PINMANY / UNPINMANY
+    private static final int MAX_BATCH_ITEMS = 100_000;
+    private static final int CONNECT_TIMEOUT_MS = 3_000; // 3 seconds timeout
+
+    private String host;
+    private int port;
+
+    // SUBSCRIBE connection: receives the board once, then pushed change events
+    private Socket subSocket;
+    private BufferedReader subIn;
+    private PrintWriter subOut;
+    private volatile boolean subscribed = false;
+    // Board kept up to date from pushed events or GET SINCE deltas, guarded by liveNotes.
+    // Notes are keyed by packed position since no two notes can share an (x, y)
+    private final Map<Long, NoteData> liveNotes = new LinkedHashMap<>();
+    private final Set<Long> livePins = new LinkedHashSet<>();
+    // Board version the local copy matches, -1 before the first GET SINCE
+    private long syncedVersion = -1;
+
     // Constructor
     public BBoardClient() {
     }
@@ -66,9 +95,10 @@ public class BBoardClient {
     public boolean connect(String host, int port) {
 
         try {
-            int connectTimeoutMs = 3_000; // 3 seconds timeout
+            this.host = host;
+            this.port = port;
             socket = new Socket();
-            socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
 
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
@@ -126,6 +156,169 @@ public class BBoardClient {
         return socket != null && socket.isConnected() && !socket.isClosed();
     }
 
+    /* Subscription */
+    // Opens a second connection that SUBSCRIBEs to the board: it receives the whole board once,
+    // then the server pushes each change and the local copy is updated, so polling can be turned off.
+    // Returns false if the server does not support it, the caller should keep polling then
+    public boolean subscribe() {
+        if (!isConnected())
+            return false;
+        if (subscribed)
+            return true;
+
+        try {
+            subSocket = new Socket();
+            subSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            subIn = new BufferedReader(new InputStreamReader(subSocket.getInputStream()));
+            subOut = new PrintWriter(new OutputStreamWriter(subSocket.getOutputStream()), true);
+
+            if (subIn.readLine() == null) // greeting
+                throw new IOException("Server closed connection");
+            subOut.println("SUBSCRIBE");
+            readSubscribeSnapshot();
+            subscribed = true;
+            publishLiveBoard();
+
+            Thread t = new Thread(this::readEvents, "bboard-subscribe");
+            t.setDaemon(true);
+            t.start();
+            return true;
+        } catch (Exception e) {
+            closeSubscription();
+            return false;
+        }
+    }
+
+    // Checks if the board is being kept up to date by pushed events
+    public boolean isSubscribed() {
+        return subscribed;
+    }
+
+    // Reads the SUBSCRIBE response ("OK n" then NOTE and PIN lines) into the local board
+    private void readSubscribeSnapshot() throws IOException {
+        String first = subIn.readLine();
+        if (first == null || !first.startsWith("OK "))
+            throw new IOException("SUBSCRIBE rejected: " + first);
+
+        int count = Integer.parseInt(first.substring(3).trim());
+        synchronized (liveNotes) {
+            liveNotes.clear();
+            livePins.clear();
+            syncedVersion = -1;
+            for (int i = 0; i < count; i++) {
+                String line = subIn.readLine();
+                if (line == null)
+                    throw new IOException("Server closed connection");
+                applyLine(line);
+            }
+        }
+    }
+
+    // Applies pushed events until the subscription connection closes.
+    // The GUI is refreshed once per burst of events rather than once per event
+    private void readEvents() {
+        try {
+            String line;
+            while ((line = subIn.readLine()) != null) {
+                if (line.equals("EVENT RESYNC")) {
+                    // We fell too far behind and were dropped, start again from a fresh snapshot
+                    subOut.println("SUBSCRIBE");
+                    readSubscribeSnapshot();
+                } else if (line.startsWith("EVENT ")) {
+                    synchronized (liveNotes) {
+                        applyLine(line.substring(6));
+                    }
+                }
+
+                if (!subIn.ready())
+                    publishLiveBoard();
+            }
+        } catch (Exception ignored) {
+        }
+        closeSubscription();
+    }
+
+    // Applies one snapshot / delta line or event body (without the "EVENT " prefix) to the local board
+    private void applyLine(String line) {
+        if (line.startsWith("NOTE ")) {
+            // New note, or new pinned status for the note at that position
+            NoteData note = parseNote(line);
+            if (note != null)
+                liveNotes.put(key(note.x, note.y), note);
+        } else if (line.startsWith("PIN ") || line.startsWith("UNPIN ") || line.startsWith("REMOVED ")) {
+            String[] parts = line.split("\\s+");
+            long pos = key(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            if (parts[0].equals("PIN"))
+                livePins.add(pos);
+            else if (parts[0].equals("UNPIN"))
+                livePins.remove(pos);
+            else
+                liveNotes.remove(pos);
+        } else if (line.equals("SHAKE")) {
+            liveNotes.values().removeIf(note -> !note.pinned);
+        } else if (line.equals("CLEAR")) {
+            liveNotes.clear();
+            livePins.clear();
+        }
+    }
+
+    // Hands the local board to the GUI
+    private void publishLiveBoard() {
+        if (gui == null)
+            return;
+        List<NoteData> notes;
+        List<int[]> pins = new ArrayList<>();
+        synchronized (liveNotes) {
+            notes = new ArrayList<>(liveNotes.values());
+            for (long pin : livePins)
+                pins.add(new int[] { (int) (pin >> 32), (int) pin });
+        }
+        gui.refreshBoard(notes);
+        gui.refreshPins(pins);
+    }
+
+    /* Delta sync */
+    // Brings the local board up to date with GET SINCE, downloading only what changed since the
+    // last sync instead of the whole board. Not needed while subscribed
+    public void syncBoard() {
+        if (!isConnected() || subscribed)
+            return;
+        long since;
+        synchronized (liveNotes) {
+            since = Math.max(0, syncedVersion);
+        }
+        sendRequest("GET SINCE " + since);
+    }
+
+    // Applies a GET SINCE response: "VERSION v DELTA|FULL" followed by changed (or all) notes and pins
+    private void applyDelta(List<String> lines) {
+        if (lines.size() < 2 || !lines.get(1).startsWith("VERSION "))
+            return;
+        String[] header = lines.get(1).split("\\s+");
+
+        synchronized (liveNotes) {
+            if (header[2].equals("FULL") || syncedVersion < 0) {
+                liveNotes.clear();
+                livePins.clear();
+            }
+            for (int i = 2; i < lines.size(); i++)
+                applyLine(lines.get(i));
+            syncedVersion = Long.parseLong(header[1]);
+        }
+        publishLiveBoard();
+    }
+
+    // Closes the subscription connection
+    private void closeSubscription() {
+        subscribed = false;
+        try {
+            if (subSocket != null)
+                subSocket.close();
+        } catch (Exception ignored) {
+        }
+        subSocket = null;
+    }
+
     /* Send request */
     public void sendRequest(String cmd) {
 
@@ -137,74 +330,156 @@ public class BBoardClient {
             out.println(cmd);
             out.flush();
 
-            // Get the first line of response
-            String first = in.readLine();
-            if (first == null)
-                throw new IOException("Server closed connection");
+            if (handleResponse(cmd, readResponse()) && !subscribed)
+                autoRefresh();
+        } catch (Exception e) {
+            if (gui != null)
+                gui.displayError("CONNECTION_ERROR");
+            cleanup();
+        }
 
-            StringBuilder fullResponse = new StringBuilder(first);
-
-            String[] p = first.trim().split("\\s+");
-            if (p.length == 2 && p[0].equals("OK")) {
-                try {
-                    int count = Integer.parseInt(p[1]);
-                    for (int i = 0; i < count; i++) {
-                        String next = in.readLine();
-                        if (next == null)
-                            break;
-                        fullResponse.append("\n").append(next);
-                    }
-                } catch (NumberFormatException ignored) {
-                }
-            }
+    }
 
-            List<String> lines = parseMultiLine(fullResponse.toString());
-            if (gui != null)
-                gui.updateStatus(cmd, lines);
+    // Sends a batch of commands without waiting for each response (pipelining).
+    // Commands are written a window at a time with one flush, responses are read back in order,
+    // and the board is refreshed once at the end instead of after every change.
+    public void sendPipelined(List<String> cmds) {
 
-            if (!lines.isEmpty()) {
-                String statusLine = lines.get(0);
+        if (!isConnected())
+            return;
 
-                // Send error code to the UI if something went wrong
-                if (statusLine.startsWith("ERROR ")) {
-                    String code = statusLine.substring(6).split("\\s+", 2)[0];
-                    if (gui != null)
-                        gui.displayError(code);
-                    return;
-                }
+        try {
+            boolean changed = false;
+            for (int start = 0; start < cmds.size() && isConnected(); start += PIPELINE_WINDOW) {
+                int end = Math.min(cmds.size(), start + PIPELINE_WINDOW);
+                for (int i = start; i < end; i++)
+                    out.println(cmds.get(i));
+                out.flush();
+
+                for (int i = start; i < end && isConnected(); i++)
+                    changed |= handleResponse(cmds.get(i), readResponse());
+            }
 
-                // Trigger a refresh if something changes
-                if (statusLine.equals("OK NOTE_POSTED") || statusLine.equals("OK PIN_ADDED")
-                        || statusLine.equals("OK PIN_REMOVED") || statusLine.equals("OK SHAKE_COMPLETE")
-                        || statusLine.equals("OK CLEAR_COMPLETE")) {
-                    autoRefresh();
-                    return;
-                }
+            if (changed && !subscribed)
+                autoRefresh();
+        } catch (Exception e) {
+            if (gui != null)
+                gui.displayError("CONNECTION_ERROR");
+            cleanup();
+        }
+    }
 
-                // GET command: parse the notes and update the canvas
-                if (statusLine.startsWith("OK ") && cmd.startsWith("GET") && !cmd.equals("GET PINS")) {
-                    List<NoteData> notes = parseNotes(lines);
-                    if (gui != null)
-                        gui.refreshBoard(notes);
-                }
+    // Sends many POSTs, PINs or UNPINs (command) as POSTMANY / PINMANY / UNPINMANY batches: one request and one
+    // response per batch instead of one per item. items are the single commands' arguments ("x y color message"
+    // or "x y"). The board is refreshed once at the end
+    public void sendBatch(String command, List<String> items) {
 
-                if (statusLine.equals("OK DISCONNECTING")) {
-                    cleanup();
-                }
+        if (!isConnected())
+            return;
+
+        try {
+            boolean changed = false;
+            for (int start = 0; start < items.size() && isConnected(); start += MAX_BATCH_ITEMS) {
+                int end = Math.min(items.size(), start + MAX_BATCH_ITEMS);
+                String header = command + "MANY " + (end - start);
+                out.println(header);
+                for (int i = start; i < end; i++)
+                    out.println(items.get(i));
+                out.flush();
+
+                // "OK n" lists only the n items that failed
+                List<String> lines = readResponse();
+                handleResponse(header, lines);
+                changed |= !lines.isEmpty() && lines.get(0).startsWith("OK ") && lines.size() - 1 < end - start;
             }
+
+            if (changed && !subscribed)
+                autoRefresh();
         } catch (Exception e) {
             if (gui != null)
                 gui.displayError("CONNECTION_ERROR");
             cleanup();
         }
+    }
+
+    // Reads one full response: the status line plus any "OK <count>" data lines
+    private List<String> readResponse() throws IOException {
+        // Get the first line of response
+        String first = in.readLine();
+        if (first == null)
+            throw new IOException("Server closed connection");
+
+        StringBuilder fullResponse = new StringBuilder(first);
 
+        String[] p = first.trim().split("\\s+");
+        if (p.length == 2 && p[0].equals("OK")) {
+            try {
+                int count = Integer.parseInt(p[1]);
+                for (int i = 0; i < count; i++) {
+                    String next = in.readLine();
+                    if (next == null)
+                        break;
+                    fullResponse.append("\n").append(next);
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        return parseMultiLine(fullResponse.toString());
     }
 
-    // Grabs the latest notes so the UI can be updated
+    // Passes a response to the UI, returns true if the command changed the board
+    private boolean handleResponse(String cmd, List<String> lines) {
+        if (gui != null)
+            gui.updateStatus(cmd, lines);
+
+        if (lines.isEmpty())
+            return false;
+
+        String statusLine = lines.get(0);
+
+        // Send error code to the UI if something went wrong
+        if (statusLine.startsWith("ERROR ")) {
+            String code = statusLine.substring(6).split("\\s+", 2)[0];
+            if (gui != null)
+                gui.displayError(code);
+            return false;
+        }
+
+        // Trigger a refresh if something changes
+        if (statusLine.equals("OK NOTE_POSTED") || statusLine.equals("OK PIN_ADDED")
+                || statusLine.equals("OK PIN_REMOVED") || statusLine.equals("OK SHAKE_COMPLETE")
+                || statusLine.equals("OK CLEAR_COMPLETE")) {
+            return true;
+        }
+
+        // GET SINCE: apply the changes to the local board
+        if (statusLine.startsWith("OK ") && cmd.startsWith("GET SINCE ")) {
+            applyDelta(lines);
+            return false;
+        }
+
+        // GET command: parse the notes and update the canvas
+        if (statusLine.startsWith("OK ") && cmd.startsWith("GET") && !cmd.equals("GET PINS")) {
+            List<NoteData> notes = parseNotes(lines);
+            if (gui != null)
+                gui.refreshBoard(notes);
+        }
+
+        if (statusLine.equals("OK DISCONNECTING")) {
+            cleanup();
+        }
+        return false;
+    }
+
+    // Grabs the latest notes so the UI can be updated, an unfiltered view only needs the changes
     private void autoRefresh() {
         if (!isConnected())
             return;
-        sendRequest(lastGetNotesCommand != null ? lastGetNotesCommand : "GET");
+        if (lastGetNotesCommand == null || lastGetNotesCommand.equals("GET"))
+            syncBoard();
+        else
+            sendRequest(lastGetNotesCommand);
     }
 
     /* Helper methods */
@@ -219,34 +494,48 @@ public class BBoardClient {
     private List<NoteData> parseNotes(List<String> lines) {
         List<NoteData> result = new ArrayList<>();
         for (int i = 1; i < lines.size(); i++) {
-            String l = lines.get(i).trim();
-            if (!l.startsWith("NOTE "))
-                continue;
-            try {
-                String[] parts = l.split("\\s+", 5);
-                if (parts.length < 5)
-                    continue;
-                int x = Integer.parseInt(parts[1]);
-                int y = Integer.parseInt(parts[2]);
-                String color = parts[3];
-                String rest = parts[4];
-                boolean pinned = false;
-                String message = rest;
-                int idx = rest.lastIndexOf(" PINNED=");
-                if (idx >= 0) {
-                    message = rest.substring(0, idx);
-                    String pv = rest.substring(idx + " PINNED=".length());
-                    pinned = pv.startsWith("true");
-                }
-                result.add(new NoteData(x, y, color, message, pinned));
-            } catch (Exception ignored) {
-            }
+            NoteData note = parseNote(lines.get(i));
+            if (note != null)
+                result.add(note);
         }
         return result;
     }
 
+    // Parses one "NOTE x y color message PINNED=..." line, null if it is not one
+    private NoteData parseNote(String line) {
+        String l = line.trim();
+        if (!l.startsWith("NOTE "))
+            return null;
+        try {
+            String[] parts = l.split("\\s+", 5);
+            if (parts.length < 5)
+                return null;
+            int x = Integer.parseInt(parts[1]);
+            int y = Integer.parseInt(parts[2]);
+            String color = parts[3];
+            String rest = parts[4];
+            boolean pinned = false;
+            String message = rest;
+            int idx = rest.lastIndexOf(" PINNED=");
+            if (idx >= 0) {
+                message = rest.substring(0, idx);
+                String pv = rest.substring(idx + " PINNED=".length());
+                pinned = pv.startsWith("true");
+            }
+            return new NoteData(x, y, color, message, pinned);
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
+    // Packs a position into one key
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
     // Cleans up the connection, closes streams and socket
     private void cleanup() {
+        closeSubscription();
         try {
             if (out != null)
                 out.close();
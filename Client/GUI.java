@@ -274,11 +274,17 @@ public class GUI extends JFrame {
 
         new Thread(() -> {
             boolean success = client.connect(host, port);
+            // Prefer server-pushed updates, fall back to polling if the server does not support SUBSCRIBE
+            boolean subscribed = success && client.subscribe();
             SwingUtilities.invokeLater(() -> {
                 if (success) {
                     appendLog("CLIENT: Connected successfully");
                     setConnected(true);
-                    startAutoRefresh();
+                    if (subscribed) {
+                        appendLog("CLIENT: Subscribed to board changes");
+                    } else {
+                        startAutoRefresh();
+                    }
                 } else {
                     appendLog("CLIENT: Connection failed");
                     setConnected(false);
@@ -302,6 +308,7 @@ public class GUI extends JFrame {
                 setConnected(false);
                 greetingLabel.setText("Not connected");
                 visualPanel.setNotes(new ArrayList<>());
+                visualPanel.setPins(new ArrayList<>());
                 appendLog("CLIENT: Disconnected");
             });
         }).start();
@@ -428,7 +435,7 @@ public class GUI extends JFrame {
             if (client.isConnected()) {
                 new Thread(() -> {
                     suppressLogging = true;  
-                    client.sendRequest("GET");
+                    client.syncBoard(); // GET SINCE: only what changed since the last refresh
                     suppressLogging = false;
                 }).start();
             }
@@ -555,6 +562,12 @@ public class GUI extends JFrame {
                 visualPanel.setNotes(views);
             });
         }
+
+        // Refresh the pins (subscription only)
+        @Override
+        public void refreshPins(List<int[]> pins) {
+            SwingUtilities.invokeLater(() -> visualPanel.setPins(pins));
+        }
     }
 
     // Main method
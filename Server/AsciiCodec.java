@@ -0,0 +1,380 @@
+package Server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+AsciiCodec class reads requests and writes responses as bytes, without a Reader/Writer decoding every character.
+The protocol is ASCII apart from note messages, so a request line is framed in the receive buffer and handed to
+RequestParser as a Line view over its bytes; verbs, coordinates and colors are parsed from the bytes and only a
+POST message or refersTo= text is ever decoded into a String. Responses are encoded straight into a byte buffer,
+constant status lines (OK NOTE_POSTED, ERROR OUT_OF_BOUNDS, ...) are copied from arrays encoded once.
+The charset and line separator are the platform defaults, as the Reader/Writer used. The byte path needs a
+charset where ASCII bytes are ASCII characters; with any other default every line is decoded as before.
+*/
+
+public final class AsciiCodec {
+    static final Charset CHARSET = Charset.defaultCharset();
+    static final String LINE_SEPARATOR = System.lineSeparator();
+    // Longest request line accepted. The longest valid request is a POST (or POSTMANY item) with a message of
+    // NoteStore.MAX_MESSAGE_LENGTH characters, at most 3 bytes each, and this leaves room for its other words
+    static final int MAX_LINE_BYTES = 4 * 1024;
+    private static final byte[] SEPARATOR_BYTES = LINE_SEPARATOR.getBytes(CHARSET);
+
+    private static final boolean ASCII_COMPATIBLE = CHARSET.equals(StandardCharsets.UTF_8)
+            || CHARSET.equals(StandardCharsets.US_ASCII) || CHARSET.equals(StandardCharsets.ISO_8859_1);
+    // Note messages are stored in UTF-8, so with a UTF-8 default their bytes are written as they are
+    static final boolean UTF8 = CHARSET.equals(StandardCharsets.UTF_8);
+
+    // Single-line responses the board and parser return as constants, with their terminator
+    private static final Map<String, byte[]> CONSTANT_LINES = new HashMap<>();
+    static {
+        String[] constants = {
+                "OK NOTE_POSTED", "OK PIN_ADDED", "OK PIN_REMOVED", "OK SHAKE_COMPLETE", "OK CLEAR_COMPLETE",
+                "OK UNSUBSCRIBED", "OK DISCONNECTING", "OK QUEUED", "OK TRANSACTION_STARTED", "OK 0", "OK 1",
+                "ERROR INVALID_FORMAT", "ERROR OUT_OF_BOUNDS", "ERROR COLOR_NOT_SUPPORTED", "ERROR COMPLETE_OVERLAP",
+                "ERROR NO_NOTE_AT_COORDINATE", "ERROR PIN_NOT_FOUND",
+        };
+        for (String line : constants)
+            CONSTANT_LINES.put(line, (line + LINE_SEPARATOR).getBytes(CHARSET));
+    }
+
+    private AsciiCodec() {
+    }
+
+    // The pre-encoded bytes of a constant response line, null for any other line
+    static byte[] constantLine(CharSequence s) {
+        return s instanceof String ? CONSTANT_LINES.get(s) : null;
+    }
+
+    // Decodes encoded response lines (each ending in the line separator) and writes them to out one at a time
+    static void decodeLines(byte[] bytes, ResponseSink out) {
+        int start = 0;
+        for (int i = 0; i + SEPARATOR_BYTES.length <= bytes.length; i++) {
+            if (bytes[i] != SEPARATOR_BYTES[0] || !separatorAt(bytes, i))
+                continue;
+            out.line(new String(bytes, start, i - start, CHARSET));
+            i += SEPARATOR_BYTES.length - 1;
+            start = i + 1;
+        }
+    }
+
+    private static boolean separatorAt(byte[] bytes, int i) {
+        for (int k = 1; k < SEPARATOR_BYTES.length; k++) {
+            if (bytes[i + k] != SEPARATOR_BYTES[k])
+                return false;
+        }
+        return true;
+    }
+
+    // The request to run for a received line: the line itself, stripped by the parser like any request.
+    // Requests used to go through String.strip() and then the parser's String.trim(), which between them drop
+    // every char <= ' ' at either end, control characters included, and the parser's trim in RequestTokenizer
+    // still does that. What strip() alone removed is non-ASCII whitespace, so a line that could start or end
+    // with some is decoded and stripped first, and every line behaves exactly as it did before
+    static CharSequence request(Line line) {
+        if (!ASCII_COMPATIBLE)
+            return line.toString().strip();
+        int start = 0, end = line.length();
+        while (start < end && line.charAt(start) <= ' ')
+            start++;
+        while (end > start && line.charAt(end - 1) <= ' ')
+            end--;
+        if (start < end && (line.charAt(start) >= 0x80 || line.charAt(end - 1) >= 0x80))
+            return line.toString().strip();
+        return line;
+    }
+
+    /* Line */
+    // A received line as a CharSequence over its bytes, one char per byte. Reused for every line, so it is
+    // only valid until the next one is read. Copying part of it out (subSequence, toString) decodes that part
+    static final class Line implements CharSequence {
+        private byte[] bytes;
+        private int offset, length;
+
+        void set(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[offset + index] & 0xFF);
+        }
+
+        @Override
+        public String subSequence(int start, int end) {
+            return new String(bytes, offset + start, end - start, CHARSET);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, offset, length, CHARSET);
+        }
+    }
+
+    /* Line reader */
+    // Frames lines out of a byte stream the way BufferedReader.readLine() does: a line ends at '\n', '\r' or "\r\n"
+    static final class LineReader {
+        private final InputStream in;
+        private byte[] buffer;
+        private int position, limit;
+        // Set after a '\r' so that a following '\n' is not read as a second (empty) line
+        private boolean skipLF = false;
+        // Set once a line longer than MAX_LINE_BYTES was found, see readLine()
+        private boolean tooLong = false;
+        private final Line line = new Line();
+
+        LineReader(InputStream in, int bufferSize) {
+            this.in = in;
+            this.buffer = new byte[bufferSize];
+        }
+
+        // Returns the next line without its terminator, or null at the end of the stream. Like readLine(),
+        // a final unterminated line is still returned. The line is only valid until the next call.
+        // A line longer than MAX_LINE_BYTES is not read in full: null is returned and tooLong() is true from then on
+        Line readLine() throws IOException {
+            if (tooLong)
+                return null;
+            if (skipLF) {
+                if (position >= limit && !fill())
+                    return null;
+                skipLF = false;
+                if (buffer[position] == '\n')
+                    position++;
+            }
+
+            int scan = position;
+            while (true) {
+                for (; scan < limit; scan++) {
+                    byte b = buffer[scan];
+                    if (b == '\n' || b == '\r') {
+                        if (scan - position > MAX_LINE_BYTES) {
+                            tooLong = true;
+                            return null;
+                        }
+                        line.set(buffer, position, scan - position);
+                        position = scan + 1;
+                        skipLF = (b == '\r');
+                        return line;
+                    }
+                }
+
+                int scanned = scan - position;
+                if (scanned > MAX_LINE_BYTES) {
+                    tooLong = true;
+                    return null;
+                }
+                if (!fill()) {
+                    if (position >= limit)
+                        return null;
+                    line.set(buffer, position, limit - position);
+                    position = limit;
+                    return line;
+                }
+                scan = position + scanned;
+            }
+        }
+
+        boolean tooLong() { return tooLong; }
+
+        // Checks if more input can be read without blocking, as BufferedReader.ready() does
+        boolean ready() throws IOException {
+            if (skipLF && position < limit && buffer[position] == '\n') {
+                position++;
+                skipLF = false;
+            }
+            return position < limit || in.available() > 0;
+        }
+
+        // Moves the unread bytes to the front (growing the buffer if they fill it) and reads more after them.
+        // Returns false at the end of the stream
+        private boolean fill() throws IOException {
+            int unread = limit - position;
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, unread);
+                position = 0;
+                limit = unread;
+            }
+            // Only grows for a buffer smaller than MAX_LINE_BYTES, a longer line is cut off by readLine()
+            if (limit == buffer.length) {
+                byte[] bigger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, bigger, 0, limit);
+                buffer = bigger;
+            }
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n < 0)
+                return false;
+            limit += n;
+            return true;
+        }
+    }
+
+    /* Encoder */
+    // Response lines encoded into a growable byte buffer
+    static class Encoder {
+        protected byte[] buffer;
+        protected int size = 0;
+
+        Encoder(int initialSize) {
+            this.buffer = new byte[initialSize];
+        }
+
+        // Appends a line and its terminator. ASCII text is copied a byte per char, anything else goes
+        // through the charset
+        void line(CharSequence s) {
+            byte[] constant = constantLine(s);
+            if (constant != null) {
+                write(constant, 0, constant.length);
+                return;
+            }
+            text(s);
+            endLine();
+        }
+
+        // Appends part of a line, encoded as line() does
+        void text(CharSequence s) {
+            int n = s.length();
+            ensure(n + SEPARATOR_BYTES.length);
+            int start = size;
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80 || !ASCII_COMPATIBLE) {
+                    size = start;
+                    byte[] encoded = s.toString().getBytes(CHARSET);
+                    write(encoded, 0, encoded.length);
+                    return;
+                }
+                buffer[size++] = (byte) c;
+            }
+        }
+
+        // Appends a number as part of a line
+        void number(int n) {
+            ensure(11);
+            if (n < 0) {
+                if (n == Integer.MIN_VALUE) {
+                    text(Integer.toString(n));
+                    return;
+                }
+                buffer[size++] = '-';
+                n = -n;
+            }
+            int digits = 1;
+            for (int rest = n / 10; rest > 0; rest /= 10)
+                digits++;
+            for (int i = size + digits - 1; i >= size; i--) {
+                buffer[i] = (byte) ('0' + n % 10);
+                n /= 10;
+            }
+            size += digits;
+        }
+
+        // Ends the line built with text() / number() / write()
+        void endLine() {
+            write(SEPARATOR_BYTES, 0, SEPARATOR_BYTES.length);
+        }
+
+        // Appends bytes that are already encoded
+        void write(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        int size() { return size; }
+
+        // A copy of the encoded bytes
+        byte[] toByteArray() {
+            byte[] bytes = new byte[size];
+            System.arraycopy(buffer, 0, bytes, 0, size);
+            return bytes;
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                byte[] bigger = new byte[Math.max(buffer.length * 2, size + extra)];
+                System.arraycopy(buffer, 0, bigger, 0, size);
+                buffer = bigger;
+            }
+        }
+    }
+
+    /* Line writer */
+    // An Encoder that writes to a stream once it holds bufferSize bytes and on flush(). Like PrintWriter it
+    // never throws: after a failed write the rest of the output is dropped and checkError() returns true
+    static final class LineWriter extends Encoder {
+        private final OutputStream out;
+        private final int bufferSize;
+        private boolean error = false;
+
+        LineWriter(OutputStream out, int bufferSize) {
+            super(bufferSize);
+            this.out = out;
+            this.bufferSize = bufferSize;
+        }
+
+        @Override
+        void endLine() {
+            super.endLine();
+            if (size >= bufferSize)
+                drain();
+        }
+
+        // Large blocks (cached responses) go straight to the stream instead of through the buffer
+        @Override
+        void write(byte[] bytes, int offset, int length) {
+            if (size + length <= bufferSize) {
+                super.write(bytes, offset, length);
+                return;
+            }
+            drain();
+            if (error)
+                return;
+            try {
+                out.write(bytes, offset, length);
+            } catch (IOException e) {
+                error = true;
+            }
+        }
+
+        void flush() {
+            drain();
+            if (error)
+                return;
+            try {
+                out.flush();
+            } catch (IOException e) {
+                error = true;
+            }
+        }
+
+        boolean checkError() { return error; }
+
+        private void drain() {
+            if (size > 0 && !error) {
+                try {
+                    out.write(buffer, 0, size);
+                } catch (IOException e) {
+                    error = true;
+                }
+            }
+            size = 0;
+        }
+    }
+}
@@ -2,11 +2,16 @@ package Server;
 
 // Imports 
 import java.awt.Color;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /*
@@ -17,8 +22,15 @@ import java.util.List;
  * - Configure dimensions/colors (base states)
  * - Start TCP server socket
  * - Create new ClientHandler Threads for evry new connection
+ *   (or hand connections to NioServer event loops when -Dbboard.mode=nio,
+ *   or run each ClientHandler on a virtual thread when -Dbboard.mode=virtual)
  * 
  * Expected Run Command: java Server.BBoard <port> <board_w> <board_h> <note_w> <note_h> <color1> ... <colorN>
+ * Optional server mode: java -Dbboard.mode=nio|virtual [-Dbboard.nio.loops=N] [-Dbboard.stats=seconds] Server.BBoard ...
+ * Optional single-writer engine: java -Dbboard.engine=ring [-Dbboard.engine.wait=park|yield|spin] [-Dbboard.engine.ring=N] Server.BBoard ...
+ * Optional journal: java -Dbboard.journal=<file> [-Dbboard.journal.sync=off|batch|always] [-Dbboard.journal.sync.ms=N]
+ *                  [-Dbboard.journal.retain.mb=N] [-Dbboard.journal.retain.minutes=N] Server.BBoard ...
+ * Optional snapshots: java -Dbboard.snapshot=<file> [-Dbboard.snapshot.seconds=N] Server.BBoard ...
 */
 
 public class BBoard {
@@ -27,6 +39,19 @@ public class BBoard {
     private static final int MAX_BOARD_DIMENSION = 10000;
     private static final double MAX_NOTE_TO_BOARD_RATIO = 0.5;
 
+    // Server modes, selected with -Dbboard.mode (thread-per-client is the default)
+    private static final String MODE_THREAD = "thread";
+    private static final String MODE_NIO = "nio";
+    private static final String MODE_VIRTUAL = "virtual";
+    private static final int DEFAULT_VIRTUAL_STATS_SECONDS = 10;
+    // How often the journal is checked for compaction, and how long to wait after a compaction failed
+    private static final long COMPACTION_CHECK_MILLIS = 1000;
+    private static final long COMPACTION_RETRY_MILLIS = 60_000;
+
+    // Mutation engines, selected with -Dbboard.engine (mutations run on the handler threads by default)
+    private static final String ENGINE_NONE = "none";
+    private static final String ENGINE_RING = "ring";
+
     public static void main(String[] args) {
         int port;
         int boardWidth, noteWidth;
@@ -112,22 +137,234 @@ public class BBoard {
         // Initialize board
         Board board = new Board(boardWidth, boardHeight, noteWidth, noteHeight, boardColor);
 
+        // Restore the board from the latest snapshot and the journal's changes after it, when the server keeps them
+        String snapshotFile = System.getProperty("bboard.snapshot", "").trim();
+        String journalFile = System.getProperty("bboard.journal", "").trim();
+        Journal.SyncMode syncMode = Journal.SyncMode.parse(System.getProperty("bboard.journal.sync", "batch"));
+        if (syncMode == null) {
+            System.err.println("Error: Unknown journal sync mode \"" + System.getProperty("bboard.journal.sync")
+                    + "\". Expected off, batch or always.");
+            System.exit(1);
+            return;
+        }
+        int syncMillis = Integer.getInteger("bboard.journal.sync.ms", Journal.DEFAULT_SYNC_MILLIS);
+        if (syncMillis <= 0) {
+            System.err.println("Error: bboard.journal.sync.ms must be > 0.");
+            System.exit(1);
+            return;
+        }
+        int retainMb = Integer.getInteger("bboard.journal.retain.mb", Journal.DEFAULT_RETAIN_MB);
+        int retainMinutes = Integer.getInteger("bboard.journal.retain.minutes", Journal.DEFAULT_RETAIN_MINUTES);
+
+        Path snapshotPath = snapshotFile.isEmpty() ? null : Paths.get(snapshotFile);
+        Path journalPath = journalFile.isEmpty() ? null : Paths.get(journalFile);
+        Journal journal = null;
+        long replayed = 0;
+        long restoreStart = System.nanoTime();
+        try {
+            long journalFrom = -1;
+            if (snapshotPath != null)
+                journalFrom = SnapshotFile.load(snapshotPath, board,
+                        journalPath == null ? 0 : Journal.baseVersion(journalPath));
+            if (journalPath != null) {
+                replayed = Journal.replay(journalPath, board, journalFrom);
+                journal = Journal.open(journalPath, syncMode, syncMillis);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: Cannot restore the board: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        long restoreMillis = (System.nanoTime() - restoreStart) / 1_000_000;
+        if (journal != null) {
+            board.useJournal(journal);
+            startCompaction(board, journal, retainMb * 1024L * 1024L, retainMinutes * 60_000L);
+        }
+        if (snapshotPath != null || journal != null) {
+            // A snapshot or a compacted journal restores the board without its text index.
+            // GET refersTo= works before this is done, just without it
+            Thread indexer = new Thread(board::finishIndexes, "bboard-index");
+            indexer.setDaemon(true);
+            indexer.start();
+        }
+        if (snapshotPath != null)
+            startSnapshots(board, snapshotPath, Integer.getInteger("bboard.snapshot.seconds",
+                    SnapshotFile.DEFAULT_INTERVAL_SECONDS));
+        // On a normal shutdown a last snapshot is saved and whatever the journal still buffers is written
+        Journal shutdownJournal = journal;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (snapshotPath != null)
+                saveSnapshot(board, snapshotPath);
+            if (shutdownJournal != null)
+                shutdownJournal.close();
+        }, "bboard-shutdown"));
+
+        String mode = System.getProperty("bboard.mode", MODE_THREAD).trim().toLowerCase();
+        if (!mode.equals(MODE_THREAD) && !mode.equals(MODE_NIO) && !mode.equals(MODE_VIRTUAL)) {
+            System.err.println("Error: Unknown server mode \"" + mode + "\". Expected "
+                    + MODE_THREAD + ", " + MODE_NIO + " or " + MODE_VIRTUAL + ".");
+            System.exit(1);
+            return;
+        }
+
+        String engineName = System.getProperty("bboard.engine", ENGINE_NONE).trim().toLowerCase();
+        if (!engineName.equals(ENGINE_NONE) && !engineName.equals(ENGINE_RING)) {
+            System.err.println("Error: Unknown engine \"" + engineName + "\". Expected " + ENGINE_NONE + " or " + ENGINE_RING + ".");
+            System.exit(1);
+            return;
+        }
+        CommandEngine.WaitStrategy waitStrategy = CommandEngine.WaitStrategy.parse(
+                System.getProperty("bboard.engine.wait", CommandEngine.WaitStrategy.PARK.name()));
+        if (waitStrategy == null) {
+            System.err.println("Error: Unknown engine wait strategy \"" + System.getProperty("bboard.engine.wait")
+                    + "\". Expected park, yield or spin.");
+            System.exit(1);
+            return;
+        }
+
+        CommandEngine engine = null;
+        if (engineName.equals(ENGINE_RING)) {
+            engine = new CommandEngine(board, waitStrategy,
+                    Integer.getInteger("bboard.engine.ring", CommandEngine.DEFAULT_RING_SIZE));
+            board.useEngine(engine);
+        }
+
+        System.out.println("BBoard server listening on port " + port + " (" + mode + " mode)");
+        System.out.println("Board: " + boardWidth + "x" + boardHeight
+                + "  Note: " + noteWidth + "x" + noteHeight
+                + "  Colors: " + boardColor);
+        if (engine != null)
+            System.out.println("Engine: single writer, " + engine.ringSize() + " slot ring, "
+                    + engine.waitStrategy().name().toLowerCase() + " wait");
+        if (journal != null)
+            System.out.println("Journal: " + journalFile + ", " + journal.mode().name().toLowerCase() + " sync"
+                    + (journal.mode() == Journal.SyncMode.ALWAYS ? "" : " every " + journal.syncMillis() + " ms")
+                    + ", compacted past " + (retainMb > 0 ? retainMb + " MB" : "-") + " / "
+                    + (retainMinutes > 0 ? retainMinutes + " min" : "-") + " of changes");
+        if (snapshotPath != null || journal != null)
+            System.out.println("Restored: " + board.noteCount() + " notes at version " + board.version()
+                    + " (" + replayed + " journal changes replayed) in " + restoreMillis + " ms");
+
+        boolean virtual = mode.equals(MODE_VIRTUAL);
+        int statsSeconds = Integer.getInteger("bboard.stats", virtual ? DEFAULT_VIRTUAL_STATS_SECONDS : 0);
+        ServerStats.startReporter(mode, board, engine, statsSeconds, virtual);
+
         // Start server socket
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("BBoard server listening on port " + port);
-            System.out.println("Board: " + boardWidth + "x" + boardHeight
-                    + "  Note: " + noteWidth + "x" + noteHeight
-                    + "  Colors: " + boardColor);
+        try {
+            if (mode.equals(MODE_NIO)) {
+                int loops = Integer.getInteger("bboard.nio.loops", Runtime.getRuntime().availableProcessors());
+                new NioServer(port, board, loops).run();
+            } else if (virtual) {
+                runOnExecutor(port, board, newVirtualThreadExecutor());
+            } else {
+                runThreadPerClient(port, board);
+            }
+        } catch (Exception e) {
+            System.err.println("Fatal server error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Starts a daemon thread saving a snapshot every intervalSeconds when the board has changed since the last one.
+    // With an interval of 0 or less snapshots are only saved on shutdown
+    private static void startSnapshots(Board board, Path path, int intervalSeconds) {
+        if (intervalSeconds <= 0)
+            return;
+        Thread t = new Thread(() -> {
+            long saved = board.version();
+            while (true) {
+                try {
+                    Thread.sleep(intervalSeconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (board.version() != saved)
+                    saved = saveSnapshot(board, path);
+            }
+        }, "bboard-snapshot");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Starts a daemon thread compacting the journal whenever Journal.compactionDue() says so
+    private static void startCompaction(Board board, Journal journal, long maxTailBytes, long maxAgeMillis) {
+        if (maxTailBytes <= 0 && maxAgeMillis <= 0)
+            return;
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(COMPACTION_CHECK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!journal.compactionDue(maxTailBytes, maxAgeMillis))
+                    continue;
+                try {
+                    board.compactJournal();
+                } catch (IOException e) {
+                    System.err.println("Journal compaction error: " + e.getMessage());
+                    // Retried after a pause rather than on every check
+                    try {
+                        Thread.sleep(COMPACTION_RETRY_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }, "bboard-compactor");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Saves a snapshot, returns the version saved (or the board's version if it failed, so it is not retried
+    // until the board changes again)
+    private static long saveSnapshot(Board board, Path path) {
+        try {
+            return board.writeSnapshot(path);
+        } catch (IOException e) {
+            System.err.println("Snapshot error: " + e.getMessage());
+            return board.version();
+        }
+    }
 
+    // Classic accept loop, one ClientHandler thread per connection.
+    // SUBSCRIBE pushers run on a pool of daemon threads, reused as subscribers come and go
+    private static void runThreadPerClient(int port, Board board) throws Exception {
+        ExecutorService pushers = Executors.newCachedThreadPool(task -> {
+            Thread t = new Thread(task, "bboard-push");
+            t.setDaemon(true);
+            return t;
+        });
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                Thread t = new Thread(new ClientHandler(clientSocket, board));
+                Thread t = new Thread(new ClientHandler(clientSocket, board, pushers));
                 t.start();
             }
+        }
+    }
 
-        } catch (Exception e) {
-            System.err.println("Fatal server error: " + e.getMessage());
-            System.exit(1);
+    // Same accept loop, but each ClientHandler (and its SUBSCRIBE pusher) is submitted to an executor
+    private static void runOnExecutor(int port, Board board, ExecutorService executor) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                executor.execute(new ClientHandler(clientSocket, board, executor));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Looks up Executors.newVirtualThreadPerTaskExecutor (Java 21+) so the server still builds on older JDKs.
+    // Falls back to a cached platform-thread pool when virtual threads are not available.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Warning: virtual threads need Java 21+ (running " + Runtime.version()
+                    + ") — using a cached platform thread pool instead.");
+            return Executors.newCachedThreadPool();
         }
     }
 
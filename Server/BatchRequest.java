@@ -0,0 +1,58 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+BatchRequest class is a POSTMANY / PINMANY / UNPINMANY command whose item lines are still arriving.
+The command line names the operation and how many items follow ("POSTMANY <n>"); each of the next n lines
+on the connection is one item, written as that command's arguments ("x y color message" or "x y").
+The Session holds it until the last item arrives, then RequestParser applies them all in one critical section.
+Each item is checked against its command's format as it arrives: a malformed one, or one that would take the
+batch past MAX_BYTES, is kept only as a failed slot (null), so a batch never buffers more than MAX_BYTES.
+*/
+
+public class BatchRequest {
+    // Most items one batch may carry, bigger loads are sent as several batches
+    public static final int MAX_ITEMS = 1_000;
+    // Most item text one batch may buffer, counted as received (one char per byte for an ASCII-compatible
+    // charset). Room for MAX_ITEMS POSTs with 256 character ASCII messages
+    public static final int MAX_BYTES = 512 * 1024;
+
+    // The single-item command each item is run as: POST, PIN or UNPIN
+    public final String command;
+    public final int count;
+    private final List<String> items;
+    private int bytes;
+
+    // Initializes an empty batch of count items of the given command
+    public BatchRequest(String command, int count) {
+        this.command = command;
+        this.count = count;
+        this.items = new ArrayList<>(Math.min(count, 1024));
+    }
+
+    /* Getters */
+    // The items in order, null for each one rejected as it arrived
+    public List<String> getItems() { return this.items; }
+    public boolean isComplete() { return this.items.size() == this.count; }
+    // Items still to arrive
+    public int remaining() { return this.count - this.items.size(); }
+
+    /* Setters */
+    // Adds the next item line, or counts it as failed if it does not fit in MAX_BYTES.
+    // The line may be a reused view (AsciiCodec.Line), so it is copied
+    public void add(CharSequence item) {
+        if (this.bytes + item.length() > MAX_BYTES) {
+            reject();
+            return;
+        }
+        this.bytes += item.length();
+        this.items.add(item.toString());
+    }
+
+    // Counts the next item line as failed without keeping it
+    public void reject() {
+        this.items.add(null);
+    }
+}
@@ -1,10 +1,18 @@
 package Server;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 /*
  * Board class is the object that contains the board and the notes and pins.
@@ -17,7 +25,66 @@ public class Board {
     private int noteWidth;
     private int noteHeight;
     private List<String> validColors;
-    private List<Note> notes;
+    // Every note, as columns indexed by note id (see NoteStore). Ids follow posting order, so every index
+    // below lists notes in posting order by keeping its ids sorted
+    private NoteStore store;
+    // Note ids by packed (x, y) position (see key()), for exact-position lookups (POST's overlap check, GET SINCE)
+    private LongHashMap<Integer> noteIds;
+    // Note ids by grid cell, for the notes around a point (PIN, UNPIN, GET contains=)
+    private NoteGrid grid;
+    // Note ids by message trigram, for GET refersTo=
+    private NoteTextIndex textIndex;
+    // Notes with ids below this are in textIndex. A restored snapshot leaves it at 0 and finishIndexes() adds
+    // its notes (and any posted meanwhile) a chunk at a time; until it is done GET refersTo= checks every note
+    private int indexed = 0;
+    // Every pin on the board by packed (x, y) point, with the notes it pierces in posting order
+    private LongHashMap<PinnedPoint> pinIndex;
+    // The same pins by their line in the snapshot's pin list
+    private List<PinnedPoint> pinsBySlot;
+
+    // Bumped once by every mutation that changes the board, GET SINCE answers relative to it
+    private long version = 0;
+    // Which notes and pins changed in recent versions
+    private final ChangeLog changes = new ChangeLog(CHANGE_LOG_CAPACITY);
+    private static final int CHANGE_LOG_CAPACITY = 8192;
+    // Notes finishIndexes() adds per turn of the write lock
+    private static final int INDEX_CHUNK = 4096;
+
+    // Guards all board state: mutations take the write lock, queries share the read lock, and tiny
+    // queries (the current version) use an optimistic read that never blocks writers.
+    // The store's columns are only appended to under the write lock and read through volatile views (see NoteStore).
+    // StampedLock is not reentrant, so public methods lock exactly once and never call each other while locked.
+    // It parks waiting threads, so virtual-thread handlers blocking on it release their carrier thread.
+    // The lock is not split by board region: every change takes the next version and appends to the note ids,
+    // change log, journal and snapshot, in the one order GET SINCE, subscribers and journal replay depend on.
+    // Writes scale by sharing one hold between many commands instead (batches, EXEC, CommandEngine)
+    private final StampedLock lock = new StampedLock();
+    // Threads blocked waiting for the lock, StampedLock does not track this itself
+    private final AtomicInteger lockWaiters = new AtomicInteger();
+    // Thread inside exclusive(), holding the write lock. The board methods it calls see this and
+    // do not lock again. Only ever set and cleared by the owner itself, so no other thread can mistake it for its own
+    private Thread exclusiveOwner;
+
+    // Immutable copy of the board published after every mutation, plain GET and GET PINS read it without locking.
+    // It reads the notes through a view of the store, which later changes never touch; writers build the rest of the
+    // next one in pinnedWords / pinLines (sharing everything that did not change) and publish it once the whole
+    // mutation is applied, so readers never see half of a PIN, SHAKE or CLEAR
+    private volatile BoardSnapshot snapshot = BoardSnapshot.EMPTY;
+    // Pinned flag of every note by id, 64 to a word
+    private PersistentList<Long> pinnedWords = PersistentList.empty();
+    private PersistentList<String> pinLines = PersistentList.empty();
+
+    // Recent GET responses by query, each valid only at the version it was made at
+    private final ResponseCache responseCache =
+            new ResponseCache(ResponseCache.DEFAULT_MAX_ENTRIES, ResponseCache.DEFAULT_MAX_BYTES);
+
+    // Single-writer engine mutations are handed to, when the server runs with one (see CommandEngine)
+    private volatile CommandEngine engine;
+    // Write-ahead journal every change is appended to while the write lock is held, when the server keeps one
+    private volatile Journal journal;
+
+    // SUBSCRIBE registrations, told about every change while the lock is held
+    private final List<BoardListener> listeners = new CopyOnWriteArrayList<>();
 
     // Initializes the board dimensions, note size, and allowed colors
     public Board(int boardWidth, int boardHeight, int noteWidth, int noteHeight, List<String> validColors) {
@@ -26,19 +93,37 @@ public class Board {
         this.noteWidth = noteWidth;
         this.noteHeight = noteHeight;
         this.validColors = validColors;
-        this.notes = new ArrayList<>();
+        this.store = new NoteStore(validColors);
+        this.noteIds = new LongHashMap<>();
+        this.grid = new NoteGrid(boardWidth, boardHeight, noteWidth, noteHeight, store);
+        this.pinIndex = new LongHashMap<>();
+        this.textIndex = new NoteTextIndex(store);
+        this.pinsBySlot = new ArrayList<>();
+    }
+
+    // A pin point on the board: the ids of the notes it pierces and where its line sits in the snapshot
+    private static class PinnedPoint {
+        final int x, y;
+        final IntList notes = new IntList(2);
+        int slot = -1; // no line yet
+
+        PinnedPoint(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
     }
 
     /* Helper methods */
 
-    // Checks if a note already exists at the exact same x and y coordinates 
+    // Checks if a note already exists at the exact same x and y coordinates
     private boolean completelyOverlaps(int x, int y) {
-        for (Note note : this.notes) {
-            if (note.getX() == x && note.getY() == y) {
-                return true;
-            }
-        }
-        return false;
+        return noteIds.containsKey(key(x, y));
+    }
+
+    // Id of the note at a packed position, or -1
+    private int noteAt(long key) {
+        Integer id = noteIds.get(key);
+        return id != null ? id : -1;
     }
 
     // Validates if a note of fits within the board boundaries 
@@ -51,139 +136,552 @@ public class Board {
         return x >= 0 && y >= 0 && x < this.boardWidth && y < this.boardHeight;
     }
 
-    // Builds the response for a GET command
-    private String buildGetResponse(List<Note> results) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("OK ").append(results.size());
+    private static long[] toArray(List<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = list.get(i);
+        return array;
+    }
 
-        for (Note note : results) {
-            sb.append("\nNOTE ").append(note.getX()).append(" ").append(note.getY()).append(" ").append(note.getColor())
-                    .append(" ").append(note.getMessage()).append(" PINNED=").append(note.getPinnedStatus());
+    // Collects the ids of the notes matching a query and their current pinned flags, caller holds the lock
+    private void collectNotes(GetQuery query, IntList results, BitSet pinned) {
+        NoteStore.Notes notes = store.notes();
+        int color = query.color == null ? -1 : validColors.indexOf(query.color);
+        byte[] needle = query.refersTo == null ? null : query.refersTo.getBytes(StandardCharsets.UTF_8);
+
+        // Start from the smaller index that applies: the few notes the grid finds around a contains= point, else
+        // the refersTo= trigram candidates. Without either (or while the text index is behind) the filters are a
+        // scan over the store's columns
+        IntList candidates = null;
+        if (query.hasContains()) {
+            candidates = new IntList();
+            grid.collectContaining(query.containsX, query.containsY, candidates);
+        } else if (needle != null && !indexesBehind()) {
+            candidates = textIndex.candidates(needle);
         }
 
-        return sb.toString();
+        if (candidates == null) {
+            notes.scan(color, needle, results);
+        } else {
+            for (int i = 0; i < candidates.size(); i++) {
+                int id = candidates.get(i);
+                if (notes.matches(id, color, needle))
+                    results.add(id);
+            }
+        }
+        for (int i = 0; i < results.size(); i++) {
+            if (store.isPinned(results.get(i)))
+                pinned.set(i);
+        }
+    }
+
+    // Adds a newly posted note to the text index, unless it is behind and finishIndexes() will get to the note.
+    // Inside exclusive() the notes are added together once the section ends, queries in it scan meanwhile
+    private void indexNote(int id) {
+        if (indexed == id && !inExclusive()) {
+            textIndex.add(id);
+            indexed++;
+        }
     }
 
-    // Builds the response for a GET PINS command 
-    private String buildGetPinsResponse(Set<Pin> allPins) {
+    // Checks if some notes are not in the text index yet
+    private boolean indexesBehind() {
+        return indexed < store.size();
+    }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("OK ").append(allPins.size());
+    // Packs a coordinate into one long, (x << 32 | y)
+    static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    // Collects every distinct pin on the board, packed as (x << 32 | y), caller holds the lock
+    private long[] collectPins() {
+        long[] pins = new long[pinsBySlot.size()];
+        for (int i = 0; i < pins.length; i++)
+            pins[i] = key(pinsBySlot.get(i).x, pinsBySlot.get(i).y);
+        return pins;
+    }
+
+    // Pinned flags (as in pinnedWords) of count notes that are all pinned
+    private static PersistentList<Long> allPinned(int count) {
+        PersistentList.Builder<Long> words = new PersistentList.Builder<>();
+        for (int left = count; left > 0; left -= 64)
+            words.add(left >= 64 ? -1L : (1L << left) - 1);
+        return words.build();
+    }
 
-        for (Pin pin : allPins) {
-            sb.append("\nPIN ").append(pin.getX()).append(" ").append(pin.getY());
+    /* Locking */
+    // Checks if the calling thread is inside exclusive() and already holds everything
+    private boolean inExclusive() {
+        return exclusiveOwner == Thread.currentThread();
+    }
+
+    // Takes the write lock, counting the thread as waiting only if it actually has to block.
+    // Returns 0 (nothing to unlock) inside exclusive()
+    private long writeLock() {
+        if (inExclusive())
+            return 0;
+        long stamp = lock.tryWriteLock();
+        if (stamp != 0)
+            return stamp;
+        lockWaiters.incrementAndGet();
+        try {
+            return lock.writeLock();
+        } finally {
+            lockWaiters.decrementAndGet();
         }
+    }
 
-        return sb.toString();
+    // Takes the read lock, counting the thread as waiting only if it actually has to block.
+    // Returns 0 (nothing to unlock) inside exclusive()
+    private long readLock() {
+        if (inExclusive())
+            return 0;
+        long stamp = lock.tryReadLock();
+        if (stamp != 0)
+            return stamp;
+        lockWaiters.incrementAndGet();
+        try {
+            return lock.readLock();
+        } finally {
+            lockWaiters.decrementAndGet();
+        }
+    }
+
+    // Releases the write lock, then lets subscribers whose events the mutation queued know they are ready
+    private void unlockWrite(long stamp) {
+        if (stamp != 0) {
+            lock.unlockWrite(stamp);
+            for (BoardListener listener : listeners)
+                listener.onPublished();
+        }
+    }
+
+    private void unlockRead(long stamp) {
+        if (stamp != 0)
+            lock.unlockRead(stamp);
+    }
+
+    /* Change events */
+    // Sends an event to every subscriber, called with the lock held so events arrive in mutation order
+    private void emit(String event) {
+        for (BoardListener listener : listeners) {
+            listener.onEvent(event);
+        }
+    }
+
+    // Records that a note was posted or changed pinned status in the current version, updates its pinned flag in
+    // the snapshot, and tells subscribers
+    private void noteChanged(int id) {
+        NoteStore.Notes notes = store.notes();
+        changes.record(version, ChangeLog.NOTE, key(notes.x(id), notes.y(id)));
+        boolean pinned = store.isPinned(id);
+        int word = id >>> 6;
+        if (word == pinnedWords.size())
+            pinnedWords = pinnedWords.append(0L);
+        long bits = pinnedWords.get(word);
+        long updated = pinned ? bits | (1L << id) : bits & ~(1L << id);
+        if (updated != bits)
+            pinnedWords = pinnedWords.set(word, updated);
+        if (!listeners.isEmpty()) {
+            StringBuilder sb = new StringBuilder(64).append("EVENT ");
+            notes.appendLine(sb, id, pinned);
+            emit(sb.toString());
+        }
+    }
+
+    // Records that the pin at a point was added or removed in the current version, updates the snapshot's
+    // pin lines, and tells subscribers
+    private void pinChanged(PinnedPoint point, boolean added) {
+        changes.record(version, ChangeLog.PIN, key(point.x, point.y));
+        if (added) {
+            // A point that was already pinned (on other notes) keeps its line
+            if (point.slot < 0) {
+                point.slot = pinsBySlot.size();
+                pinsBySlot.add(point);
+                pinLines = pinLines.append("PIN " + point.x + " " + point.y);
+            }
+        } else {
+            // The last pin line moves into the freed slot, GET PINS has no particular order
+            int last = pinsBySlot.size() - 1;
+            PinnedPoint moved = pinsBySlot.remove(last);
+            if (moved != point) {
+                moved.slot = point.slot;
+                pinsBySlot.set(point.slot, moved);
+                pinLines = pinLines.set(point.slot, pinLines.get(last));
+            }
+            pinLines = pinLines.removeLast();
+        }
+        if (!listeners.isEmpty())
+            emit((added ? "EVENT PIN " : "EVENT UNPIN ") + point.x + " " + point.y);
+    }
+
+    // Makes the current state visible to lock-free readers and lets the journal write the mutation's records,
+    // called once at the end of each mutation. Inside exclusive() it waits for the end of the whole section
+    private void publish() {
+        if (inExclusive())
+            return;
+        snapshot = new BoardSnapshot(version, store.notes(), pinnedWords, pinLines);
+        if (journal != null)
+            journal.commit();
     }
 
     /* Public methods */
 
     // Adds a new note to the board if validations pass
-    public synchronized String addNote(int x, int y, String color, String message) {
+    public String addNote(int x, int y, String color, String message) {
         if (!noteInBounds(x, y)) {
             return "ERROR OUT_OF_BOUNDS";
         }
-        if (!validColors.contains(color)) {
+        int colorIndex = validColors.indexOf(color);
+        if (colorIndex < 0) {
             return "ERROR COLOR_NOT_SUPPORTED";
         }
-        if (completelyOverlaps(x, y)) {
-            return "ERROR COMPLETE_OVERLAP";
-        }
 
-        Note note = new Note(x, y, color, message, this.noteWidth, this.noteHeight);
-        this.notes.add(note);
-        return "OK NOTE_POSTED";
+        long stamp = writeLock();
+        try {
+            if (completelyOverlaps(x, y)) {
+                return "ERROR COMPLETE_OVERLAP";
+            }
+
+            int id = store.add(x, y, colorIndex, message);
+            this.noteIds.put(key(x, y), id);
+            this.grid.add(id);
+            indexNote(id);
+            version++;
+            if (journal != null)
+                journal.post(version, x, y, color, message);
+            noteChanged(id);
+            publish();
+            return "OK NOTE_POSTED";
+        } finally {
+            unlockWrite(stamp);
+        }
     }
 
     // Adds a new pin at a specific point to a note if validations pass
-    public synchronized String addPin(int pinX, int pinY) {
+    public String addPin(int pinX, int pinY) {
         if (!pointInBounds(pinX, pinY))
             return "ERROR OUT_OF_BOUNDS";
 
-        boolean noteFound = false;
+        long stamp = writeLock();
+        try {
+            // Only the notes around the point can contain it
+            IntList containing = new IntList();
+            grid.collectContaining(pinX, pinY, containing);
+            if (containing.isEmpty()) {
+                return "ERROR NO_NOTE_AT_COORDINATE";
+            }
 
-        for (Note note : this.notes) {
-            if (note.containsPoint(pinX, pinY)) {
-                noteFound = true;
+            long pinKey = key(pinX, pinY);
+            PinnedPoint point = pinIndex.get(pinKey);
 
-                if (note.hasPinAt(pinX, pinY)) {
-                    continue; // ignore duplicates
-                }
-                note.addPin(new Pin(pinX, pinY));
+            // The notes already pinned at the point are duplicates and ignored
+            IntList newlyPinned = new IntList(containing.size());
+            for (int i = 0; i < containing.size(); i++) {
+                if (point == null || !store.hasPinAt(containing.get(i), pinX, pinY))
+                    newlyPinned.add(containing.get(i));
             }
-        }
+            if (newlyPinned.isEmpty())
+                return "OK PIN_ADDED";
 
-        if (!noteFound) {
-            return "ERROR NO_NOTE_AT_COORDINATE";
-        }
+            version++;
+            if (point == null) {
+                point = new PinnedPoint(pinX, pinY);
+                pinIndex.put(pinKey, point);
+            }
+            for (int i = 0; i < newlyPinned.size(); i++) {
+                int id = newlyPinned.get(i);
+                point.notes.add(id);
 
-        return "OK PIN_ADDED";
+                // First pin flips the note to PINNED=true
+                if (store.addPin(id, pinX, pinY) == 1)
+                    noteChanged(id);
+            }
+            pinChanged(point, true);
+            if (journal != null)
+                journal.pin(version, pinX, pinY);
+            publish();
+            return "OK PIN_ADDED";
+        } finally {
+            unlockWrite(stamp);
+        }
     }
 
     // Removes a pin at a specific point from a note if validations pass
-    public synchronized String unPin(int pinX, int pinY) {
+    public String unPin(int pinX, int pinY) {
         if (!pointInBounds(pinX, pinY)) {
             return "ERROR OUT_OF_BOUNDS";
         }
 
-        boolean found = false;
-        Pin targetPin = new Pin(pinX, pinY);
-
-        for (Note note : this.notes) {
-            if (note.getPins().removeIf(p -> p.equals(targetPin))) {
-                found = true;
-                if (note.getPins().isEmpty()) {
-                    note.setPinStatus(false);
-                }
+        long stamp = writeLock();
+        try {
+            // The registry knows exactly which notes this pin pierces
+            long pinKey = key(pinX, pinY);
+            PinnedPoint point = pinIndex.get(pinKey);
+            if (point == null)
+                return "ERROR PIN_NOT_FOUND";
+
+            pinIndex.remove(pinKey);
+            version++;
+            for (int i = 0; i < point.notes.size(); i++) {
+                int id = point.notes.get(i);
+                // Last pin flips the note to PINNED=false
+                if (store.removePin(id, pinX, pinY) == 0)
+                    noteChanged(id);
             }
+            pinChanged(point, false);
+            if (journal != null)
+                journal.unpin(version, pinX, pinY);
+            publish();
+            return "OK PIN_REMOVED";
+        } finally {
+            unlockWrite(stamp);
         }
-
-        return found ? "OK PIN_REMOVED" : "ERROR PIN_NOT_FOUND";
     }
 
     // Removes all notes with no pins from the board
-    public synchronized String shake() {
+    public String shake() {
+        long stamp = writeLock();
+        try {
+            NoteStore.Notes notes = store.notes();
+            int removed = 0;
+            for (int id = 0; id < notes.size(); id++) {
+                if (!store.isPinned(id))
+                    removed++;
+            }
 
-        this.notes.removeIf(note -> note.getPins().isEmpty());
-        return "OK SHAKE_COMPLETE";
+            if (removed > 0) {
+                version++;
+                // A shake that removes more than the log can usefully hold is treated like a clear
+                if (removed > changes.capacity() / 2) {
+                    changes.reset(version);
+                } else {
+                    for (int id = 0; id < notes.size(); id++) {
+                        if (!store.isPinned(id))
+                            changes.record(version, ChangeLog.NOTE, key(notes.x(id), notes.y(id)));
+                    }
+                }
 
+                // The pinned notes move into new arrays with new ids (in the same order), every index follows them
+                int[] newIds = store.removeUnpinned();
+                NoteStore.Notes kept = store.notes();
+                this.noteIds.clear();
+                for (int id = 0; id < kept.size(); id++)
+                    this.noteIds.put(key(kept.x(id), kept.y(id)), id);
+                this.grid.remap(newIds);
+                this.textIndex.remap(newIds);
+                for (PinnedPoint point : pinsBySlot)
+                    point.notes.remap(newIds);
+                int stillIndexed = 0;
+                for (int id = 0; id < indexed; id++) {
+                    if (newIds[id] >= 0)
+                        stillIndexed++;
+                }
+                indexed = stillIndexed;
+                // Every note left is pinned
+                pinnedWords = allPinned(store.size());
+                if (journal != null)
+                    journal.shake(version);
+                publish();
+
+                // Subscribers drop their own unpinned notes, so one event covers the whole shake
+                emit("EVENT SHAKE");
+            }
+            return "OK SHAKE_COMPLETE";
+        } finally {
+            unlockWrite(stamp);
+        }
     }
 
     // Removes all pins and all notes on the board
-    public synchronized String clear() {
-        for (Note note : this.notes) {
-            note.clearPins();
+    public String clear() {
+        long stamp = writeLock();
+        try {
+            this.store.clear();
+            this.pinIndex.clear();
+            this.noteIds.clear();
+            this.grid.clear();
+            this.textIndex.clear();
+            this.indexed = 0;
+            this.pinsBySlot.clear();
+            version++;
+            changes.reset(version);
+            pinnedWords = PersistentList.empty();
+            pinLines = PersistentList.empty();
+            if (journal != null)
+                journal.clear(version);
+            publish();
+            emit("EVENT CLEAR");
+            return "OK CLEAR_COMPLETE";
+        } finally {
+            unlockWrite(stamp);
         }
+    }
 
-        this.notes.clear();
-        return "OK CLEAR_COMPLETE";
+    // Runs work as one critical section: the write lock is taken once for all of it, the
+    // board calls it makes run without locking again (queries included, which see its changes so far), and
+    // lock-free readers see none of its changes until they are all published together at the end.
+    // Returns what work returns
+    public <T> T exclusive(Supplier<T> work) {
+        if (inExclusive())
+            return work.get();
+
+        long stamp = writeLock();
+        long startVersion = version;
+        boolean indexCurrent = !indexesBehind();
+        exclusiveOwner = Thread.currentThread();
+        // The section's records are journaled as one group, replayed whole or not at all
+        if (journal != null)
+            journal.beginGroup(version);
+        try {
+            return work.get();
+        } finally {
+            exclusiveOwner = null;
+            // Index the notes the section posted (unless finishIndexes() is still catching up and will)
+            if (indexCurrent) {
+                for (; indexed < store.size(); indexed++)
+                    textIndex.add(indexed);
+            }
+            if (version != startVersion)
+                publish();
+            else if (journal != null)
+                journal.commit(); // drops the empty group
+            unlockWrite(stamp);
+        }
+    }
 
+    /* Snapshots */
+    // Saves the board to a snapshot file (see SnapshotFile). Writers only wait while it is copied under the read
+    // lock; the journal is forced up to the copied version before the file is written, so a snapshot on disk never
+    // claims changes the journal lost. Returns the version saved
+    public long writeSnapshot(Path path) throws IOException {
+        SnapshotFile.Image image = captureImage();
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.sync(image.journalOffset);
+            journal.locate(image);
+        }
+        SnapshotFile.write(path, image);
+        return image.version;
     }
 
-    // Gets notes on the board that match the given filters, returns all notes if no filters are provided
-    public synchronized String get(String colorFilter, Integer containsX, Integer containsY, String refersToSubstring) {
-        List<Note> results = new ArrayList<>(this.notes);
+    // Compacts the journal to an image of the board plus the changes after it (see Journal.compact()). Like
+    // writeSnapshot(), writers only wait while the board is copied. Returns the new size of the journal file,
+    // or -1 if there is no journal to compact
+    public long compactJournal() throws IOException {
+        Journal journal = this.journal;
+        if (journal == null)
+            return -1;
+        return journal.compact(captureImage());
+    }
 
-        if (colorFilter != null) {
-            if (!validColors.contains(colorFilter)) {
-                return "ERROR COLOR_NOT_SUPPORTED";
+    // A consistent copy of the board for writeSnapshot(). Records are appended and committed to the journal under
+    // the write lock, so its committed end here is exactly where this version ends in it
+    SnapshotFile.Image captureImage() {
+        long stamp = readLock();
+        try {
+            // The notes are a view of the store, which nothing changes later; only the pins are copied.
+            // Pins refer to notes by id, which is their index in the view
+            long[] pinPoints = collectPins();
+            int total = 0;
+            for (PinnedPoint point : pinsBySlot)
+                total += point.notes.size();
+            int[] piercedEnds = new int[pinPoints.length];
+            int[] pierced = new int[total];
+            int n = 0;
+            for (int i = 0; i < pinPoints.length; i++) {
+                IntList ids = pinsBySlot.get(i).notes;
+                for (int k = 0; k < ids.size(); k++)
+                    pierced[n++] = ids.get(k);
+                piercedEnds[i] = n;
             }
-            results.removeIf(note -> !note.getColor().equals(colorFilter));
+            Journal journal = this.journal;
+            return new SnapshotFile.Image(boardWidth, boardHeight, noteWidth, noteHeight, version,
+                    journal == null ? -1 : journal.committed(), store.notes(), pinPoints, piercedEnds, pierced);
+        } finally {
+            unlockRead(stamp);
         }
+    }
+
+    // Fills an empty board with the notes and pin points of a snapshot's image, whose notes (loaded into a store of
+    // their own, see NoteStore.adopt()) are not pinned yet. The text index, which only speeds up queries, is left
+    // to finishIndexes()
+    void restore(SnapshotFile.Image image) {
+        long stamp = writeLock();
+        try {
+            if (store.size() != 0 || !this.pinsBySlot.isEmpty() || this.version != 0)
+                throw new IllegalStateException("a snapshot can only be restored into an empty board");
+
+            store.adopt(image.notes);
+            NoteStore.Notes notes = store.notes();
+            for (int id = 0; id < notes.size(); id++) {
+                this.noteIds.put(key(notes.x(id), notes.y(id)), id);
+                this.grid.add(id);
+            }
 
-        if (containsX != null && containsY != null) {
-            if (!pointInBounds(containsX, containsY)) {
-                return "ERROR OUT_OF_BOUNDS";
+            PersistentList.Builder<String> pins = new PersistentList.Builder<>();
+            int j = 0;
+            for (int i = 0; i < image.pinPoints.length; i++) {
+                long key = image.pinPoints[i];
+                PinnedPoint point = new PinnedPoint((int) (key >> 32), (int) key);
+                point.slot = pinsBySlot.size();
+                pinsBySlot.add(point);
+                pinIndex.put(key, point);
+                pins.add("PIN " + point.x + " " + point.y);
+                for (; j < image.piercedEnds[i]; j++) {
+                    int id = image.pierced[j];
+                    if (id < 0 || id >= notes.size() || !grid.containsPoint(id, point.x, point.y))
+                        throw new IllegalArgumentException("pin " + point.x + " " + point.y + " is not on its note");
+                    if (store.hasPinAt(id, point.x, point.y))
+                        continue;
+                    store.addPin(id, point.x, point.y);
+                    point.notes.add(id);
+                }
+            }
+            pinLines = pins.build();
+
+            PersistentList.Builder<Long> words = new PersistentList.Builder<>();
+            for (int word = 0; word << 6 < notes.size(); word++) {
+                long bits = 0;
+                for (int id = word << 6; id < Math.min(notes.size(), (word + 1) << 6); id++) {
+                    if (store.isPinned(id))
+                        bits |= 1L << id;
+                }
+                words.add(bits);
             }
-            results.removeIf(note -> !note.containsPoint(containsX, containsY));
+            pinnedWords = words.build();
+
+            this.version = image.version;
+            changes.reset(image.version);
+            publish();
+        } finally {
+            unlockWrite(stamp);
         }
+    }
 
-        if (refersToSubstring != null) {
-            results.removeIf(note -> !note.getMessage().contains(refersToSubstring));
+    // Adds the notes of a restored snapshot (and any posted meanwhile) to the text index, a chunk at a time under
+    // the write lock so writers are only held up briefly. Run on a background thread after restoring
+    public void finishIndexes() {
+        while (true) {
+            long stamp = writeLock();
+            try {
+                int end = Math.min(store.size(), indexed + INDEX_CHUNK);
+                for (; indexed < end; indexed++)
+                    textIndex.add(indexed);
+                if (!indexesBehind())
+                    return;
+            } finally {
+                unlockWrite(stamp);
+            }
         }
+    }
 
-        return buildGetResponse(results);
+    // Gets notes on the board that match the given filters, returns all notes if no filters are provided
+    public String get(String colorFilter, Integer containsX, Integer containsY, String refersToSubstring) {
+        ResponseSink.Text text = new ResponseSink.Text();
+        writeNotes(new GetQuery(colorFilter, containsX, containsY, refersToSubstring), text);
+        return text.toString();
     }
 
     // Helper wrapper class for GET, used by RequestParser
@@ -191,17 +689,222 @@ public class Board {
         return get(color, x, y, refersTo);
     }
 
+    // Streams the GET response for a query into out, returns the status line.
+    // The matching notes and their pinned flags are captured under the lock (a consistent snapshot),
+    // the text itself is written after the lock is released
+    public String writeNotes(GetQuery query, ResponseSink out) {
+        // A repeat of a recent GET on an unchanged board is copied straight from the cache.
+        // The published snapshot's version is the version every reader currently sees
+        BoardSnapshot current = snapshot;
+        // Inside exclusive() the snapshot and the cache do not have the section's own changes yet,
+        // so the board itself is read (under the locks the section already holds) and nothing is cached
+        boolean live = inExclusive();
+        boolean cacheable = !live && out.writesBytes();
+        CachedResponse cached = cacheable ? responseCache.get(query, current.version) : null;
+        if (cached != null) {
+            out.cached(cached);
+            return cached.status;
+        }
+
+        String status;
+        ResponseBody lines;
+        NoteStore.Notes notes;
+        long madeAt;
+
+        if (query.equals(GetQuery.ALL)) {
+            // A plain GET is answered from the published snapshot without locking. Inside exclusive() the section's
+            // own state is captured the same way, in constant time: a view of the store and the current flags
+            if (live)
+                current = new BoardSnapshot(version, store.notes(), pinnedWords, pinLines);
+            notes = current.notes;
+            lines = current.noteLines();
+            madeAt = current.version;
+        } else {
+            IntList results = new IntList();
+            BitSet pinned = new BitSet();
+
+            long stamp = readLock();
+            try {
+                if (query.color != null && !validColors.contains(query.color)) {
+                    out.line("ERROR COLOR_NOT_SUPPORTED");
+                    return "ERROR COLOR_NOT_SUPPORTED";
+                }
+                if (query.hasContains() && !pointInBounds(query.containsX, query.containsY)) {
+                    out.line("ERROR OUT_OF_BOUNDS");
+                    return "ERROR OUT_OF_BOUNDS";
+                }
+
+                collectNotes(query, results, pinned);
+                notes = store.notes();
+                madeAt = version;
+            } finally {
+                unlockRead(stamp);
+            }
+            lines = notes.lines(results, pinned);
+        }
+        status = "OK " + lines.remaining();
+
+        // Whether the response fits the cache is known from its size bound before any of it is encoded. One that
+        // does is encoded once, cached and written from there; a bigger one is streamed as usual
+        long bound = notes.lineBytesBound(lines.remaining());
+        if (!cacheable || bound > responseCache.maxResponseBytes()) {
+            out.line(status);
+            out.body(lines);
+            return status;
+        }
+        CachedResponse response = CachedResponse.render(status, lines, (int) Math.min(bound, 64 * 1024));
+        responseCache.put(query, madeAt, response);
+        out.cached(response);
+        return status;
+    }
+
     // Gets all pins on the board
-    public synchronized String getPins() {
-        Set<Pin> allPins = new HashSet<>();
+    public String getPins() {
+        ResponseSink.Text text = new ResponseSink.Text();
+        writePins(text);
+        return text.toString();
+    }
+
+    // Streams the GET PINS response into out from the published snapshot, without locking. Returns the status line
+    public String writePins(ResponseSink out) {
+        if (!inExclusive())
+            return snapshot.writePins(out);
 
-        for (Note note : this.notes) {
-            allPins.addAll(note.getPins());
+        // Inside exclusive() the pins are read from the board itself, as in writeNotes
+        return new BoardSnapshot(version, store.notes(), pinnedWords, pinLines).writePins(out);
+    }
+
+    // Current board version
+    public long version() {
+        long stamp = lock.tryOptimisticRead();
+        long current = version;
+        if (lock.validate(stamp))
+            return current;
+
+        stamp = readLock();
+        try {
+            return version;
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    // Streams the GET SINCE response: "OK n", then "VERSION <current> DELTA|FULL", then the changed state.
+    // A DELTA lists, for each note position and pin point that changed after since, its current state:
+    // NOTE line (present), REMOVED x y (note gone), PIN x y / UNPIN x y.
+    // A FULL (since is older than the change log, or newer than this board) lists every NOTE and PIN
+    // and the client should replace what it has
+    public String writeChangesSince(long since, ResponseSink out) {
+        // A client that is already up to date (the common poll) is answered from an optimistic read
+        long stamp = lock.tryOptimisticRead();
+        long latest = version;
+        if (since == latest && lock.validate(stamp)) {
+            out.line("OK 1");
+            out.line("VERSION " + latest + " DELTA");
+            return "OK 1";
+        }
+
+        IntList results = new IntList();
+        BitSet pinned = new BitSet();
+        NoteStore.Notes notes;
+        long[] removed;
+        long[] pinsNow;
+        long[] pinsGone;
+        long current;
+        boolean full;
+
+        stamp = readLock();
+        try {
+            current = version;
+            full = since > version || !changes.covers(since);
+            notes = store.notes();
+
+            if (full) {
+                collectNotes(GetQuery.ALL, results, pinned);
+                pinsNow = collectPins();
+                removed = pinsGone = new long[0];
+            } else {
+                // Distinct keys that changed, in the order they first changed
+                Set<Long> noteKeys = new LinkedHashSet<>();
+                Set<Long> pinKeys = new LinkedHashSet<>();
+                changes.forEachSince(since, (kind, key) -> (kind == ChangeLog.NOTE ? noteKeys : pinKeys).add(key));
+
+                List<Long> gone = new ArrayList<>();
+                for (long key : noteKeys) {
+                    int id = noteAt(key);
+                    if (id < 0) {
+                        gone.add(key);
+                    } else {
+                        pinned.set(results.size(), store.isPinned(id));
+                        results.add(id);
+                    }
+                }
+                removed = toArray(gone);
+
+                List<Long> now = new ArrayList<>();
+                List<Long> unpinned = new ArrayList<>();
+                for (long key : pinKeys)
+                    (pinIndex.containsKey(key) ? now : unpinned).add(key);
+                pinsNow = toArray(now);
+                pinsGone = toArray(unpinned);
+            }
+        } finally {
+            unlockRead(stamp);
+        }
+
+        int count = 1 + results.size() + removed.length + pinsNow.length + pinsGone.length;
+        String status = "OK " + count;
+        out.line(status);
+        out.line("VERSION " + current + (full ? " FULL" : " DELTA"));
+        out.body(ResponseBody.concat(notes.lines(results, pinned), ResponseBody.keys("REMOVED ", removed),
+                ResponseBody.keys("PIN ", pinsNow), ResponseBody.keys("UNPIN ", pinsGone)));
+        return status;
+    }
+
+    // Registers a listener for change events and writes the board it starts from:
+    // "OK n" followed by every NOTE line and then every PIN line (n counts both).
+    // The snapshot and the registration happen together under the lock, so no change is missed or repeated
+    public String subscribe(BoardListener listener, ResponseSink out) {
+        IntList results = new IntList();
+        BitSet pinned = new BitSet();
+        NoteStore.Notes notes;
+        long[] pins;
+
+        long stamp = readLock();
+        try {
+            collectNotes(GetQuery.ALL, results, pinned);
+            notes = store.notes();
+            pins = collectPins();
+            listeners.add(listener);
+        } finally {
+            unlockRead(stamp);
         }
 
-        return buildGetPinsResponse(allPins);
+        String status = "OK " + (results.size() + pins.length);
+        out.line(status);
+        out.body(ResponseBody.concat(notes.lines(results, pinned), ResponseBody.keys("PIN ", pins)));
+        return status;
+    }
+
+    // Removes a listener, safe to call while events are being delivered
+    public void unsubscribe(BoardListener listener) {
+        listeners.remove(listener);
     }
 
+    // Number of threads currently waiting for the board lock, reported by ServerStats
+    public int lockQueueLength() {
+        return lockWaiters.get();
+    }
+
+    /* Getters */
+    int boardWidth() { return boardWidth; }
+    int boardHeight() { return boardHeight; }
+    int noteWidth() { return noteWidth; }
+    int noteHeight() { return noteHeight; }
+    List<String> validColors() { return validColors; }
+    // Notes in the published snapshot
+    int noteCount() { return snapshot.noteCount(); }
+
     // Builds the greeting line for the board for newly connected clients
     public String greetingLine() {
         StringBuilder sb = new StringBuilder();
@@ -212,10 +915,61 @@ public class Board {
         return sb.toString();
     }
 
+    // The board's own String for the color named by text[from, to), null if it is not a valid color.
+    // Lets RequestParser pass a color on without copying it out of the request
+    String validColor(CharSequence text, int from, int to) {
+        for (String c : validColors) {
+            if (c.length() != to - from)
+                continue;
+            int i = 0;
+            while (i < c.length() && c.charAt(i) == text.charAt(from + i))
+                i++;
+            if (i == c.length())
+                return c;
+        }
+        return null;
+    }
+
     // Handles a command from a client, returns a list of response lines
     public List<String> handleCommand(String line) {
         String resp = RequestParser.parseAndExecute(line, this);
         return Arrays.asList(resp.split("\n", -1));
     }
 
+    // Handles a command from a client, writing the response lines to out. Returns the status line
+    public String handleCommand(CharSequence line, Session session, ResponseSink out) {
+        CommandEngine engine = this.engine;
+        if (engine != null && CommandEngine.handles(line, session))
+            return engine.submit(line, session, out);
+
+        // If the command journaled anything, its response waits until the records are on disk when the journal
+        // syncs every change. Queries and failed commands do not wait for other clients' records
+        Journal journal = this.journal;
+        long journaled = journal == null ? 0 : journal.committedByThisThread();
+        String status = RequestParser.execute(line, this, session, out);
+        if (journal != null && journal.committedByThisThread() != journaled)
+            journal.awaitDurable(journal.committedByThisThread());
+        return status;
+    }
+
+    // Routes every later command that changes the board from handleCommand through the engine
+    public void useEngine(CommandEngine engine) {
+        this.engine = engine;
+    }
+
+    // The engine mutations go through, null without one
+    public CommandEngine engine() {
+        return engine;
+    }
+
+    // The journal changes are appended to, null without one
+    public Journal journal() {
+        return journal;
+    }
+
+    // Appends every later change to the journal, attached after replaying it onto the board
+    public void useJournal(Journal journal) {
+        this.journal = journal;
+    }
+
 }
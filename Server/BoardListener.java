@@ -0,0 +1,16 @@
+package Server;
+
+/*
+BoardListener interface receives board change events as protocol lines (e.g. "EVENT PIN 12 7").
+Events are delivered in mutation order while the board lock is held, so implementations must not block.
+onPublished() follows once the lock is released, where a listener can wake whoever delivers its events.
+*/
+
+public interface BoardListener {
+
+    // Called once per change event
+    void onEvent(String event);
+
+    // Called after each mutation's events once the board lock is released
+    default void onPublished() {}
+}
@@ -0,0 +1,48 @@
+package Server;
+
+import java.util.Collections;
+
+/*
+BoardSnapshot class is an immutable copy of the board as of one version, for lock-free reads.
+It holds a view of the board's notes (see NoteStore, which never changes what a view covers) with their pinned
+flags, and the GET PINS line of every pin. The board publishes a new snapshot after each mutation, made from the
+previous one with only the changed flags and lines replaced, so readers can answer a plain GET or GET PINS from
+whichever snapshot they picked up.
+*/
+
+public final class BoardSnapshot {
+    public static final BoardSnapshot EMPTY =
+            new BoardSnapshot(0, new NoteStore(Collections.emptyList()).notes(), PersistentList.empty(),
+                    PersistentList.empty());
+
+    public final long version;
+    final NoteStore.Notes notes;
+    // Pinned flag of each note by id, 64 to a word
+    final PersistentList<Long> pinnedWords;
+    final PersistentList<String> pinLines;
+
+    BoardSnapshot(long version, NoteStore.Notes notes, PersistentList<Long> pinnedWords,
+            PersistentList<String> pinLines) {
+        this.version = version;
+        this.notes = notes;
+        this.pinnedWords = pinnedWords;
+        this.pinLines = pinLines;
+    }
+
+    /* Getters */
+    public int noteCount() { return notes.size(); }
+
+    /* Responses */
+    // The NOTE lines of the plain GET response, in posting order (after its "OK n" status line)
+    ResponseBody noteLines() {
+        return notes.lines(notes.size(), pinnedWords);
+    }
+
+    // Writes the GET PINS response: "OK n" then every PIN line. Returns the status line
+    public String writePins(ResponseSink out) {
+        String status = "OK " + pinLines.size();
+        out.line(status);
+        out.body(ResponseBody.lines(pinLines));
+        return status;
+    }
+}
@@ -0,0 +1,41 @@
+package Server;
+
+/*
+CachedResponse class is a complete GET response kept by ResponseCache, in the form it goes out on the wire.
+Only the encoded bytes are kept (every line with its terminator, in the connection charset), so a connection
+copies the whole response into its output in one write.
+*/
+
+public final class CachedResponse {
+    public final String status;
+    private final byte[] bytes;
+    private final int lineCount;
+
+    private CachedResponse(String status, byte[] bytes, int lineCount) {
+        this.status = status;
+        this.bytes = bytes;
+        this.lineCount = lineCount;
+    }
+
+    // Encodes the status line followed by every line of body
+    static CachedResponse render(String status, ResponseBody body, int initialBytes) {
+        int lines = 1 + body.remaining();
+        AsciiCodec.Encoder out = new AsciiCodec.Encoder(Math.max(64, initialBytes));
+        out.line(status);
+        body.encode(out, Integer.MAX_VALUE);
+        return new CachedResponse(status, out.toByteArray(), lines);
+    }
+
+    /* Getters */
+    // The encoded response, shared by every connection writing it (do not modify)
+    public byte[] bytes() { return bytes; }
+
+    public int length() { return bytes.length; }
+    public int lineCount() { return lineCount; }
+
+    /* Helper methods */
+    // Writes the response one line at a time, for sinks that cannot take it whole
+    void writeLines(ResponseSink out) {
+        AsciiCodec.decodeLines(bytes, out);
+    }
+}
@@ -0,0 +1,82 @@
+package Server;
+
+/*
+ChangeLog class is a bounded record of which notes and pins changed at which board version.
+Used by GET SINCE to answer with only what changed. Entries live in fixed ring arrays; once old entries
+are overwritten (or a CLEAR resets everything) requests from before that point need a full snapshot.
+Not thread safe, the board only touches it while holding its lock.
+*/
+
+public class ChangeLog {
+    // Entry kinds
+    public static final byte NOTE = 0; // note at a position was posted, removed or changed pinned status
+    public static final byte PIN = 1;  // pin at a point was added or removed
+
+    private final long[] versions;
+    private final long[] keys;
+    private final byte[] kinds;
+    private int head = 0;  // index of the oldest entry
+    private int size = 0;
+
+    // Deltas can only be served for versions >= floor, older ones fall back to a full snapshot
+    private long floor = 0;
+
+    // Initializes an empty log holding at most capacity entries
+    public ChangeLog(int capacity) {
+        this.versions = new long[capacity];
+        this.keys = new long[capacity];
+        this.kinds = new byte[capacity];
+    }
+
+    /* Writing */
+    // Records that the note or pin at key changed in the given version, evicting the oldest entry when full
+    public void record(long version, byte kind, long key) {
+        if (size == versions.length) {
+            floor = Math.max(floor, versions[head]);
+            head = (head + 1) % versions.length;
+            size--;
+        }
+        int i = (head + size) % versions.length;
+        versions[i] = version;
+        kinds[i] = kind;
+        keys[i] = key;
+        size++;
+    }
+
+    // Forgets every entry, anything older than version needs a full snapshot (used by CLEAR and large SHAKEs)
+    public void reset(long version) {
+        head = 0;
+        size = 0;
+        floor = version;
+    }
+
+    /* Reading */
+    public int capacity() { return versions.length; }
+
+    // Checks if the changes after since are all still in the log
+    public boolean covers(long since) {
+        return since >= floor;
+    }
+
+    // Calls visitor for each entry recorded after version since, oldest first
+    public void forEachSince(long since, Visitor visitor) {
+        // Versions only grow, so binary search for the first entry newer than since
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (versions[(head + mid) % versions.length] > since)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        for (int n = lo; n < size; n++) {
+            int i = (head + n) % versions.length;
+            visitor.visit(kinds[i], keys[i]);
+        }
+    }
+
+    // Receives log entries from forEachSince
+    public interface Visitor {
+        void visit(byte kind, long key);
+    }
+}
@@ -1,7 +1,8 @@
 package Server;
 import java.io.*;
 import java.net.*;
-import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
 ClientHandler class is the object that handles the client connection.
@@ -11,43 +12,146 @@ Manages the client connection, reads the request, and sends the response.
 public class ClientHandler implements Runnable {
     private final Socket socket;
     private final Board board;
+    // Runs the pusher of a subscribed connection, the same kind of thread the connection itself runs on
+    private final Executor pushers;
 
-    // Initializes the client handler and its socket and board
-    public ClientHandler(Socket socket, Board board) {
+    // Size of the socket read/write buffers
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // Held while writing to the client, so pushed SUBSCRIBE events never land inside a response
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Subscription the pusher thread is currently delivering, if any
+    private Subscription pushing;
+
+    // Initializes the client handler and its socket and board, pushers runs SUBSCRIBE event delivery
+    public ClientHandler(Socket socket, Board board, Executor pushers) {
         this.socket = socket;
         this.board = board;
+        this.pushers = pushers;
     }
 
     // Runs the client handler
     @Override
     public void run() {
+        ServerStats.connectionOpened();
+        Session session = new Session(board, () -> {});
         // Try to get I/O streams from the socket
+        // Output is buffered without autoflush: pipelined requests are answered in order and
+        // flushed once per batch of ready input instead of once per response line.
+        // Requests are parsed from the received bytes and responses encoded straight to bytes (AsciiCodec)
         try (
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true)
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream()
         ) {
-            out.println(board.greetingLine());
+            AsciiCodec.LineReader in = new AsciiCodec.LineReader(input, BUFFER_SIZE);
+            AsciiCodec.LineWriter out = new AsciiCodec.LineWriter(output, BUFFER_SIZE);
+            out.line(board.greetingLine());
+            out.flush();
 
-            String line;
-            while ((line = in.readLine()) != null) {
-                line = line.strip(); 
-                if (line.isEmpty()) {
-                    out.println("ERROR INVALID_FORMAT");
-                    continue;
+            // Response lines go straight into the output buffer, cached responses in one write
+            ResponseSink sink = new ResponseSink() {
+                @Override
+                public void line(CharSequence s) {
+                    out.line(s);
+                }
+
+                @Override
+                public void cached(CachedResponse response) {
+                    byte[] bytes = response.bytes();
+                    out.write(bytes, 0, bytes.length);
+                }
+
+                @Override
+                public boolean writesBytes() {
+                    return true;
+                }
+
+                // The writer sends its buffer whenever it fills up, so a body never takes more than that
+                @Override
+                public void body(ResponseBody body) {
+                    body.encode(out, Integer.MAX_VALUE);
                 }
+            };
 
-                List<String> responseLines = board.handleCommand(line);
+            AsciiCodec.Line line;
+            while ((line = in.readLine()) != null) {
+                String status;
+                boolean failed;
+
+                writeLock.lock();
+                try {
+                    status = board.handleCommand(AsciiCodec.request(line), session, sink);
 
-                for (String r : responseLines) out.println(r);
+                    // Only flush once the client has no further requests waiting to be read
+                    if (status.startsWith("OK DISCONNECTING") || !in.ready()) out.flush();
+                    failed = out.checkError();
+                } finally {
+                    writeLock.unlock();
+                }
 
-                if (responseLines.size() > 0 && responseLines.get(0).startsWith("OK DISCONNECTING")) {
+                // A client that can no longer be written to is disconnected rather than served into the void
+                if (status.startsWith("OK DISCONNECTING") || failed) {
                     break;
                 }
+
+                if (session.getSubscription() != pushing) {
+                    startPusher(session, out);
+                }
+            }
+
+            // A line too long to be a request ends the connection
+            if (in.tooLong()) {
+                writeLock.lock();
+                try {
+                    out.line("ERROR INVALID_FORMAT");
+                    out.flush();
+                } finally {
+                    writeLock.unlock();
+                }
             }
         } catch (Exception e) {
             System.err.println("Client handler error: " + e.getMessage());
         } finally {
+            session.close();
             try { socket.close(); } catch (IOException ignored) {}
+            ServerStats.connectionClosed();
         }
     }
+
+    // Starts a task on the pusher executor that writes the session's current subscription's events to the client as
+    // they arrive, flushing once per burst. It ends when the subscription is closed, or as soon as another SUBSCRIBE
+    // or an UNSUBSCRIBE has replaced it: those run under writeLock too, so once the new snapshot (or OK UNSUBSCRIBED)
+    // is written the old pusher writes nothing more, and no stale event lands after it
+    private void startPusher(Session session, AsciiCodec.LineWriter out) {
+        Subscription subscription = session.getSubscription();
+        pushing = subscription;
+        if (subscription == null)
+            return;
+
+        pushers.execute(() -> {
+            try {
+                String event;
+                while ((event = subscription.take()) != null) {
+                    writeLock.lock();
+                    try {
+                        if (session.getSubscription() != subscription)
+                            return;
+                        do {
+                            out.line(event);
+                        } while ((event = subscription.poll()) != null);
+                        out.flush();
+
+                        // The client stopped reading: closing the socket also ends the connection's request loop
+                        if (out.checkError()) {
+                            try { socket.close(); } catch (IOException ignored) {}
+                            return;
+                        }
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+    }
 }
@@ -0,0 +1,309 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/*
+CommandEngine class is the optional single-writer mode for board mutations.
+Connection handlers publish every request that changes the board (POST/PIN/UNPIN/SHAKE/CLEAR, the line that
+completes a POSTMANY/PINMANY/UNPINMANY batch, EXEC) into a pre-allocated ring of slots; one writer thread takes
+them in order and applies everything published so far as one Board.exclusive() section, so a drain of commands
+shares one lock hold, one text index catch-up, one snapshot publish and one journal commit. Their responses are
+kept aside and handed back once the section has ended and its changes are visible. Blocking handlers wait for
+theirs (submit()); an NIO event loop must not, it offers the command and is called back (offer()).
+With a single writer the board's locks are never contended, so no time is lost handing them between threads.
+Queries keep running on the handlers' own threads.
+
+Enabled with -Dbboard.engine=ring, tuned with -Dbboard.engine.wait=park|yield|spin and -Dbboard.engine.ring=<slots>.
+*/
+
+public class CommandEngine {
+    public static final int DEFAULT_RING_SIZE = 1024;
+
+    // How a thread waits for the other side: for a command to arrive (writer), for ring space or for its
+    // response (handlers). SPIN burns a core for the lowest latency, YIELD gives the core to other runnable
+    // threads between checks, PARK sleeps until woken and suits boards with mostly idle clients
+    public enum WaitStrategy {
+        SPIN, YIELD, PARK;
+
+        // Parses a -Dbboard.engine.wait value, null if it is not one
+        public static WaitStrategy parse(String name) {
+            for (WaitStrategy strategy : values()) {
+                if (strategy.name().equalsIgnoreCase(name.trim()))
+                    return strategy;
+            }
+            return null;
+        }
+    }
+
+    // A short spin before YIELD / PARK waiters give up the core, most waits are only a few microseconds
+    private static final int SPINS_BEFORE_WAITING = 100;
+    // Bound on a PARK wait, so a missed wake-up costs at most this long
+    private static final long PARK_NANOS = 1_000_000;
+    // Most commands applied in one exclusive section, so readers are not held off for long
+    private static final int MAX_DRAIN = 256;
+
+    private final Board board;
+    private final WaitStrategy waitStrategy;
+    private final Slot[] ring;
+    private final int mask;
+    private final Thread writer;
+
+    // Next sequence a handler will claim
+    private final AtomicLong claimed = new AtomicLong();
+    // Every sequence below this has been applied and its slot can be reused, advanced once per batch
+    private volatile long consumed = 0;
+    // Set while the writer is parked (PARK strategy), so handlers know to wake it
+    private volatile boolean writerParked = false;
+
+    // Each handler thread has at most one command in flight, so it reuses one completion for all of them
+    private static final ThreadLocal<Completion> COMPLETION = ThreadLocal.withInitial(Completion::new);
+
+    // Initializes the ring (rounded up to a power of two) and starts the writer thread
+    public CommandEngine(Board board, WaitStrategy waitStrategy, int ringSize) {
+        int size = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+        this.board = board;
+        this.waitStrategy = waitStrategy;
+        this.ring = new Slot[size];
+        for (int i = 0; i < size; i++)
+            ring[i] = new Slot();
+        this.mask = size - 1;
+
+        this.writer = new Thread(this::runWriter, "bboard-engine-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /* Queries */
+    // Checks if a request is one the engine applies: a mutation by its command word, a batch command (which may
+    // apply right away when empty), the item line that completes a batch, or EXEC ending a transaction.
+    // Other lines of a batch or transaction are only collected in the session and stay on the handler's thread
+    public static boolean handles(CharSequence request, Session session) {
+        if (session != null && session.getBatch() != null)
+            return session.getBatch().remaining() == 1;
+
+        int start = 0;
+        while (start < request.length() && request.charAt(start) <= ' ')
+            start++;
+        if (session != null && session.inTransaction())
+            return isCommand(request, start, "EXEC");
+        return isCommand(request, start, "POST") || isCommand(request, start, "PIN")
+                || isCommand(request, start, "UNPIN") || isCommand(request, start, "SHAKE")
+                || isCommand(request, start, "CLEAR") || isCommand(request, start, "POSTMANY")
+                || isCommand(request, start, "PINMANY") || isCommand(request, start, "UNPINMANY");
+    }
+
+    // Commands published but not yet applied, reported by ServerStats
+    public int queueDepth() {
+        return (int) Math.max(0, claimed.get() - consumed);
+    }
+
+    public int ringSize() { return ring.length; }
+    public WaitStrategy waitStrategy() { return waitStrategy; }
+
+    /* Handler side */
+    // Publishes a request and waits until the writer has applied it (and, when the journal syncs every change,
+    // until the records it journaled are on disk), then writes its response to out.
+    // Returns the status line, as RequestParser.execute does. The request is only read before this returns,
+    // so it may be a view the caller reuses afterwards
+    public String submit(CharSequence request, Session session, ResponseSink out) {
+        Completion completion = COMPLETION.get();
+        completion.done = false;
+
+        long sequence = claimed.getAndIncrement();
+        // Wait for the writer to free the slot from one lap ago. A full ring means the writer is busy and
+        // nobody would wake a parked handler, so even PARK only yields here
+        while (sequence - consumed >= ring.length) {
+            if (waitStrategy == WaitStrategy.SPIN)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+        publish(sequence, request, session, completion);
+
+        for (int spins = 0; !completion.done; spins++)
+            idle(spins);
+
+        Journal journal = board.journal();
+        if (journal != null && completion.journaled != 0)
+            journal.awaitDurable(completion.journaled);
+        completion.response.writeTo(out);
+        if (completion.failure != null) {
+            RuntimeException failure = completion.failure;
+            completion.failure = null;
+            throw failure;
+        }
+        return completion.status;
+    }
+
+    // Publishes a request without waiting, for handlers that must not block. Returns false if the ring is full,
+    // the caller tries again later. Otherwise onDone is called on the writer thread once the command is applied
+    // and its changes are visible, with the completion holding its response. The request must not change until then
+    public boolean offer(CharSequence request, Session session, Consumer<Completion> onDone) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length)
+                return false;
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        publish(sequence, request, session, new Completion(onDone));
+        return true;
+    }
+
+    // Fills a claimed slot and hands it to the writer
+    private void publish(long sequence, CharSequence request, Session session, Completion completion) {
+        Slot slot = ring[(int) sequence & mask];
+        slot.request = request;
+        slot.session = session;
+        slot.completion = completion;
+        slot.sequence = sequence; // publishes the slot
+        if (writerParked)
+            LockSupport.unpark(writer);
+    }
+
+    /* Writer side */
+    // Applies published commands in sequence order, every command published so far (up to MAX_DRAIN) in one
+    // exclusive section of the board, and releases their handlers once it has ended
+    private void runWriter() {
+        Completion[] drained = new Completion[MAX_DRAIN];
+        long next = 0;
+        while (true) {
+            if (ring[(int) next & mask].sequence != next) {
+                waitForCommand(next);
+                continue;
+            }
+
+            long start = next;
+            Journal journal = board.journal();
+            int count = board.exclusive(() -> {
+                int n = 0;
+                Slot slot;
+                while (n < MAX_DRAIN && (slot = ring[(int) (start + n) & mask]).sequence == start + n)
+                    drained[n++] = apply(slot, journal);
+                return n;
+            });
+            next = start + count;
+            consumed = next; // frees the slots with one write
+
+            // The drain's records are committed together, the commands that appended some wait for all of them
+            long committed = journal == null ? 0 : journal.committed();
+            for (int i = 0; i < count; i++) {
+                Completion completion = drained[i];
+                drained[i] = null;
+                if (completion.journaled != 0)
+                    completion.journaled = committed;
+                completion.release(waitStrategy);
+            }
+        }
+    }
+
+    // Runs one command into its completion's response and empties the slot. Marks the completion
+    // (journaled != 0) if the command appended journal records
+    private Completion apply(Slot slot, Journal journal) {
+        Completion completion = slot.completion;
+        long appended = journal == null ? 0 : journal.appended();
+        try {
+            completion.status = RequestParser.execute(slot.request, board, slot.session, completion.response);
+        } catch (RuntimeException e) {
+            completion.failure = e;
+        }
+        completion.journaled = journal == null || journal.appended() == appended ? 0 : 1;
+        slot.request = null;
+        slot.session = null;
+        slot.completion = null;
+        return completion;
+    }
+
+    // Waits until the command at sequence is published
+    private void waitForCommand(long sequence) {
+        Slot slot = ring[(int) sequence & mask];
+        for (int spins = 0; slot.sequence != sequence; spins++) {
+            if (waitStrategy == WaitStrategy.PARK && spins >= SPINS_BEFORE_WAITING) {
+                // Announce the park first, then check once more, so a handler publishing in between
+                // either sees the flag or is seen by the check
+                writerParked = true;
+                if (slot.sequence != sequence)
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                writerParked = false;
+            } else {
+                idle(spins);
+            }
+        }
+    }
+
+    /* Helper methods */
+    // One step of a wait loop under the configured strategy
+    private void idle(int spins) {
+        if (waitStrategy == WaitStrategy.SPIN || spins < SPINS_BEFORE_WAITING) {
+            Thread.onSpinWait();
+        } else if (waitStrategy == WaitStrategy.YIELD) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+    }
+
+    // Checks if the word at start is command, compared in place rather than split out of the request
+    private static boolean isCommand(CharSequence request, int start, String command) {
+        int end = start + command.length();
+        if (end > request.length() || (end < request.length() && request.charAt(end) > ' '))
+            return false;
+        for (int i = 0; i < command.length(); i++) {
+            if (Character.toUpperCase(request.charAt(start + i)) != command.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    // One pre-allocated ring entry, reused every lap
+    private static class Slot {
+        // Sequence of the command in the slot once published, -1 before the first one
+        volatile long sequence = -1;
+        CharSequence request;
+        Session session;
+        Completion completion;
+    }
+
+    // Where the writer leaves a command's result for the handler that submitted it
+    public static final class Completion {
+        // The thread waiting in submit(), or the callback of offer()
+        private final Thread thread;
+        private final Consumer<Completion> onDone;
+        private final ResponseSink.Buffer response = new ResponseSink.Buffer();
+        private volatile boolean done;
+        private String status;
+        private RuntimeException failure;
+        // Journal offset the command's drain committed up to, 0 if the command itself journaled nothing
+        private long journaled;
+
+        private Completion() {
+            this.thread = Thread.currentThread();
+            this.onDone = null;
+        }
+
+        private Completion(Consumer<Completion> onDone) {
+            this.thread = null;
+            this.onDone = onDone;
+        }
+
+        public String status() { return status; }
+        public RuntimeException failure() { return failure; }
+        public long journaled() { return journaled; }
+
+        // Writes the command's response to out
+        public void writeResponse(ResponseSink out) {
+            response.writeTo(out);
+        }
+
+        // Hands the result over, publishing the response written to it
+        private void release(WaitStrategy waitStrategy) {
+            done = true;
+            if (onDone != null)
+                onDone.accept(this);
+            else if (waitStrategy == WaitStrategy.PARK)
+                LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package Server;
+
+import java.util.Objects;
+
+/*
+GetQuery class is the parsed form of a GET command's filters.
+Any filter that was not given is null, so a plain GET is a query with every field null.
+*/
+
+public final class GetQuery {
+    public static final GetQuery ALL = new GetQuery(null, null, null, null);
+
+    public final String color;
+    public final Integer containsX, containsY;
+    public final String refersTo;
+
+    // Initializes the query with its (optional) filters
+    public GetQuery(String color, Integer containsX, Integer containsY, String refersTo) {
+        this.color = color;
+        this.containsX = containsX;
+        this.containsY = containsY;
+        this.refersTo = refersTo;
+    }
+
+    /* Helper methods */
+    public boolean hasContains() { return containsX != null && containsY != null; }
+
+    /* Overrides */
+    // Two queries are equal if they have the same filters
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof GetQuery)) return false;
+        GetQuery other = (GetQuery) o;
+        return Objects.equals(color, other.color) && Objects.equals(containsX, other.containsX)
+                && Objects.equals(containsY, other.containsY) && Objects.equals(refersTo, other.refersTo);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(color, containsX, containsY, refersTo);
+    }
+}
@@ -0,0 +1,75 @@
+package Server;
+
+import java.util.Arrays;
+
+/*
+IntList class is a growable list of primitive ints, used for lists of note ids (see NoteStore).
+Ids are never boxed, a list is one int[] and a size.
+Not thread safe, the board only touches it while holding its lock.
+*/
+
+public class IntList {
+    private static final int[] EMPTY = new int[0];
+
+    private int[] values;
+    private int size = 0;
+
+    // Initializes an empty list
+    public IntList() {
+        this.values = EMPTY;
+    }
+
+    // Initializes an empty list with room for capacity values
+    public IntList(int capacity) {
+        this.values = capacity == 0 ? EMPTY : new int[capacity];
+    }
+
+    /* Queries */
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    public int get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " size " + size);
+        return values[index];
+    }
+
+    /* Updates */
+    public void add(int value) {
+        if (size == values.length)
+            values = Arrays.copyOf(values, Math.max(4, size + (size >> 1)));
+        values[size++] = value;
+    }
+
+    public void set(int index, int value) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " size " + size);
+        values[index] = value;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // Drops every value from index size on
+    public void truncate(int size) {
+        if (size < this.size)
+            this.size = size;
+    }
+
+    // Sorts the values from index from on
+    public void sortFrom(int from) {
+        Arrays.sort(values, from, size);
+    }
+
+    // Replaces every value v with newValues[v], dropping those mapped to -1, keeping the order of the rest
+    public void remap(int[] newValues) {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int mapped = newValues[values[i]];
+            if (mapped >= 0)
+                values[n++] = mapped;
+        }
+        size = n;
+    }
+}
@@ -0,0 +1,1074 @@
+package Server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+Journal class is the write-ahead log of board mutations, so a restarted server gets its board back.
+Every POST/PIN/UNPIN/SHAKE/CLEAR that changes the board is appended as one binary record while the board's
+write lock is held, so records are in version order. A background thread writes them to the file through a
+FileChannel and, depending on the sync mode, forces them to disk:
+  off    - written every interval but never forced, the OS decides when they reach the disk
+  batch  - written and forced every interval, commands are answered without waiting for it
+  always - a command that changed the board is answered only once its records are forced; commands from
+           concurrent clients share one force (group commit)
+The records of a Board.exclusive() section (a batch, a transaction, an engine drain) follow a GROUP record giving
+their count, and reach the file in the same write; a crash can still cut that write short, so replay() only
+applies a group once all of its records are there.
+On startup replay() applies the records to the empty board, dropping a record or group cut short by a crash.
+
+Left alone the file holds every change ever made, even ones a SHAKE or CLEAR has long since undone. compact()
+rewrites it as a BASE record and an image of the board at one version (one POST record per note, one PINNED
+record per pin point listing the notes it pierces), followed by the records after that version, and swaps it in
+for the old file. Writers keep appending to the old file while the new one is written; only the flusher pauses
+while the last records are copied over.
+
+Enabled with -Dbboard.journal=<file>, tuned with -Dbboard.journal.sync=off|batch|always and -Dbboard.journal.sync.ms=<ms>,
+compacted as set by -Dbboard.journal.retain.mb=<mb> and -Dbboard.journal.retain.minutes=<min> (see compactionDue()).
+*/
+
+public class Journal {
+    public static final int DEFAULT_SYNC_MILLIS = 10;
+    public static final int DEFAULT_RETAIN_MB = 64;
+    public static final int DEFAULT_RETAIN_MINUTES = 60;
+
+    // How far records are pushed towards the disk before a command is answered, see the class comment
+    public enum SyncMode {
+        OFF, BATCH, ALWAYS;
+
+        // Parses a -Dbboard.journal.sync value, null if it is not one
+        public static SyncMode parse(String name) {
+            for (SyncMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name.trim()))
+                    return mode;
+            }
+            return null;
+        }
+    }
+
+    // Record types
+    static final byte POST = 1;
+    static final byte PIN = 2;
+    static final byte UNPIN = 3;
+    static final byte SHAKE = 4;
+    static final byte CLEAR = 5;
+    // Only at the start of a compacted journal: the image's version and size, then its POST and PINNED records
+    static final byte BASE = 6;
+    static final byte PINNED = 7;
+    // Starts the records of one exclusive section: its version is the board's before them, its field their count
+    static final byte GROUP = 8;
+
+    // The file starts with MAGIC, then holds records of: int length (of the rest of the record), byte type,
+    // long board version after the change (before it for GROUP), the type's fields, and a CRC32 of the type,
+    // version and fields
+    private static final int MAGIC = 0x42424A31; // "BBJ1"
+    static final int HEADER_BYTES = 4;
+    // length, type, version, CRC: everything but the fields
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 4;
+    // No record comes close to this, a bigger length can only be a damaged one
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+    // BASE fields: board and note dimensions, note and pin point counts, file offset just past the image
+    private static final int BASE_FIELD_BYTES = 4 * 4 + 4 + 4 + 8;
+    // compact() copies records to the new file without pausing the flusher until fewer than this are left
+    private static final int SWAP_COPY_BYTES = 64 * 1024;
+
+    private final Path path;
+    // Replaced by compact(), read under lock or by the flusher between swaps
+    private volatile FileChannel channel;
+    private final SyncMode mode;
+    private final int syncMillis;
+    private final Thread flusher;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when records are committed (ALWAYS) or the journal closes, the flusher waits on it
+    private final Condition recordsCommitted = lock.newCondition();
+    // Signalled when durable advances, commands waiting for their records (ALWAYS) wait on it
+    private final Condition recordsFlushed = lock.newCondition();
+
+    // Guarded by lock: records not yet handed to the flusher, starting at file offset pendingOffset.
+    // The first committedLength bytes are whole mutations, the rest belong to an exclusive() section of
+    // the board that is still running, so a batch or transaction is handed to the file in one write
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    // The buffer the flusher last wrote, reused for the next swap
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private long pendingOffset;
+    private int committedLength = 0;
+    private int recordStart;
+    // Guarded by lock: where the open GROUP record starts past committedLength (-1 if none), and the records after it.
+    // Kept relative to committedLength since the flusher moves the uncommitted records to the start of a new buffer
+    private int groupStart = -1;
+    private int groupRecords;
+    private long groupVersion;
+    private boolean closed = false;
+    private final CRC32 crc = new CRC32();
+    // Guarded by lock: the flusher is writing a batch / must not start one while compact() swaps files
+    private boolean flushing = false;
+    private boolean swapping = false;
+    // Guarded by lock: offsets below are logical (they keep growing across compactions), a record at offset o
+    // is at file position o - shift
+    private long shift = 0;
+    // Guarded by lock: the version of the current file's image (0 if it was never compacted), the offset just past
+    // it and the image's size
+    private long baseVersion;
+    private long baseEnd;
+    private long baseBytes;
+    // Guarded by lock: when the oldest record after the image was committed, 0 if there is none
+    private long tailSince;
+    // Held for the whole of compact(), so close() waits for a running compaction
+    private final ReentrantLock compactionLock = new ReentrantLock();
+
+    // File offset just past the last committed record
+    private volatile long committed;
+    // File offset up to which records have been written, and forced unless the mode is OFF
+    private volatile long durable;
+    // Set once a write fails, after which nothing more is journaled and nobody waits
+    private volatile IOException failure;
+    // Guarded by lock: actions waiting for durable to reach an offset (see whenDurable())
+    private final List<DurableAction> durableActions = new ArrayList<>();
+    // Offset up to which each thread's last commit() made records ready to be written
+    private final ThreadLocal<long[]> committedByThread = ThreadLocal.withInitial(() -> new long[1]);
+    // Writes handed to the file so far (each forced too, unless the mode is OFF), only the flusher changes it
+    private volatile long flushes = 0;
+
+    private Journal(Path path, FileChannel channel, SyncMode mode, int syncMillis, long end, ByteBuffer base) {
+        this.path = path;
+        this.channel = channel;
+        this.mode = mode;
+        this.syncMillis = Math.max(1, syncMillis);
+        this.pendingOffset = end;
+        this.committed = end;
+        this.durable = end;
+        this.baseVersion = base == null ? 0 : base.getLong(base.position() + 1);
+        this.baseEnd = base == null ? HEADER_BYTES : base.getLong(base.position() + 1 + 8 + BASE_FIELD_BYTES - 8);
+        this.baseBytes = baseEnd;
+        // How old records already in the file are is not known, they count from now
+        this.tailSince = end > baseEnd ? System.currentTimeMillis() : 0;
+
+        this.flusher = new Thread(this::runFlusher, "bboard-journal");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // Opens the journal at path for appending, creating it if needed. Run replay() first, it also drops
+    // a damaged end of the file that records would otherwise be appended after
+    public static Journal open(Path path, SyncMode mode, int syncMillis) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            ByteBuffer base = null;
+            if (size == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC);
+                header.flip();
+                writeFully(channel, header, 0);
+                channel.force(true);
+                size = HEADER_BYTES;
+            } else {
+                checkHeader(channel, path);
+                base = readBase(channel);
+            }
+            return new Journal(path, channel, mode, syncMillis, size, base);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /* Queries */
+    public SyncMode mode() { return mode; }
+    public int syncMillis() { return syncMillis; }
+
+    // File offset just past the last committed record
+    public long committed() { return committed; }
+
+    // File offset just past the records the calling thread committed last, used to tell whether a command it ran
+    // journaled anything (and what it has to wait for)
+    public long committedByThisThread() { return committedByThread.get()[0]; }
+
+    // File offset just past the last record appended, committed or not
+    long appended() {
+        lock.lock();
+        try {
+            return pendingOffset + pending.position();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Number of writes (and forces) the flusher has made, reported by BBoardBenchmark
+    public long flushes() { return flushes; }
+
+    // The version the journal at path was last compacted at, 0 if it never was (or does not exist). A snapshot
+    // older than this cannot be used with it, the changes between the two are gone from the journal
+    public static long baseVersion(Path path) throws IOException {
+        if (!Files.exists(path))
+            return 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() == 0)
+                return 0;
+            checkHeader(channel, path);
+            ByteBuffer base = readBase(channel);
+            return base == null ? 0 : base.getLong(base.position() + 1);
+        }
+    }
+
+    // Records where offset (a committed() value) is in the current file, for a snapshot taken at it: the
+    // journal's base version and the offset's file position, -1 if the journal was compacted past it
+    void locate(SnapshotFile.Image image) {
+        lock.lock();
+        try {
+            image.journalBase = baseVersion;
+            image.journalPosition = image.journalOffset < baseEnd ? -1 : image.journalOffset - shift;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Appending, called by the board with its write lock held */
+    void post(long version, int x, int y, String color, String message) {
+        byte[] colorBytes = color.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            if (begin(POST, version, 4 + 4 + 2 + colorBytes.length + 4 + messageBytes.length)) {
+                pending.putInt(x).putInt(y);
+                pending.putShort((short) colorBytes.length).put(colorBytes);
+                pending.putInt(messageBytes.length).put(messageBytes);
+                end();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void pin(long version, int x, int y) {
+        point(PIN, version, x, y);
+    }
+
+    void unpin(long version, int x, int y) {
+        point(UNPIN, version, x, y);
+    }
+
+    void shake(long version) {
+        board(SHAKE, version);
+    }
+
+    void clear(long version) {
+        board(CLEAR, version);
+    }
+
+    // Starts the records of a Board.exclusive() section, called with the board's write lock held at its start.
+    // The GROUP record is completed by commit() at the end of the section, or dropped if fewer than two followed it
+    void beginGroup(long version) {
+        lock.lock();
+        try {
+            if (groupStart >= 0 || !begin(GROUP, version, 4))
+                return;
+            pending.putInt(0);
+            end();
+            groupStart = recordStart - committedLength;
+            groupRecords = 0;
+            groupVersion = version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Makes the records appended so far ready to be written, called once at the end of each mutation
+    // (at the end of the whole section inside Board.exclusive(), which fills in its GROUP record)
+    void commit() {
+        lock.lock();
+        try {
+            if (groupStart >= 0) {
+                int start = committedLength + groupStart;
+                groupStart = -1;
+                if (groupRecords == 0) {
+                    pending.position(start);
+                } else if (groupRecords == 1) {
+                    // A single record is whole or not there anyway
+                    int groupBytes = RECORD_OVERHEAD + 4;
+                    int end = pending.position();
+                    System.arraycopy(pending.array(), start + groupBytes, pending.array(), start, end - start - groupBytes);
+                    pending.position(end - groupBytes);
+                } else {
+                    int end = pending.position();
+                    pending.position(start);
+                    startRecord(pending, GROUP, groupVersion, 4);
+                    pending.putInt(groupRecords);
+                    endRecord(pending, start, crc);
+                    pending.position(end);
+                }
+            }
+            if (pending.position() == committedLength)
+                return;
+            committedLength = pending.position();
+            committed = pendingOffset + committedLength;
+            committedByThread.get()[0] = committed;
+            if (tailSince == 0)
+                tailSince = System.currentTimeMillis();
+            if (mode == SyncMode.ALWAYS)
+                recordsCommitted.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Waiting */
+    // Waits until the records up to file offset are on disk, when the mode is ALWAYS
+    public void awaitDurable(long offset) {
+        if (mode != SyncMode.ALWAYS || durable >= offset)
+            return;
+        lock.lock();
+        try {
+            while (durable < offset && failure == null && !closed)
+                recordsFlushed.awaitUninterruptibly();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For connections that must not block: returns true if the records up to file offset are already as durable as
+    // awaitDurable() waits for. Otherwise returns false and runs action (on the flusher thread, or whichever thread
+    // ends the wait) once they are
+    public boolean whenDurable(long offset, Runnable action) {
+        if (mode != SyncMode.ALWAYS || durable >= offset)
+            return true;
+        lock.lock();
+        try {
+            if (durable >= offset || failure != null || closed)
+                return true;
+            durableActions.add(new DurableAction(offset, action));
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs the actions waiting for offsets up to durable (all of them once the journal has failed or closed).
+    // Called without the lock, so the actions may call back into the journal
+    private void runDurableActions() {
+        List<Runnable> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            if (durableActions.isEmpty())
+                return;
+            boolean all = failure != null || closed;
+            durableActions.removeIf(waiting -> {
+                if (!all && waiting.offset > durable)
+                    return false;
+                ready.add(waiting.action);
+                return true;
+            });
+        } finally {
+            lock.unlock();
+        }
+        for (Runnable action : ready)
+            action.run();
+    }
+
+    // Waits until the records up to file offset are written and forces them to disk, whatever the mode.
+    // Called before a snapshot covering them is saved, so the journal on disk always reaches the snapshot
+    void sync(long offset) throws IOException {
+        awaitWritten(offset);
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // Swapped out by compact() or closed, both force everything written first
+        }
+    }
+
+    // Waits until the records up to offset are written, whatever the mode
+    private void awaitWritten(long offset) throws IOException {
+        lock.lock();
+        try {
+            while (durable < offset && failure == null && !closed) {
+                recordsCommitted.signal(); // no need to wait for the interval
+                recordsFlushed.awaitUninterruptibly();
+            }
+            if (failure != null)
+                throw new IOException("the journal stopped after an error", failure);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes and forces everything committed, then closes the file. Called on shutdown
+    public void close() {
+        compactionLock.lock();
+        try {
+            lock.lock();
+            try {
+                if (closed)
+                    return;
+                closed = true;
+                recordsCommitted.signal();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            runDurableActions();
+            try {
+                if (failure == null)
+                    channel.force(true);
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Journal error: " + e.getMessage());
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /* Compaction */
+    // Checks if the journal should be compacted: the records after its image take up more than maxTailBytes and
+    // more than the image itself, or the oldest of them is older than maxAgeMillis (either 0 to not check it).
+    // So the file stays within about twice the size of the live board plus maxTailBytes, and replaying it
+    // goes through at most maxAgeMillis worth of changes
+    public boolean compactionDue(long maxTailBytes, long maxAgeMillis) {
+        lock.lock();
+        try {
+            long tail = committed - baseEnd;
+            if (tail <= 0 || closed || failure != null)
+                return false;
+            if (maxTailBytes > 0 && tail > Math.max(maxTailBytes, baseBytes))
+                return true;
+            return maxAgeMillis > 0 && tailSince != 0 && System.currentTimeMillis() - tailSince > maxAgeMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Replaces the file with image (taken at committed() offset image.journalOffset) followed by the records
+    // committed after it. Returns the new file's size, or -1 if the journal is closed or has failed.
+    // The board and its writers are not involved: records keep being appended and written to the old file
+    // while the image is written and most of them are copied; the flusher only pauses for the last copy,
+    // the force and the rename
+    long compact(SnapshotFile.Image image) throws IOException {
+        compactionLock.lock();
+        try {
+            long startedAt = System.currentTimeMillis();
+            FileChannel old;
+            long oldShift;
+            lock.lock();
+            try {
+                if (closed || failure != null)
+                    return -1;
+                old = channel;
+                oldShift = shift;
+            } finally {
+                lock.unlock();
+            }
+
+            Path temp = path.resolveSibling(path.getFileName() + ".compact");
+            FileChannel next = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            boolean swapped = false;
+            try {
+                long imageEnd = writeImage(next, image);
+                // The records after the image, copied while the flusher keeps writing more of them. Everything
+                // before them must be in the old file first: the flusher only ever writes past them from now on
+                long from = image.journalOffset;
+                awaitWritten(from);
+                long copied = from;
+                for (long written = durable; written - copied >= SWAP_COPY_BYTES; written = durable)
+                    copied = copy(old, next, copied, written, oldShift, imageEnd - from);
+
+                long upTo;
+                lock.lock();
+                try {
+                    swapping = true;
+                    while (flushing)
+                        recordsFlushed.awaitUninterruptibly();
+                    upTo = durable;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    copy(old, next, copied, upTo, oldShift, imageEnd - from);
+                    next.force(true);
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    swapped = true;
+                } finally {
+                    lock.lock();
+                    try {
+                        if (swapped) {
+                            channel = next;
+                            shift = from - imageEnd;
+                            baseVersion = image.version;
+                            baseEnd = from;
+                            baseBytes = imageEnd;
+                            tailSince = committed > from ? startedAt : 0;
+                        }
+                        swapping = false;
+                        recordsCommitted.signal();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                old.close();
+                return imageEnd + (upTo - from);
+            } finally {
+                if (!swapped) {
+                    next.close();
+                    Files.deleteIfExists(temp);
+                }
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    // Copies the records at offsets from..to from the old file (at their position there, offset - oldShift)
+    // to the new one (at offset + delta). Returns to
+    private static long copy(FileChannel old, FileChannel next, long from, long to, long oldShift, long delta)
+            throws IOException {
+        long position = from - oldShift;
+        long end = to - oldShift;
+        while (position < end) {
+            next.position(position + oldShift + delta);
+            position += old.transferTo(position, end - position, next);
+        }
+        return to;
+    }
+
+    // Writes MAGIC, the BASE record and image's records to a new file, returns the file offset just past them
+    private static long writeImage(FileChannel out, SnapshotFile.Image image) throws IOException {
+        ImageWriter writer = new ImageWriter(out, HEADER_BYTES + RECORD_OVERHEAD + BASE_FIELD_BYTES);
+        NoteStore.Notes notes = image.notes;
+        byte[][] colorBytes = new byte[notes.colorNames().size()][];
+        for (int i = 0; i < colorBytes.length; i++)
+            colorBytes[i] = notes.colorNames().get(i).getBytes(StandardCharsets.UTF_8);
+        for (int id = 0; id < notes.size(); id++) {
+            byte[] color = colorBytes[notes.colorIndex(id)];
+            int start = notes.messageStart(id), length = notes.messageEnd(id) - start;
+            writer.begin(POST, image.version, 4 + 4 + 2 + color.length + 4 + length)
+                    .putInt(notes.x(id)).putInt(notes.y(id))
+                    .putShort((short) color.length).put(color)
+                    .putInt(length).put(notes.text(), start, length);
+            writer.end();
+        }
+        int j = 0;
+        for (int i = 0; i < image.pinPoints.length; i++) {
+            int count = image.piercedEnds[i] - j;
+            if (RECORD_OVERHEAD + 4 + 4 + 4 + 4L * count > MAX_RECORD_BYTES)
+                throw new IOException("the pin at " + (int) (image.pinPoints[i] >> 32) + " " + (int) image.pinPoints[i]
+                        + " pierces too many notes to be compacted");
+            ByteBuffer record = writer.begin(PINNED, image.version, 4 + 4 + 4 + 4 * count)
+                    .putInt((int) (image.pinPoints[i] >> 32)).putInt((int) image.pinPoints[i]).putInt(count);
+            for (; j < image.piercedEnds[i]; j++)
+                record.putInt(image.pierced[j]);
+            writer.end();
+        }
+        long imageEnd = writer.finish();
+
+        // The header and BASE record go in front last, once the image's size is known
+        ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES + RECORD_OVERHEAD + BASE_FIELD_BYTES).putInt(MAGIC);
+        startRecord(head, BASE, image.version, BASE_FIELD_BYTES);
+        head.putInt(image.boardWidth).putInt(image.boardHeight).putInt(image.noteWidth).putInt(image.noteHeight)
+                .putInt(image.notes.size()).putInt(image.pinPoints.length).putLong(imageEnd);
+        endRecord(head, HEADER_BYTES, new CRC32());
+        head.flip();
+        writeFully(out, head, 0);
+        return imageEnd;
+    }
+
+    /* Replay */
+    // Applies the records of the journal at path that are newer than the board's version: all of them on an empty
+    // board, only the tail after a snapshot the board was restored from. from is where the snapshot says that tail
+    // starts (-1 if unknown); if the file does not match, the journal is read from the start instead.
+    // The image of a compacted journal is restored in one go, onto an empty board only.
+    // A record cut short or damaged by a crash ends the journal: it and anything after it are cut off the file,
+    // along with the rest of its group, so a batch or transaction is replayed whole or not at all.
+    // Returns the number of records applied. Throws if a record does not apply the way it did when it was
+    // written, which means the server was started with a different board size or colors
+    public static long replay(Path path, Board board, long from) throws IOException {
+        if (!Files.exists(path))
+            return 0;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() == 0)
+                return 0;
+            checkHeader(channel, path);
+
+            long start = tailStartsAt(channel, from, board.version()) ? from : HEADER_BYTES;
+            RecordReader reader = new RecordReader(channel, start);
+            long applied = 0;
+            ByteBuffer record;
+            long end = -1;
+            while ((record = reader.next()) != null) {
+                if (record.get(record.position()) == GROUP) {
+                    if (!groupComplete(channel, reader.offset(), record.getInt(record.position() + 9))) {
+                        end = reader.recordOffset();
+                        break;
+                    }
+                    continue;
+                }
+                // Already part of the snapshot
+                if (record.getLong(record.position() + 1) <= board.version())
+                    continue;
+                if (record.get(record.position()) == BASE)
+                    restoreBase(record, reader, board, path);
+                else
+                    apply(record, board, reader.recordOffset());
+                applied++;
+            }
+
+            if (end < 0)
+                end = reader.offset();
+            if (end < channel.size()) {
+                System.err.println("Warning: journal " + path + " ends with " + (channel.size() - end)
+                        + " bytes of an incomplete record or group (a crash while writing it) — dropping them.");
+                channel.truncate(end);
+                channel.force(true);
+            }
+            return applied;
+        }
+    }
+
+    // Checks if the changes after version start at file offset from: it is the end of the file or the start of
+    // the (whole) record of the next version, or of a group starting at version
+    private static boolean tailStartsAt(FileChannel channel, long from, long version) throws IOException {
+        if (from < HEADER_BYTES || from > channel.size())
+            return false;
+        if (from == channel.size())
+            return true;
+        ByteBuffer record = new RecordReader(channel, from).next();
+        if (record == null)
+            return false;
+        long recordVersion = record.getLong(record.position() + 1);
+        return record.get(record.position()) == GROUP ? recordVersion == version : recordVersion == version + 1;
+    }
+
+    // Checks if the count records of a group are all whole, the first one at file offset from
+    private static boolean groupComplete(FileChannel channel, long from, int count) throws IOException {
+        RecordReader group = new RecordReader(channel, from);
+        for (int i = 0; i < count; i++) {
+            if (group.next() == null)
+                return false;
+        }
+        return true;
+    }
+
+    // Restores the image a compacted journal starts with, base being its BASE record and reader just past it
+    private static void restoreBase(ByteBuffer base, RecordReader reader, Board board, Path path) throws IOException {
+        base.get();
+        long version = base.getLong();
+        int boardWidth = base.getInt(), boardHeight = base.getInt(), noteWidth = base.getInt(), noteHeight = base.getInt();
+        if (board.version() != 0)
+            throw new IOException(path + " was compacted at version " + version + ", it cannot be replayed onto a board"
+                    + " at version " + board.version());
+        if (boardWidth != board.boardWidth() || boardHeight != board.boardHeight()
+                || noteWidth != board.noteWidth() || noteHeight != board.noteHeight())
+            throw new IOException(path + " was written for a " + boardWidth + "x" + boardHeight + " board with "
+                    + noteWidth + "x" + noteHeight + " notes");
+
+        // The notes go into a store of their own, which the board then takes over
+        NoteStore store = new NoteStore(board.validColors());
+        int noteCount = base.getInt();
+        long[] pinPoints = new long[base.getInt()];
+        int[] piercedEnds = new int[pinPoints.length];
+        int[] pierced = new int[16];
+        try {
+            for (int i = 0; i < noteCount; i++) {
+                ByteBuffer record = imageRecord(reader, POST, version, path);
+                int x = record.getInt(), y = record.getInt();
+                String name = readString(record, record.getShort() & 0xFFFF);
+                int color = board.validColors().indexOf(name);
+                if (color < 0)
+                    throw new IOException(path + " has notes of color " + name + ", which the server does not allow");
+                store.add(x, y, color, record, record.getInt());
+            }
+            int j = 0;
+            for (int i = 0; i < pinPoints.length; i++) {
+                ByteBuffer record = imageRecord(reader, PINNED, version, path);
+                pinPoints[i] = Board.key(record.getInt(), record.getInt());
+                int count = record.getInt();
+                if (j + count > pierced.length)
+                    pierced = Arrays.copyOf(pierced, Math.max(pierced.length * 2, j + count));
+                for (int end = j + count; j < end; j++)
+                    pierced[j] = record.getInt();
+                piercedEnds[i] = j;
+            }
+            board.restore(new SnapshotFile.Image(boardWidth, boardHeight, noteWidth, noteHeight, version, -1,
+                    store.notes(), pinPoints, piercedEnds, pierced));
+        } catch (RuntimeException e) {
+            // Records that passed their CRC but do not make a board
+            throw new IOException(path + " is damaged: " + e, e);
+        }
+    }
+
+    // The next record of a compacted journal's image, positioned after its version
+    private static ByteBuffer imageRecord(RecordReader reader, byte type, long version, Path path) throws IOException {
+        ByteBuffer record = reader.next();
+        if (record == null || record.get() != type || record.getLong() != version)
+            throw new IOException(path + " is damaged: its image ends at offset " + reader.offset());
+        return record;
+    }
+
+    // Runs one record's mutation on board and checks it did what it did originally
+    private static void apply(ByteBuffer record, Board board, long offset) throws IOException {
+        byte type = record.get();
+        long version = record.getLong();
+        String response;
+        String expected;
+        switch (type) {
+            case POST: {
+                int x = record.getInt();
+                int y = record.getInt();
+                String color = readString(record, record.getShort() & 0xFFFF);
+                String message = readString(record, record.getInt());
+                response = board.addNote(x, y, color, message);
+                expected = "OK NOTE_POSTED";
+                break;
+            }
+            case PIN:
+                response = board.addPin(record.getInt(), record.getInt());
+                expected = "OK PIN_ADDED";
+                break;
+            case UNPIN:
+                response = board.unPin(record.getInt(), record.getInt());
+                expected = "OK PIN_REMOVED";
+                break;
+            case SHAKE:
+                response = board.shake();
+                expected = "OK SHAKE_COMPLETE";
+                break;
+            case CLEAR:
+                response = board.clear();
+                expected = "OK CLEAR_COMPLETE";
+                break;
+            default:
+                throw new IOException("unknown journal record type " + type + " at offset " + offset);
+        }
+        if (!response.equals(expected) || board.version() != version)
+            throw new IOException("journal record at offset " + offset + " does not apply to this board ("
+                    + response + " at version " + board.version() + ", expected version " + version
+                    + ") — was the server started with different dimensions or colors?");
+    }
+
+    /* Flusher */
+    // Hands committed records to the file: immediately in ALWAYS mode, so records committed while a force is
+    // running go out together with the next one, every interval otherwise
+    private void runFlusher() {
+        while (true) {
+            ByteBuffer batch;
+            long end;
+            FileChannel target;
+            long position;
+            lock.lock();
+            try {
+                if (mode == SyncMode.ALWAYS) {
+                    while ((committedLength == 0 || swapping) && !closed)
+                        recordsCommitted.awaitUninterruptibly();
+                } else if (!closed) {
+                    try {
+                        recordsCommitted.awaitNanos(syncMillis * 1_000_000L);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                // close() waits for compact(), so swapping is never left set once closed
+                if (committedLength == 0 || swapping) {
+                    if (closed)
+                        return;
+                    continue;
+                }
+                end = committed;
+                batch = takeCommitted();
+                target = channel;
+                position = end - batch.remaining() - shift;
+                flushing = true;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                writeFully(target, batch, position);
+                if (mode != SyncMode.OFF)
+                    target.force(false);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+
+            flushes++;
+            lock.lock();
+            try {
+                flushing = false;
+                durable = end;
+                recordsFlushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            runDurableActions();
+        }
+    }
+
+    // Swaps in the spare buffer for appending, moving the uncommitted records over, and returns the
+    // committed ones ready to be written. Called with the lock held
+    private ByteBuffer takeCommitted() {
+        ByteBuffer batch = pending;
+        int uncommitted = batch.position() - committedLength;
+        ByteBuffer next = spare;
+        if (next.capacity() < uncommitted + INITIAL_BUFFER_BYTES)
+            next = ByteBuffer.allocate(Math.max(batch.capacity(), uncommitted + INITIAL_BUFFER_BYTES));
+        next.clear();
+        next.put(batch.array(), committedLength, uncommitted);
+
+        batch.limit(committedLength).position(0);
+        pendingOffset += committedLength;
+        committedLength = 0;
+        pending = next;
+        spare = batch;
+        return batch;
+    }
+
+    // Stops journaling after a failed write: the board keeps working, but changes from here on are not saved
+    private void fail(IOException e) {
+        System.err.println("Journal error: " + e.getMessage() + " — changes are no longer being journaled.");
+        lock.lock();
+        try {
+            failure = e;
+            pending = ByteBuffer.allocate(0);
+            committedLength = 0;
+            groupStart = -1;
+            flushing = false;
+            recordsFlushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        runDurableActions();
+    }
+
+    /* Helper methods */
+    // A record of a change at one point
+    private void point(byte type, long version, int x, int y) {
+        lock.lock();
+        try {
+            if (begin(type, version, 8)) {
+                pending.putInt(x).putInt(y);
+                end();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A record of a change to the whole board
+    private void board(byte type, long version) {
+        lock.lock();
+        try {
+            if (begin(type, version, 0))
+                end();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Starts a record with fieldBytes bytes of fields, growing the buffer if needed.
+    // Returns false (nothing to write) once the journal has failed
+    private boolean begin(byte type, long version, int fieldBytes) {
+        if (failure != null)
+            return false;
+        if (groupStart >= 0)
+            groupRecords++;
+        int size = RECORD_OVERHEAD + fieldBytes;
+        if (pending.remaining() < size) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + size));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        recordStart = pending.position();
+        startRecord(pending, type, version, fieldBytes);
+        return true;
+    }
+
+    // Ends the record begun last with its checksum
+    private void end() {
+        endRecord(pending, recordStart, crc);
+    }
+
+    // Puts the length, type and version of a record with fieldBytes bytes of fields
+    private static void startRecord(ByteBuffer buffer, byte type, long version, int fieldBytes) {
+        buffer.putInt(RECORD_OVERHEAD + fieldBytes - 4).put(type).putLong(version);
+    }
+
+    // Puts the checksum of the record that starts at start and whose fields were just put
+    private static void endRecord(ByteBuffer buffer, int start, CRC32 crc) {
+        crc.reset();
+        crc.update(buffer.array(), start + 4, buffer.position() - start - 4);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    private static String readString(ByteBuffer record, int length) {
+        String s = new String(record.array(), record.arrayOffset() + record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return s;
+    }
+
+    // The BASE record a compacted journal starts with (positioned at its type), or null
+    private static ByteBuffer readBase(FileChannel channel) throws IOException {
+        ByteBuffer record = new RecordReader(channel, HEADER_BYTES).next();
+        return record != null && record.get(record.position()) == BASE ? record : null;
+    }
+
+    private static void checkHeader(FileChannel channel, Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0)
+                break;
+        }
+        if (header.hasRemaining() || header.getInt(0) != MAGIC)
+            throw new IOException(path + " is not a board journal");
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    // An action waiting in whenDurable()
+    private static final class DurableAction {
+        final long offset;
+        final Runnable action;
+
+        DurableAction(long offset, Runnable action) {
+            this.offset = offset;
+            this.action = action;
+        }
+    }
+
+    /* Image writer */
+    // Writes the records of a compacted journal's image through one buffer, from a file offset on
+    private static final class ImageWriter {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private long position;
+        private int recordStart;
+        private final CRC32 crc = new CRC32();
+
+        ImageWriter(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        // Starts a record, returns the buffer to put its fields in
+        ByteBuffer begin(byte type, long version, int fieldBytes) throws IOException {
+            int size = RECORD_OVERHEAD + fieldBytes;
+            if (buffer.remaining() < size) {
+                drain();
+                if (buffer.capacity() < size)
+                    buffer = ByteBuffer.allocate(size);
+            }
+            recordStart = buffer.position();
+            startRecord(buffer, type, version, fieldBytes);
+            return buffer;
+        }
+
+        void end() {
+            endRecord(buffer, recordStart, crc);
+        }
+
+        // Writes what is still buffered, returns the file offset just past the last record
+        long finish() throws IOException {
+            drain();
+            return position;
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            int n = buffer.remaining();
+            writeFully(channel, buffer, position);
+            position += n;
+            buffer.clear();
+        }
+    }
+
+    /* Record reader */
+    // Reads the records of a journal in order, through one buffer refilled from the channel
+    private static final class RecordReader {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private long bufferOffset; // file offset of buffer[0]
+        private long offset;       // file offset just past the last whole record
+        private long recordOffset;
+
+        RecordReader(FileChannel channel, long start) {
+            this.channel = channel;
+            this.bufferOffset = start;
+            this.offset = start;
+            this.buffer.limit(0);
+        }
+
+        long offset() { return offset; }
+        long recordOffset() { return recordOffset; }
+
+        // The next whole record after its length (positioned at its type, limited before its CRC),
+        // or null at the end of the journal or at a damaged record
+        ByteBuffer next() throws IOException {
+            try {
+                ensure(4);
+                int length = buffer.getInt(buffer.position());
+                if (length < RECORD_OVERHEAD - 4 || length > MAX_RECORD_BYTES)
+                    return null;
+                ensure(4 + length);
+
+                int start = buffer.position() + 4;
+                int fieldsEnd = start + length - 4;
+                CRC32 crc = new CRC32();
+                crc.update(buffer.array(), start, length - 4);
+                if ((int) crc.getValue() != buffer.getInt(fieldsEnd))
+                    return null;
+
+                recordOffset = offset;
+                offset += 4 + length;
+                ByteBuffer record = buffer.duplicate();
+                record.position(start).limit(fieldsEnd);
+                buffer.position(fieldsEnd + 4);
+                return record;
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        // Makes at least n bytes available from the current position, throws EOFException if the file ends first
+        private void ensure(int n) throws IOException {
+            if (buffer.remaining() >= n)
+                return;
+            bufferOffset += buffer.position();
+            if (buffer.capacity() < n) {
+                ByteBuffer bigger = ByteBuffer.allocate(n);
+                bigger.put(buffer);
+                buffer = bigger;
+            } else {
+                buffer.compact();
+            }
+            while (buffer.position() < n) {
+                if (channel.read(buffer, bufferOffset + buffer.position()) < 0) {
+                    buffer.flip();
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
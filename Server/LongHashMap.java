@@ -0,0 +1,156 @@
+package Server;
+
+import java.util.Arrays;
+
+/*
+LongHashMap class is an open-addressing hash map from primitive long keys to values.
+Keys are never boxed: they sit in a long[] next to an Object[] of values, probed linearly,
+and removal shifts later entries back instead of leaving tombstones.
+Used for lookups by packed (x << 32 | y) coordinate. Values must not be null.
+Not thread safe, the board only touches it while holding its lock.
+*/
+
+public class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values; // a null value marks an empty slot
+    private int size = 0;
+    private int mask;
+
+    // Initializes an empty map
+    public LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    // Initializes an empty map sized for about expected entries
+    public LongHashMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    /* Queries */
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    // Returns the value for key, or null if there is none
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return (V) values[i];
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    // Returns every key, in no particular order
+    public long[] keys() {
+        long[] result = new long[size];
+        int count = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null)
+                result[count++] = keys[i];
+        }
+        return result;
+    }
+
+    /* Updates */
+    // Maps key to value, returns the previous value or null
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("null value");
+
+        int i = slot(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+
+        // Keep the table at most half full so probe runs stay short
+        if (++size * 2 > values.length)
+            allocateAndRehash(values.length * 2);
+        return null;
+    }
+
+    // Removes key, returns its value or null if it was not there
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = slot(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                shiftBack(i);
+                size--;
+                return old;
+            }
+        }
+        return null;
+    }
+
+    // Removes every entry, shrinking the table back down
+    public void clear() {
+        if (values.length > MIN_CAPACITY * 4) {
+            allocate(MIN_CAPACITY);
+        } else {
+            Arrays.fill(values, null);
+        }
+        size = 0;
+    }
+
+    /* Helper methods */
+    // Closes the gap at slot i by moving back any later entry in the same probe run that
+    // would otherwise become unreachable (backward-shift deletion)
+    private void shiftBack(int i) {
+        int gap = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            // Entry j may move into the gap only if its home slot is not between the gap and j (cyclically)
+            boolean movable = gap <= j ? (home <= gap || home > j) : (home <= gap && home > j);
+            if (movable) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = null;
+    }
+
+    // Home slot of a key, mixing the bits so nearby coordinates spread over the table
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private void allocateAndRehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                while (values[j] != null)
+                    j = (j + 1) & mask;
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+NioServer class is the selector-based alternative to the thread-per-client accept loop.
+The acceptor hands each connection to one of a small fixed set of event-loop threads, which frame lines,
+run them through the board and write the responses back without blocking.
+The bytes on the wire are the same as ClientHandler's (same greeting, AsciiCodec encoding and DISCONNECT close).
+With a CommandEngine, a command it applies is offered to its ring and the connection waits for the callback
+(answering nothing else meanwhile) while the loop serves its other connections.
+When the journal syncs every change, a command that journaled something holds its connection's output the same
+way until the journal calls back that its records are on disk, instead of the loop waiting for the sync.
+*/
+
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Encoded responses are queued for writing once they reach this many bytes
+    private static final int ENCODE_CHUNK_SIZE = 64 * 1024;
+    // A connection stops answering requests and producing response bodies while this many bytes wait to be
+    // written, so a GET of the whole board (or many pipelined ones) holds at most about this much of its output
+    private static final int OUTPUT_HIGH_WATER = 256 * 1024;
+    // How often a connection that found the engine's ring full offers its command again
+    private static final long RING_RETRY_MILLIS = 1;
+
+    private final int port;
+    private final Board board;
+    private final EventLoop[] loops;
+
+    // Initializes the server with its port, board and number of event-loop threads
+    public NioServer(int port, Board board, int loopCount) {
+        this.port = port;
+        this.board = board;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    // Starts the event loops and accepts connections forever, handing them out round-robin
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread t = new Thread(loops[i], "bboard-nio-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+
+            int next = 0;
+            while (true) {
+                SocketChannel client = server.accept();
+                client.configureBlocking(false);
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /* Event loop */
+    // One selector thread serving many connections
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // Connections with SUBSCRIBE events waiting, queued from whichever thread changed the board
+        private final Queue<Connection> eventsReady = new ConcurrentLinkedQueue<>();
+        // Set from the first wakeup() until the loop wakes, so a burst of events wakes the selector only once
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        // Connections whose engine command has been applied, queued from the engine's writer thread
+        private final Queue<Connection> engineDone = new ConcurrentLinkedQueue<>();
+        // Connections whose journal records are on disk, queued from the journal's flusher thread
+        private final Queue<Connection> durable = new ConcurrentLinkedQueue<>();
+        // Connections that found the engine's ring full, retried every RING_RETRY_MILLIS (loop thread only)
+        private final List<Connection> ringFull = new ArrayList<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        // Queues a newly accepted channel and wakes the selector so it gets registered
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        // Marks a connection as having events to write and wakes the selector, unless a wakeup is already pending
+        void eventsReady(Connection conn) {
+            eventsReady.add(conn);
+            wakeup();
+        }
+
+        // Marks a connection's engine command as applied and wakes the selector, same as eventsReady()
+        void engineDone(Connection conn) {
+            engineDone.add(conn);
+            wakeup();
+        }
+
+        // Marks a connection's journal records as on disk and wakes the selector, same as eventsReady()
+        void durable(Connection conn) {
+            durable.add(conn);
+            wakeup();
+        }
+
+        private void wakeup() {
+            if (!wakeupPending.get() && wakeupPending.compareAndSet(false, true))
+                selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    if (ringFull.isEmpty())
+                        selector.select();
+                    else
+                        selector.select(RING_RETRY_MILLIS);
+                    wakeupPending.set(false);
+                    registerPending();
+                    finishEngineCommands();
+                    releaseDurable();
+                    deliverEvents();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable())
+                                conn.onWritable();
+                            if (key.isValid() && key.isReadable())
+                                conn.onReadable();
+                        } catch (IOException e) {
+                            System.err.println("Client handler error: " + e.getMessage());
+                            conn.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        // Answers the connections whose engine command was applied, and offers the ones that found the ring full again
+        private void finishEngineCommands() {
+            Connection conn;
+            while ((conn = engineDone.poll()) != null) {
+                try {
+                    conn.onEngineDone();
+                } catch (IOException e) {
+                    System.err.println("Client handler error: " + e.getMessage());
+                    conn.close();
+                }
+            }
+
+            if (ringFull.isEmpty())
+                return;
+            List<Connection> retry = new ArrayList<>(ringFull);
+            ringFull.clear();
+            for (Connection waiting : retry)
+                waiting.offerToEngine();
+        }
+
+        // Writes out the output the connections held until their journal records were on disk
+        private void releaseDurable() {
+            Connection conn;
+            while ((conn = durable.poll()) != null) {
+                try {
+                    conn.onDurable();
+                } catch (IOException e) {
+                    System.err.println("Client handler error: " + e.getMessage());
+                    conn.close();
+                }
+            }
+        }
+
+        // Writes out queued SUBSCRIBE events for every connection that has some
+        private void deliverEvents() {
+            Connection conn;
+            while ((conn = eventsReady.poll()) != null) {
+                try {
+                    conn.drainEvents();
+                } catch (IOException e) {
+                    System.err.println("Client handler error: " + e.getMessage());
+                    conn.close();
+                }
+            }
+        }
+
+        // Registers queued channels and sends each one the greeting line
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection conn = new Connection(channel, key, this);
+                    key.attach(conn);
+                    ServerStats.connectionOpened();
+                    conn.respond(board.greetingLine());
+                    conn.pump();
+                } catch (IOException e) {
+                    System.err.println("Client handler error: " + e.getMessage());
+                    try { channel.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+    }
+
+    /* Connection */
+    // Per-client framing and output state, only ever touched by its event loop.
+    // Also the sink the board writes this client's responses into
+    private class Connection implements ResponseSink {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final EventLoop loop;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final AsciiCodec.Encoder responses = new AsciiCodec.Encoder(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> outgoing = new ArrayDeque<>();
+        // Bytes in outgoing not written yet
+        private long outgoingBytes = 0;
+        // Response bodies still to be produced, in order, behind everything encoded so far
+        private final Queue<ResponseBody> bodies = new ArrayDeque<>();
+        private final Session session;
+
+        // Bytes of the line currently being framed
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+        // View the parser reads the framed line through, without decoding it
+        private final AsciiCodec.Line request = new AsciiCodec.Line();
+        // Set after a '\r' so that a following '\n' is not read as a second (empty) line
+        private boolean skipLF = false;
+        // Set once the client has closed its side, the lines still in readBuffer are answered first
+        private boolean inputEnded = false;
+        // Set once OK DISCONNECTING has been queued, the channel closes when output drains
+        private boolean closing = false;
+        // The command handed to the engine (or waiting for room in its ring), null when there is none
+        private String engineRequest;
+        // Its result, set once the engine's callback has been queued
+        private CommandEngine.Completion engineResult;
+        // Set while the output waits for the journal to put the last command's records on disk: nothing is written
+        // and no more lines are answered until the journal calls back (see holdUntilDurable())
+        private boolean holding = false;
+
+        Connection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+            this.session = new Session(board, () -> loop.eventsReady(this));
+        }
+
+        // Reads what is available and answers what it can (see pump())
+        void onReadable() throws IOException {
+            if (channel.read(readBuffer) < 0)
+                inputEnded = true;
+            pump();
+        }
+
+        // Queues every pending SUBSCRIBE event behind the responses already written, then writes them.
+        // While the socket is backed up the events stay in the (bounded) subscription queue instead
+        void drainEvents() throws IOException {
+            Subscription subscription = session.getSubscription();
+            if (closing || !channel.isOpen() || subscription == null || !outgoing.isEmpty() || !bodies.isEmpty()
+                    || engineRequest != null || holding)
+                return;
+            String event;
+            while ((event = subscription.poll()) != null)
+                respond(event);
+            pump();
+        }
+
+        // Continues writing queued output once the socket has room again
+        void onWritable() throws IOException {
+            pump();
+            drainEvents();
+        }
+
+        // Moves the connection along as far as it can without blocking: answers the request lines already read
+        // until the output backs up (see paused()), produces queued bodies up to the high-water mark, writes what
+        // the socket takes, and goes round again while that lets it answer more lines
+        void pump() throws IOException {
+            do {
+                answerLines();
+            } while (writeOutput() && !paused() && readBuffer.position() > 0);
+
+            if (closing && !holding && outgoing.isEmpty() && bodies.isEmpty()) {
+                close();
+                return;
+            }
+
+            // Stop reading while output is backed up, the same backpressure a blocking write gives
+            int ops = outgoing.isEmpty() || holding ? 0 : SelectionKey.OP_WRITE;
+            if (!paused() && !inputEnded)
+                ops |= SelectionKey.OP_READ;
+            try {
+                key.interestOps(ops);
+            } catch (CancelledKeyException e) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        // Checks if answering more lines has to wait: for the engine to apply the last one, for the journal to put
+        // its records on disk, for the output already queued to drain below the high-water mark (and its bodies to
+        // be produced), or forever once closing
+        private boolean paused() {
+            return closing || engineRequest != null || holding || !bodies.isEmpty()
+                    || outgoingBytes + responses.size() >= OUTPUT_HIGH_WATER;
+        }
+
+        // Frames and answers the complete lines in the read buffer, until paused(). What is left stays in the
+        // buffer for the next call
+        private void answerLines() {
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !paused()) {
+                byte b = readBuffer.get();
+                if (skipLF) {
+                    skipLF = false;
+                    if (b == '\n')
+                        continue;
+                }
+                if (b == '\n' || b == '\r') {
+                    skipLF = (b == '\r');
+                    handleLine();
+                    lineLength = 0;
+                } else {
+                    appendByte(b);
+                }
+            }
+            readBuffer.compact();
+
+            if (inputEnded && readBuffer.position() == 0 && !paused()) {
+                // Like readLine(), a final unterminated line is still answered before closing
+                if (lineLength > 0) {
+                    handleLine();
+                    lineLength = 0;
+                }
+                closing = true;
+            }
+        }
+
+        // Runs the framed line through the board, same rules as ClientHandler (Board.handleCommand(), minus its wait
+        // for the journal). A command the engine applies is offered to it instead, and answered once it calls back
+        // (see onEngineDone())
+        private void handleLine() {
+            request.set(line, 0, lineLength);
+            CharSequence text = AsciiCodec.request(request);
+            CommandEngine engine = board.engine();
+            if (engine != null && CommandEngine.handles(text, session)) {
+                engineRequest = text.toString();
+                offerToEngine();
+                return;
+            }
+
+            Journal journal = board.journal();
+            long journaled = journal == null ? 0 : journal.committedByThisThread();
+            String status = RequestParser.execute(text, board, session, this);
+            if (journal != null && journal.committedByThisThread() != journaled)
+                holdUntilDurable(journal, journal.committedByThisThread());
+            if (status.startsWith("OK DISCONNECTING")) {
+                closing = true;
+            }
+        }
+
+        // Holds the output written so far until the journal has the records up to offset on disk, when it syncs
+        // every change
+        private void holdUntilDurable(Journal journal, long offset) {
+            if (!journal.whenDurable(offset, () -> loop.durable(this)))
+                holding = true;
+        }
+
+        // Writes the held output once the journal has called back, then answers the lines that waited for it
+        void onDurable() throws IOException {
+            holding = false;
+            if (!channel.isOpen())
+                return;
+            pump();
+            drainEvents();
+        }
+
+        // Offers the pending command to the engine, or queues the connection to try again if its ring is full
+        void offerToEngine() {
+            if (!channel.isOpen())
+                return;
+            if (!board.engine().offer(engineRequest, session, result -> {
+                engineResult = result;
+                loop.engineDone(this);
+            }))
+                loop.ringFull.add(this);
+        }
+
+        // Writes the response of the command the engine applied, then answers the lines that waited for it
+        void onEngineDone() throws IOException {
+            CommandEngine.Completion result = engineResult;
+            engineResult = null;
+            engineRequest = null;
+            if (!channel.isOpen())
+                return;
+            if (result.failure() != null)
+                throw new IOException(result.failure());
+
+            result.writeResponse(this);
+            // Like Board.handleCommand, the response waits until its changes are on disk when the journal syncs
+            // every change
+            Journal journal = board.journal();
+            if (journal != null && result.journaled() > 0)
+                holdUntilDurable(journal, result.journaled());
+            pump();
+            drainEvents();
+        }
+
+        // Encodes a response line, large responses are queued chunk by chunk as they are written
+        void respond(CharSequence s) {
+            responses.line(s);
+            if (responses.size() >= ENCODE_CHUNK_SIZE)
+                encodeResponses();
+        }
+
+        // A line written after a body that is still being produced is queued behind it
+        @Override
+        public void line(CharSequence s) {
+            if (bodies.isEmpty())
+                respond(s);
+            else
+                bodies.add(ResponseBody.line(s.toString()));
+        }
+
+        // A cached response is already encoded, its bytes are queued as they are (shared, never modified)
+        @Override
+        public void cached(CachedResponse response) {
+            if (!bodies.isEmpty()) {
+                response.writeLines(this);
+                return;
+            }
+            encodeResponses();
+            byte[] bytes = response.bytes();
+            outgoing.add(ByteBuffer.wrap(bytes));
+            outgoingBytes += bytes.length;
+        }
+
+        @Override
+        public boolean writesBytes() {
+            return true;
+        }
+
+        // A body is produced as the socket drains (see produce())
+        @Override
+        public void body(ResponseBody body) {
+            if (body.remaining() > 0)
+                bodies.add(body);
+        }
+
+        // Moves the encoded responses into the outgoing queue
+        private void encodeResponses() {
+            if (responses.size() > 0) {
+                outgoing.add(ByteBuffer.wrap(responses.toByteArray()));
+                outgoingBytes += responses.size();
+                responses.reset();
+            }
+        }
+
+        // Encodes lines of the queued bodies until OUTPUT_HIGH_WATER bytes are waiting to be written
+        private void produce() {
+            while (!bodies.isEmpty() && outgoingBytes + responses.size() < OUTPUT_HIGH_WATER) {
+                ResponseBody body = bodies.peek();
+                body.encode(responses, ENCODE_CHUNK_SIZE);
+                encodeResponses();
+                if (body.remaining() == 0)
+                    bodies.poll();
+            }
+        }
+
+        // Produces and writes output until the socket stops taking it or none is left.
+        // Returns true if everything was written
+        private boolean writeOutput() throws IOException {
+            if (holding)
+                return false;
+            while (true) {
+                produce();
+                encodeResponses();
+                while (!outgoing.isEmpty()) {
+                    ByteBuffer head = outgoing.peek();
+                    outgoingBytes -= channel.write(head);
+                    if (head.hasRemaining())
+                        return false;
+                    outgoing.poll();
+                }
+                if (bodies.isEmpty())
+                    return true;
+            }
+        }
+
+        // Grows the line buffer as needed, up to AsciiCodec.MAX_LINE_BYTES. A longer line cannot be a valid
+        // request, it is answered with ERROR INVALID_FORMAT and the connection is closed
+        private void appendByte(byte b) {
+            if (lineLength == AsciiCodec.MAX_LINE_BYTES) {
+                respond("ERROR INVALID_FORMAT");
+                closing = true;
+                return;
+            }
+            if (lineLength == line.length) {
+                byte[] bigger = new byte[line.length * 2];
+                System.arraycopy(line, 0, bigger, 0, lineLength);
+                line = bigger;
+            }
+            line[lineLength++] = b;
+        }
+
+        void close() {
+            if (!channel.isOpen())
+                return;
+            ServerStats.connectionClosed();
+            session.close();
+            key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+NoteGrid class is a uniform-grid spatial index over the notes on the board.
+Every note has the same size, so each note is stored once (by its id in the NoteStore), in the cell holding its
+upper-left corner. Cells are at least one note wide/high, which means the notes containing a point always have
+their corner in at most 2x2 neighbouring cells and a point lookup never has to look at the rest of the board.
+Not thread safe, the board only touches it while holding its lock.
+*/
+
+public class NoteGrid {
+    // Caps the number of cells on very large boards with tiny notes, cells just get wider than a note
+    private static final int MAX_CELLS_PER_AXIS = 512;
+
+    private final NoteStore store;
+    private final int noteWidth, noteHeight;
+    private final int cellWidth, cellHeight;
+    private final int columns, rows;
+    // Note ids by cell, each cell in posting order
+    private final List<IntList> cells;
+
+    // Initializes an empty grid covering the board, over the notes of store
+    public NoteGrid(int boardWidth, int boardHeight, int noteWidth, int noteHeight, NoteStore store) {
+        this.store = store;
+        this.noteWidth = noteWidth;
+        this.noteHeight = noteHeight;
+        this.cellWidth = Math.max(noteWidth, ceilDiv(boardWidth, MAX_CELLS_PER_AXIS));
+        this.cellHeight = Math.max(noteHeight, ceilDiv(boardHeight, MAX_CELLS_PER_AXIS));
+        this.columns = boardWidth / cellWidth + 1;
+        this.rows = boardHeight / cellHeight + 1;
+
+        // Cell lists are created on first use, most cells of a sparse board stay null
+        this.cells = new ArrayList<>(columns * rows);
+        for (int i = 0; i < columns * rows; i++)
+            cells.add(null);
+    }
+
+    /* Updates */
+    // Adds a note to the cell of its upper-left corner. Notes are added in posting order
+    public void add(int id) {
+        NoteStore.Notes notes = store.notes();
+        int i = cellIndex(notes.x(id), notes.y(id));
+        IntList cell = cells.get(i);
+        if (cell == null) {
+            cell = new IntList(4);
+            cells.set(i, cell);
+        }
+        cell.add(id);
+    }
+
+    // Renumbers the notes after the store dropped some (see NoteStore.removeUnpinned), removing the dropped ones
+    public void remap(int[] newIds) {
+        for (int i = 0; i < cells.size(); i++) {
+            IntList cell = cells.get(i);
+            if (cell == null)
+                continue;
+            cell.remap(newIds);
+            if (cell.isEmpty())
+                cells.set(i, null);
+        }
+    }
+
+    // Removes every note
+    public void clear() {
+        for (int i = 0; i < cells.size(); i++)
+            cells.set(i, null);
+    }
+
+    /* Queries */
+    // Checks if a point is on note id, pins cannot be on the edge of the note (as specified on Piazza)
+    public boolean containsPoint(int id, int pointX, int pointY) {
+        NoteStore.Notes notes = store.notes();
+        int x = notes.x(id), y = notes.y(id);
+        return x < pointX && pointX < x + noteWidth && y < pointY && pointY < y + noteHeight;
+    }
+
+    // Adds the id of every note containing the point (see containsPoint) to out, in the order they were posted
+    public void collectContaining(int pointX, int pointY, IntList out) {
+        // A note contains the point only if its corner is strictly up-left of it, less than a note size away
+        int minX = Math.max(0, pointX - noteWidth + 1), maxX = pointX - 1;
+        int minY = Math.max(0, pointY - noteHeight + 1), maxY = pointY - 1;
+        if (maxX < minX || maxY < minY)
+            return;
+
+        NoteStore.Notes notes = store.notes();
+        int start = out.size();
+        for (int cy = minY / cellHeight; cy <= Math.min(rows - 1, maxY / cellHeight); cy++) {
+            for (int cx = minX / cellWidth; cx <= Math.min(columns - 1, maxX / cellWidth); cx++) {
+                IntList cell = cells.get(cy * columns + cx);
+                if (cell == null)
+                    continue;
+                for (int i = 0; i < cell.size(); i++) {
+                    int id = cell.get(i);
+                    int x = notes.x(id), y = notes.y(id);
+                    if (x < pointX && pointX < x + noteWidth && y < pointY && pointY < y + noteHeight)
+                        out.add(id);
+                }
+            }
+        }
+
+        // Notes from different cells are merged back into posting order, which is id order
+        if (out.size() - start > 1)
+            out.sortFrom(start);
+    }
+
+    /* Helper methods */
+    private int cellIndex(int x, int y) {
+        return (y / cellHeight) * columns + (x / cellWidth);
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
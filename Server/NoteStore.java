@@ -0,0 +1,483 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/*
+NoteStore class holds the notes on the board as columns instead of one object per note.
+A note is its index (its id) in posting order: its x, y, color (an index into the board's colors) and the end of
+its message sit at that index of parallel arrays, and the messages are packed one after another as UTF-8 in one
+byte array. The board's indexes keep ids, so a note costs a few array slots plus its message bytes, and GET
+filters are scans over primitive arrays.
+A note's pins are packed (x << 32 | y) coordinates in columns too: the first two in pin0s / pin1s (most notes have
+none, one or two), more in an open-addressing set of longs of the note's own, so a pin costs no objects of its own.
+Notes are only ever appended; SHAKE and CLEAR move what is left into new arrays. Nothing below a Notes view's size
+is ever written again, so a view taken under the board's lock can still be read after the lock is released, which
+is how lock-free GETs and snapshot and journal writers read the board.
+Not thread safe, the board only changes it while holding its lock.
+*/
+
+public final class NoteStore {
+    // Maximum length of the message for a note to prevent excessive memory usage (RFC - 12)
+    public static final int MAX_MESSAGE_LENGTH = 256;
+    // Bytes of a NOTE line besides its color and message: "NOTE ", two ints, three spaces, " PINNED=false" and
+    // a terminator of up to 2 bytes
+    private static final int LINE_OVERHEAD_BYTES = 5 + 2 * 11 + 3 + 13 + 2;
+    // A note's color is kept in one byte
+    public static final int MAX_COLORS = 256;
+    private static final int MIN_CAPACITY = 16;
+    // Pins a note keeps in pin0s / pin1s before they move to a table
+    private static final int INLINE_PINS = 2;
+    private static final int MIN_TABLE_CAPACITY = 8;
+    // Never a point inside a note (x = y = -1), marks an empty slot of a pin table
+    private static final long NO_PIN = -1L;
+
+    private final List<String> colors;
+    // The current view, replaced by every change. Volatile, so a thread reading it without the board lock still
+    // gets a complete view
+    private volatile Notes notes;
+    // Pins on each note, by id: how many, the first two while there are at most INLINE_PINS, and every pin once
+    // there are more (probed linearly, at most half full; null otherwise)
+    private int[] pinCounts = new int[MIN_CAPACITY];
+    private long[] pin0s = new long[MIN_CAPACITY];
+    private long[] pin1s = new long[MIN_CAPACITY];
+    private long[][] pinTables = new long[MIN_CAPACITY][];
+
+    // Initializes an empty store for notes of the given colors
+    public NoteStore(List<String> colors) {
+        if (colors.size() > MAX_COLORS)
+            throw new IllegalArgumentException("at most " + MAX_COLORS + " colors are supported");
+        this.colors = colors;
+        this.notes = Notes.allocate(colors, MIN_CAPACITY, MIN_CAPACITY * 16);
+    }
+
+    // The notes currently in the store, posted ones beyond it are not in the view
+    public static final class Notes {
+        private final List<String> colorNames;
+        private final int size;
+        private final int textSize;
+        private final int[] xs, ys;
+        private final byte[] colors;
+        private final int[] messageEnds;
+        private final byte[] text;
+
+        private Notes(List<String> colorNames, int size, int textSize, int[] xs, int[] ys, byte[] colors,
+                int[] messageEnds, byte[] text) {
+            this.colorNames = colorNames;
+            this.size = size;
+            this.textSize = textSize;
+            this.xs = xs;
+            this.ys = ys;
+            this.colors = colors;
+            this.messageEnds = messageEnds;
+            this.text = text;
+        }
+
+        private static Notes allocate(List<String> colorNames, int capacity, int textCapacity) {
+            return new Notes(colorNames, 0, 0, new int[capacity], new int[capacity], new byte[capacity],
+                    new int[capacity], new byte[textCapacity]);
+        }
+
+        /* Getters */
+        public int size() { return size; }
+        public int x(int id) { return xs[id]; }
+        public int y(int id) { return ys[id]; }
+        public int colorIndex(int id) { return colors[id] & 0xFF; }
+        public String color(int id) { return colorNames.get(colors[id] & 0xFF); }
+        public String message(int id) {
+            return new String(text, messageStart(id), messageEnd(id) - messageStart(id), StandardCharsets.UTF_8);
+        }
+        List<String> colorNames() { return colorNames; }
+        // The note's message is text()[messageStart(id), messageEnd(id)), in UTF-8
+        byte[] text() { return text; }
+        int messageStart(int id) { return id == 0 ? 0 : messageEnds[id - 1]; }
+        int messageEnd(int id) { return messageEnds[id]; }
+
+        /* Queries */
+        // Checks if note id passes GET's filters: color index color (-1 for any) and refersTo= text needle in
+        // UTF-8 (null for any). A string contains another exactly when its UTF-8 bytes contain the other's
+        boolean matches(int id, int color, byte[] needle) {
+            return (color < 0 || (colors[id] & 0xFF) == color)
+                    && (needle == null || contains(messageStart(id), messageEnds[id], needle));
+        }
+
+        // Adds the id of every note passing GET's filters (as in matches) to out, in posting order
+        void scan(int color, byte[] needle, IntList out) {
+            int start = 0;
+            for (int id = 0; id < size; id++) {
+                int end = messageEnds[id];
+                if ((color < 0 || (colors[id] & 0xFF) == color)
+                        && (needle == null || contains(start, end, needle)))
+                    out.add(id);
+                start = end;
+            }
+        }
+
+        // Most bytes count NOTE lines of this view can take once encoded (terminators included), worked out without
+        // rendering them: a fixed part per line plus the messages, all of them at most
+        long lineBytesBound(int count) {
+            int longestColor = 0;
+            for (String name : colorNames)
+                longestColor = Math.max(longestColor, name.length());
+            return (long) count * (LINE_OVERHEAD_BYTES + 3 * longestColor)
+                    + Math.min(textSize, (long) count * 3 * MAX_MESSAGE_LENGTH);
+        }
+
+        // Appends a note in its GET response form: NOTE x y color message PINNED=true|false
+        void appendLine(StringBuilder sb, int id, boolean pinned) {
+            sb.append("NOTE ").append(xs[id]).append(" ").append(ys[id]).append(" ").append(color(id)).append(" ")
+                    .append(message(id)).append(" PINNED=").append(pinned);
+        }
+
+        // Encodes a note in its GET response form into out. With a UTF-8 charset the message is copied from the
+        // text as it is, with no String in between
+        void encodeLine(AsciiCodec.Encoder out, int id, boolean pinned, StringBuilder sb) {
+            if (!AsciiCodec.UTF8) {
+                sb.setLength(0);
+                appendLine(sb, id, pinned);
+                out.line(sb);
+                return;
+            }
+            out.text("NOTE ");
+            out.number(xs[id]);
+            out.text(" ");
+            out.number(ys[id]);
+            out.text(" ");
+            out.text(color(id));
+            out.text(" ");
+            out.write(text, messageStart(id), messageEnd(id) - messageStart(id));
+            out.text(pinned ? " PINNED=true" : " PINNED=false");
+            out.endLine();
+        }
+
+        // The NOTE lines of notes ids, pinned.get(i) being the pinned flag of ids.get(i)
+        ResponseBody lines(IntList ids, BitSet pinned) {
+            return new ResponseBody() {
+                private int next = 0;
+
+                @Override
+                public int remaining() { return ids.size() - next; }
+
+                @Override
+                protected void next(StringBuilder sb) {
+                    appendLine(sb, ids.get(next), pinned.get(next));
+                    next++;
+                }
+
+                @Override
+                void encodeNext(AsciiCodec.Encoder out, StringBuilder sb) {
+                    encodeLine(out, ids.get(next), pinned.get(next), sb);
+                    next++;
+                }
+            };
+        }
+
+        // The NOTE lines of the first count notes, with their pinned flags 64 to a word (as in BoardSnapshot)
+        ResponseBody lines(int count, PersistentList<Long> pinnedWords) {
+            return new ResponseBody() {
+                private int next = 0;
+                private long bits;
+
+                @Override
+                public int remaining() { return count - next; }
+
+                @Override
+                protected void next(StringBuilder sb) {
+                    if ((next & 63) == 0)
+                        bits = pinnedWords.get(next >>> 6);
+                    appendLine(sb, next, (bits & (1L << next)) != 0);
+                    next++;
+                }
+
+                @Override
+                void encodeNext(AsciiCodec.Encoder out, StringBuilder sb) {
+                    if ((next & 63) == 0)
+                        bits = pinnedWords.get(next >>> 6);
+                    encodeLine(out, next, (bits & (1L << next)) != 0, sb);
+                    next++;
+                }
+            };
+        }
+
+        /* Helper methods */
+        // Checks if text[start, end) contains needle
+        private boolean contains(int start, int end, byte[] needle) {
+            byte first = needle[0];
+            for (int i = start, last = end - needle.length; i <= last; i++) {
+                if (text[i] != first)
+                    continue;
+                int k = 1;
+                while (k < needle.length && text[i + k] == needle[k])
+                    k++;
+                if (k == needle.length)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /* Queries */
+    public int size() { return notes.size; }
+    public Notes notes() { return notes; }
+    public boolean isPinned(int id) { return pinCounts[id] > 0; }
+
+    // Checks if note id has a pin at a point
+    public boolean hasPinAt(int id, int pinX, int pinY) {
+        long pin = Board.key(pinX, pinY);
+        if (pinTables[id] != null)
+            return tableContains(pinTables[id], pin);
+        int count = pinCounts[id];
+        return (count >= 1 && pin0s[id] == pin) || (count == 2 && pin1s[id] == pin);
+    }
+
+    /* Updates */
+    // Adds a note with color index color, returns its id
+    public int add(int x, int y, int color, String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        Notes n = reserve(color, bytes.length);
+        System.arraycopy(bytes, 0, n.text, n.textSize, bytes.length);
+        return append(n, x, y, color, bytes.length);
+    }
+
+    // Adds a note whose message is the next length bytes of in (UTF-8), for loading a saved board. Returns its id
+    public int add(int x, int y, int color, ByteBuffer in, int length) {
+        Notes n = reserve(color, length);
+        in.get(n.text, n.textSize, length);
+        return append(n, x, y, color, length);
+    }
+
+    // Adds a pin at a point to note id, which must not have one there (see hasPinAt()). Returns how many it has now
+    public int addPin(int id, int pinX, int pinY) {
+        long pin = Board.key(pinX, pinY);
+        int count = pinCounts[id];
+        long[] table = pinTables[id];
+        if (table != null) {
+            tableAdd(table, pin);
+            if ((count + 1) * 2 > table.length)
+                pinTables[id] = rehash(table, table.length * 2);
+        } else if (count == 0) {
+            pin0s[id] = pin;
+        } else if (count == 1) {
+            pin1s[id] = pin;
+        } else {
+            // A third pin moves them all into a table
+            table = newTable(MIN_TABLE_CAPACITY);
+            tableAdd(table, pin0s[id]);
+            tableAdd(table, pin1s[id]);
+            tableAdd(table, pin);
+            pinTables[id] = table;
+        }
+        return pinCounts[id] = count + 1;
+    }
+
+    // Takes the pin at a point off note id, which must have one there. Returns how many it has left
+    public int removePin(int id, int pinX, int pinY) {
+        long pin = Board.key(pinX, pinY);
+        int count = pinCounts[id] - 1;
+        long[] table = pinTables[id];
+        if (table != null) {
+            tableRemove(table, pin);
+            if (count <= INLINE_PINS) {
+                // Back to the columns once few enough are left
+                pinTables[id] = null;
+                int n = 0;
+                for (long p : table) {
+                    if (p != NO_PIN) {
+                        if (n++ == 0)
+                            pin0s[id] = p;
+                        else
+                            pin1s[id] = p;
+                    }
+                }
+            }
+        } else if (pin0s[id] == pin) {
+            pin0s[id] = pin1s[id];
+        }
+        return pinCounts[id] = count;
+    }
+
+    // Removes every note without pins, moving the rest into new arrays in the same order.
+    // Returns the new id of every old one, -1 for a removed note
+    public int[] removeUnpinned() {
+        Notes old = notes;
+        int[] newIds = new int[old.size];
+        int kept = 0, keptText = 0;
+        for (int id = 0; id < old.size; id++) {
+            if (pinCounts[id] > 0) {
+                newIds[id] = kept++;
+                keptText += old.messageEnd(id) - old.messageStart(id);
+            } else {
+                newIds[id] = -1;
+            }
+        }
+
+        Notes n = Notes.allocate(colors, Math.max(MIN_CAPACITY, kept), Math.max(MIN_CAPACITY, keptText));
+        int[] counts = new int[n.xs.length];
+        long[] firstPins = new long[n.xs.length], secondPins = new long[n.xs.length];
+        long[][] tables = new long[n.xs.length][];
+        int textEnd = 0;
+        for (int id = 0; id < old.size; id++) {
+            int j = newIds[id];
+            if (j < 0)
+                continue;
+            n.xs[j] = old.xs[id];
+            n.ys[j] = old.ys[id];
+            n.colors[j] = old.colors[id];
+            int start = old.messageStart(id), length = old.messageEnds[id] - start;
+            System.arraycopy(old.text, start, n.text, textEnd, length);
+            textEnd += length;
+            n.messageEnds[j] = textEnd;
+            counts[j] = pinCounts[id];
+            firstPins[j] = pin0s[id];
+            secondPins[j] = pin1s[id];
+            tables[j] = pinTables[id];
+        }
+        notes = new Notes(colors, kept, textEnd, n.xs, n.ys, n.colors, n.messageEnds, n.text);
+        pinCounts = counts;
+        pin0s = firstPins;
+        pin1s = secondPins;
+        pinTables = tables;
+        return newIds;
+    }
+
+    // Removes every note
+    public void clear() {
+        notes = Notes.allocate(colors, MIN_CAPACITY, MIN_CAPACITY * 16);
+        pinCounts = new int[MIN_CAPACITY];
+        pin0s = new long[MIN_CAPACITY];
+        pin1s = new long[MIN_CAPACITY];
+        pinTables = new long[MIN_CAPACITY][];
+    }
+
+    // Takes over the notes of another store of the same colors, none of them pinned, this one must be empty.
+    // Used to restore a saved board that was loaded into a store of its own
+    void adopt(Notes loaded) {
+        if (notes.size != 0)
+            throw new IllegalStateException("notes can only be adopted by an empty store");
+        if (!loaded.colorNames.equals(colors))
+            throw new IllegalArgumentException("notes of colors " + loaded.colorNames + ", expected " + colors);
+        notes = loaded;
+        pinCounts = new int[loaded.xs.length];
+        pin0s = new long[loaded.xs.length];
+        pin1s = new long[loaded.xs.length];
+        pinTables = new long[loaded.xs.length][];
+    }
+
+    /* Helper methods */
+    // The current view, grown first if there is no room for one more note with a message of messageLength bytes
+    private Notes reserve(int color, int messageLength) {
+        if (color < 0 || color >= colors.size())
+            throw new IllegalArgumentException("color index " + color + " of " + colors.size() + " colors");
+        Notes n = notes;
+        int[] xs = n.xs, ys = n.ys, messageEnds = n.messageEnds;
+        byte[] noteColors = n.colors, text = n.text;
+        if (n.size == xs.length) {
+            int capacity = grow(xs.length, n.size + 1);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            noteColors = Arrays.copyOf(noteColors, capacity);
+            messageEnds = Arrays.copyOf(messageEnds, capacity);
+            pinCounts = Arrays.copyOf(pinCounts, capacity);
+            pin0s = Arrays.copyOf(pin0s, capacity);
+            pin1s = Arrays.copyOf(pin1s, capacity);
+            pinTables = Arrays.copyOf(pinTables, capacity);
+        }
+        if (messageLength > text.length - n.textSize)
+            text = Arrays.copyOf(text, grow(text.length, n.textSize + messageLength));
+        if (xs != n.xs || text != n.text) {
+            n = new Notes(colors, n.size, n.textSize, xs, ys, noteColors, messageEnds, text);
+            notes = n;
+        }
+        return n;
+    }
+
+    // Fills in note n.size of n (its message already copied to the text) and publishes the view with it
+    private int append(Notes n, int x, int y, int color, int messageLength) {
+        int id = n.size;
+        n.xs[id] = x;
+        n.ys[id] = y;
+        n.colors[id] = (byte) color;
+        n.messageEnds[id] = n.textSize + messageLength;
+        pinCounts[id] = 0;
+        pinTables[id] = null;
+        notes = new Notes(colors, id + 1, n.textSize + messageLength, n.xs, n.ys, n.colors, n.messageEnds, n.text);
+        return id;
+    }
+
+    // A capacity of at least needed, half as large again as the current one
+    private static int grow(int capacity, int needed) {
+        long grown = Math.max((long) needed, capacity + (capacity >> 1));
+        if (needed < 0 || needed > Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("the board's notes do not fit in an array");
+        return (int) Math.min(grown, Integer.MAX_VALUE - 8);
+    }
+
+    // Pin table helpers, linear probing with backward-shift deletion as in LongHashMap
+    private static long[] newTable(int capacity) {
+        long[] table = new long[capacity];
+        Arrays.fill(table, NO_PIN);
+        return table;
+    }
+
+    private static int slot(long[] table, long pin) {
+        long h = pin * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (table.length - 1);
+    }
+
+    private static boolean tableContains(long[] table, long pin) {
+        int mask = table.length - 1;
+        for (int i = slot(table, pin); table[i] != NO_PIN; i = (i + 1) & mask) {
+            if (table[i] == pin)
+                return true;
+        }
+        return false;
+    }
+
+    // Adds pin to a table with room for it, returns false if it is already there
+    private static boolean tableAdd(long[] table, long pin) {
+        int mask = table.length - 1;
+        int i = slot(table, pin);
+        for (; table[i] != NO_PIN; i = (i + 1) & mask) {
+            if (table[i] == pin)
+                return false;
+        }
+        table[i] = pin;
+        return true;
+    }
+
+    private static boolean tableRemove(long[] table, long pin) {
+        int mask = table.length - 1;
+        int i = slot(table, pin);
+        for (; table[i] != NO_PIN; i = (i + 1) & mask) {
+            if (table[i] == pin)
+                break;
+        }
+        if (table[i] == NO_PIN)
+            return false;
+
+        // Move back any later entry of the probe run whose home slot is not between the gap and it (cyclically)
+        int gap = i;
+        for (int j = (i + 1) & mask; table[j] != NO_PIN; j = (j + 1) & mask) {
+            int home = slot(table, table[j]);
+            boolean movable = gap <= j ? (home <= gap || home > j) : (home <= gap && home > j);
+            if (movable) {
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = NO_PIN;
+        return true;
+    }
+
+    private static long[] rehash(long[] table, int capacity) {
+        long[] bigger = newTable(capacity);
+        for (long pin : table) {
+            if (pin != NO_PIN)
+                tableAdd(bigger, pin);
+        }
+        return bigger;
+    }
+}
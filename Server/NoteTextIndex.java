@@ -0,0 +1,176 @@
+package Server;
+
+import java.util.Arrays;
+
+/*
+NoteTextIndex class is a trigram index over note messages, for GET refersTo= searches.
+Every run of 3 bytes in a message's UTF-8 (spaces included) maps to the notes whose message contains it.
+A note containing some text must appear under every trigram of that text, so only the notes in all of those
+posting lists need the exact check. The lists are intersected smallest first, each merge walking one list's
+encoded bytes alongside the ids still left.
+A posting list is the ids of its notes (see NoteStore) in increasing order, each stored as its distance from the
+one before in as few bytes as it fits, so most entries take one or two bytes.
+Not thread safe, the board only touches it while holding its lock.
+*/
+
+public class NoteTextIndex {
+    private static final int GRAM_LENGTH = 3;
+
+    private final NoteStore store;
+    // Note ids by packed trigram
+    private final LongHashMap<Postings> postings = new LongHashMap<>();
+
+    // Initializes an empty index over the messages of store
+    public NoteTextIndex(NoteStore store) {
+        this.store = store;
+    }
+
+    // The ids of the notes under one trigram, in increasing order
+    public static final class Postings {
+        private byte[] bytes;
+        private int length = 0; // bytes used
+        private int size = 0;
+        private int last = -1;  // largest id, the next one is stored relative to it
+
+        private Postings() {
+            this.bytes = new byte[4];
+        }
+
+        public int size() { return size; }
+
+        // Adds the ids to out, in increasing order
+        public void collect(IntList out) {
+            int id = -1;
+            for (int i = 0; i < length; ) {
+                int delta = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = bytes[i++];
+                    delta |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                id += delta;
+                out.add(id);
+            }
+        }
+
+        // Keeps only the ids (in increasing order) that are also in this list, merging the two in one pass
+        public void retainIn(IntList ids) {
+            int kept = 0;
+            int id = -1;
+            int i = 0;
+            for (int k = 0; k < ids.size(); k++) {
+                int wanted = ids.get(k);
+                while (id < wanted && i < length) {
+                    int delta = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        byte b = bytes[i++];
+                        delta |= (b & 0x7F) << shift;
+                        if (b >= 0)
+                            break;
+                    }
+                    id += delta;
+                }
+                if (id == wanted)
+                    ids.set(kept++, wanted);
+                else if (id < wanted)
+                    break; // this list has run out
+            }
+            ids.truncate(kept);
+        }
+
+        // Adds an id larger than every id already in the list
+        private void add(int id) {
+            if (length + 5 > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(length + 5, bytes.length + (bytes.length >> 1)));
+            int delta = id - last;
+            while (delta >= 0x80) {
+                bytes[length++] = (byte) (delta | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+            last = id;
+            size++;
+        }
+
+        // Renumbers the ids as in IntList.remap (which keeps them increasing), returns false if none are left
+        private boolean remap(int[] newIds) {
+            IntList ids = new IntList(size);
+            collect(ids);
+            ids.remap(newIds);
+            length = 0;
+            size = 0;
+            last = -1;
+            bytes = new byte[Math.max(4, ids.size() * 2)];
+            for (int i = 0; i < ids.size(); i++)
+                add(ids.get(i));
+            return size > 0;
+        }
+    }
+
+    /* Updates */
+    // Indexes a note under each trigram of its message, notes are added in posting order
+    public void add(int id) {
+        NoteStore.Notes notes = store.notes();
+        byte[] text = notes.text();
+        for (int i = notes.messageStart(id), end = notes.messageEnd(id); i + GRAM_LENGTH <= end; i++) {
+            long gram = gram(text, i);
+            Postings ids = postings.get(gram);
+            if (ids == null) {
+                ids = new Postings();
+                postings.put(gram, ids);
+            } else if (ids.last == id) {
+                continue; // a trigram the message has more than once
+            }
+            ids.add(id);
+        }
+    }
+
+    // Renumbers the notes after the store dropped some (see NoteStore.removeUnpinned), removing the dropped ones
+    // and the posting lists that become empty
+    public void remap(int[] newIds) {
+        for (long gram : postings.keys()) {
+            if (!postings.get(gram).remap(newIds))
+                postings.remove(gram);
+        }
+    }
+
+    // Removes every note
+    public void clear() {
+        postings.clear();
+    }
+
+    /* Queries */
+    // Returns the ids, in increasing order, of the notes that have every trigram of text (given as UTF-8): a
+    // superset of the notes whose message contains text. Returns null if text is shorter than a trigram and cannot
+    // be narrowed down
+    public IntList candidates(byte[] text) {
+        if (text.length < GRAM_LENGTH)
+            return null;
+
+        Postings[] lists = new Postings[text.length - GRAM_LENGTH + 1];
+        int count = 0;
+        for (int i = 0; i + GRAM_LENGTH <= text.length; i++) {
+            Postings ids = postings.get(gram(text, i));
+            if (ids == null)
+                return new IntList(); // no message has this trigram, so none contains text
+            lists[count++] = ids;
+        }
+
+        // Smallest first, so every merge after the first walks at most as many ids as are still left
+        Arrays.sort(lists, 0, count, (a, b) -> Integer.compare(a.size(), b.size()));
+        IntList result = new IntList(lists[0].size());
+        lists[0].collect(result);
+        for (int i = 1; i < count && !result.isEmpty(); i++) {
+            if (lists[i] != lists[i - 1]) // a trigram the text has more than once
+                lists[i].retainIn(result);
+        }
+        return result;
+    }
+
+    /* Helper methods */
+    // Packs the 3 bytes starting at i into one long
+    private static long gram(byte[] text, int i) {
+        return ((text[i] & 0xFFL) << 16) | ((text[i + 1] & 0xFF) << 8) | (text[i + 2] & 0xFF);
+    }
+}
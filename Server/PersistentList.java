@@ -0,0 +1,129 @@
+package Server;
+
+/*
+PersistentList class is an immutable list that shares structure with the lists it was made from.
+Elements sit in a tree of 32-slot arrays; changing or appending one element copies only the arrays on its
+path from the root (a handful of 32-slot copies), every other array is shared with the previous list.
+Used for the board snapshots that readers use without taking the board lock.
+*/
+
+public final class PersistentList<T> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final PersistentList<?> EMPTY = new PersistentList<>(new Object[WIDTH], 0, 0);
+
+    private final Object[] root;
+    private final int shift; // BITS * (tree depth - 1), 0 when the root is a leaf
+    private final int size;
+
+    private PersistentList(Object[] root, int shift, int size) {
+        this.root = root;
+        this.shift = shift;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentList<T> empty() {
+        return (PersistentList<T>) EMPTY;
+    }
+
+    /* Queries */
+    public int size() { return size; }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " size " + size);
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS)
+            node = (Object[]) node[(index >>> level) & MASK];
+        return (T) node[index & MASK];
+    }
+
+    /* Updates, each returning a new list */
+    public PersistentList<T> set(int index, T value) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " size " + size);
+        return new PersistentList<>(setIn(root, shift, index, value), shift, size);
+    }
+
+    public PersistentList<T> append(T value) {
+        // A full tree grows one level, the old root becomes the first child of the new one
+        if (size == capacity(shift)) {
+            Object[] newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            return new PersistentList<>(setIn(newRoot, shift + BITS, size, value), shift + BITS, size + 1);
+        }
+        return new PersistentList<>(setIn(root, shift, size, value), shift, size + 1);
+    }
+
+    public PersistentList<T> removeLast() {
+        if (size == 0)
+            throw new IndexOutOfBoundsException("empty list");
+        return new PersistentList<>(setIn(root, shift, size - 1, null), shift, size - 1);
+    }
+
+    /* Builder */
+    // Builds a list by appending in place, for making a whole new list (or extending one) without copying paths
+    public static final class Builder<T> {
+        private Object[] root = new Object[WIDTH];
+        private int shift = 0;
+        private int size = 0;
+        // The arrays on the path the builder is appending along, by level. These are the builder's own (made or
+        // copied by it); any other array met on the way may be shared with a list and is copied before it is written
+        private final Object[][] path = new Object[7][];
+
+        public Builder() {
+        }
+
+        public int size() { return size; }
+
+        public Builder<T> add(T value) {
+            if (size == capacity(shift)) {
+                Object[] newRoot = new Object[WIDTH];
+                newRoot[0] = root;
+                root = newRoot;
+                shift += BITS;
+            }
+            Object[] node = root;
+            for (int level = shift; level > 0; level -= BITS) {
+                int i = (size >>> level) & MASK;
+                Object[] child = (Object[]) node[i];
+                if (child == null)
+                    child = new Object[WIDTH];
+                else if (child != path[level / BITS])
+                    child = child.clone();
+                node[i] = child;
+                path[level / BITS] = child;
+                node = child;
+            }
+            node[size & MASK] = value;
+            size++;
+            return this;
+        }
+
+        // Returns the list, the builder must not be used afterwards
+        public PersistentList<T> build() {
+            return size == 0 ? empty() : new PersistentList<>(root, shift, size);
+        }
+    }
+
+    /* Helper methods */
+    // Number of elements a tree with this shift can hold
+    private static int capacity(int shift) {
+        return shift >= 30 ? Integer.MAX_VALUE : 1 << (shift + BITS);
+    }
+
+    // Copies the path to index, creating missing arrays, and stores value in the copied leaf
+    private static Object[] setIn(Object[] node, int level, int index, Object value) {
+        Object[] copy = node == null ? new Object[WIDTH] : node.clone();
+        int i = (index >>> level) & MASK;
+        if (level == 0)
+            copy[i] = value;
+        else
+            copy[i] = setIn((Object[]) copy[i], level - BITS, index, value);
+        return copy;
+    }
+}
@@ -1,179 +1,402 @@
 package Server;
 
+import java.util.List;
+
 /*
 RequestParser class acts as a middleman between the client and the board. 
 Parses the request and executes the command.
 */
 
 public class RequestParser {
+    // Each thread parses one request at a time, so it reuses one tokenizer for all of them
+    private static final ThreadLocal<RequestTokenizer> TOKENIZER = ThreadLocal.withInitial(RequestTokenizer::new);
+    // Status of a line that is answered later (a batch item), nothing is written for it
+    private static final String NO_RESPONSE = "";
+    // Status of an item that passes the format checks of its command, when checked without a board
+    private static final String WELL_FORMED = "OK";
 
     // Parses the request, checks if valid, and executes the command
     public static String parseAndExecute(String request, Board board) {
-        // Request cannot be null or empty
-        if (request == null || request.trim().isEmpty()) {
-            return "ERROR INVALID_FORMAT";
-        }
+        ResponseSink.Text text = new ResponseSink.Text();
+        execute(request, board, text);
+        return text.toString();
+    }
 
-        // Leading and trailing whitespace is ignored by the server (RFC - 6.1)
-        String trimmed = request.trim();
-        String firstWord = trimmed.split("\\s+")[0]; // not uppercase to force client to use correct case
+    // Parses and executes the request, writing its response lines to out. Returns the status line.
+    // GET responses are streamed from the board rather than built into one String
+    public static String execute(CharSequence request, Board board, ResponseSink out) {
+        return execute(request, board, null, out);
+    }
 
-        String[] splitRequest;
-        if (firstWord.equals("POST")) {
-            splitRequest = trimmed.split("\\s+", 5); // POST has 5 (including first word)
-        } else {
-            splitRequest = trimmed.split("\\s+"); // GET, PIN, UNPIN, SHAKE, CLEAR, DISCONNECT
+    // Same as above, with the connection's session for per-connection commands (SUBSCRIBE / UNSUBSCRIBE).
+    // Without a session those commands are rejected as INVALID_FORMAT
+    public static String execute(CharSequence request, Board board, Session session, ResponseSink out) {
+        // While a batch command is collecting its items, every line is its next item
+        if (session != null && session.getBatch() != null) {
+            return addBatchItem(request, board, session, out);
+        }
+        // Between MULTI and EXEC commands are queued instead of run
+        if (session != null && session.inTransaction()) {
+            return handleQueued(request, board, session, out);
+        }
+
+        // Request cannot be null or empty. Leading and trailing whitespace is ignored by the server (RFC - 6.1)
+        RequestTokenizer words = TOKENIZER.get();
+        if (request == null || !words.reset(request)) {
+            return respond(out, "ERROR INVALID_FORMAT");
         }
 
+        String response;
         try {
-            switch (firstWord) {
-                case "POST":
-                    return handlePost(splitRequest, board);
-                case "GET":
-                    return handleGet(splitRequest, board);
-                case "PIN":
-                    return handlePin(splitRequest, board);
-                case "UNPIN":
-                    return handleUnpin(splitRequest, board);
-                case "SHAKE":
-                    if (splitRequest.length != 1)
-                        return "ERROR INVALID_FORMAT"; // no parameters for SHAKE
-                    return board.shake();
-                case "CLEAR":
-                    if (splitRequest.length != 1) // no parameters for CLEAR
-                        return "ERROR INVALID_FORMAT";
-                    return board.clear();
-                case "DISCONNECT":
-                    if (splitRequest.length != 1) // no parameters for DISCONNECT
-                        return "ERROR INVALID_FORMAT";
-                    return "OK DISCONNECTING";
-                default: // lowercase will be ignored as invalid format
-                    return "ERROR INVALID_FORMAT";
+            words.next(); // not uppercase to force client to use correct case
+            if (words.is("POST")) {
+                response = handlePost(words, board);
+            } else if (words.is("GET")) {
+                return handleGet(words, board, out); // writes its own (multi-line) response
+            } else if (words.is("PIN")) {
+                response = handlePin(words, board);
+            } else if (words.is("UNPIN")) {
+                response = handleUnpin(words, board);
+            } else if (words.is("POSTMANY")) {
+                return handleBatch("POST", words, board, session, out); // answered once its items have arrived
+            } else if (words.is("PINMANY")) {
+                return handleBatch("PIN", words, board, session, out);
+            } else if (words.is("UNPINMANY")) {
+                return handleBatch("UNPIN", words, board, session, out);
+            } else if (words.is("MULTI")) {
+                if (words.hasNext() || session == null) // no parameters for MULTI
+                    response = "ERROR INVALID_FORMAT";
+                else {
+                    session.beginTransaction();
+                    response = "OK TRANSACTION_STARTED";
+                }
+            } else if (words.is("SHAKE")) {
+                if (words.hasNext())
+                    response = "ERROR INVALID_FORMAT"; // no parameters for SHAKE
+                else
+                    response = board.shake();
+            } else if (words.is("CLEAR")) {
+                if (words.hasNext()) // no parameters for CLEAR
+                    response = "ERROR INVALID_FORMAT";
+                else
+                    response = board.clear();
+            } else if (words.is("SUBSCRIBE")) {
+                if (words.hasNext() || session == null) // no parameters for SUBSCRIBE
+                    response = "ERROR INVALID_FORMAT";
+                else
+                    return session.subscribe(out); // writes the board snapshot as its response
+            } else if (words.is("UNSUBSCRIBE")) {
+                if (words.hasNext() || session == null) // no parameters for UNSUBSCRIBE
+                    response = "ERROR INVALID_FORMAT";
+                else
+                    response = session.unsubscribe();
+            } else if (words.is("DISCONNECT")) {
+                if (words.hasNext()) // no parameters for DISCONNECT
+                    response = "ERROR INVALID_FORMAT";
+                else
+                    response = "OK DISCONNECTING";
+            } else { // lowercase will be ignored as invalid format
+                response = "ERROR INVALID_FORMAT";
             }
         } catch (Exception e) {
-            return "ERROR INVALID_FORMAT";
+            response = "ERROR INVALID_FORMAT";
+        } finally {
+            words.release();
         }
+        return respond(out, response);
     }
 
     /* Helper methods */
-    // Handles the POST command
-    private static String handlePost(String[] splitRequest, Board board) {
+    // Writes a single-line response and returns it as the status line
+    private static String respond(ResponseSink out, String response) {
+        out.line(response);
+        return response;
+    }
 
+    // Handles the POST command, or with a null board only checks its format
+    private static String handlePost(RequestTokenizer words, Board board) {
         // POST needs at least 5 parameters (x y color message)
-        if (splitRequest.length < 5)
+        if (!words.next() || !words.parseInt(words.start, words.stop))
             return "ERROR INVALID_FORMAT";
+        int x = words.intValue;
+        if (!words.next() || !words.parseInt(words.start, words.stop))
+            return "ERROR INVALID_FORMAT";
+        int y = words.intValue;
 
-        try {
-            int x = Integer.parseInt(splitRequest[1]);
-            int y = Integer.parseInt(splitRequest[2]);
-            String color = splitRequest[3];
-
-            // Color can't be null or empty
-            if (color == null || color.trim().isEmpty()) {
-                return "ERROR INVALID_FORMAT";
-            }
-            String message = splitRequest[4];
+        // Color can't be null or empty
+        if (!words.next() || words.isBlank(words.start, words.stop))
+            return "ERROR INVALID_FORMAT";
+        int colorStart = words.start, colorEnd = words.stop;
 
-            // Message can't be null, empty or more than 256 characters
-            if (message.trim().isEmpty() || message.length() > Note.MAX_MESSAGE_LENGTH) {
-                return "ERROR INVALID_FORMAT";
-            }
-            return board.addNote(x, y, color, message);
+        // The message is the rest of the line, spaces included
+        int messageStart = words.restStart(), messageEnd = words.end();
+        if (messageStart >= messageEnd)
+            return "ERROR INVALID_FORMAT";
 
-        } catch (NumberFormatException e) {
+        // Message can't be null, empty or more than 256 characters (counted once decoded, a request
+        // read as bytes has more bytes than characters when the message is not ASCII)
+        if (words.isBlank(messageStart, messageEnd))
             return "ERROR INVALID_FORMAT";
-        } catch (Exception e) {
+        String message = words.string(messageStart, messageEnd);
+        if (message.length() > NoteStore.MAX_MESSAGE_LENGTH)
             return "ERROR INVALID_FORMAT";
-        }
+
+        if (board == null) // only checking the format
+            return WELL_FORMED;
+        return board.addNote(x, y, color(words, board, colorStart, colorEnd), message);
     }
 
-    // Handles the GET command
-    private static String handleGet(String[] splitRequest, Board board) {
+    // Handles the GET command, streaming the response to out
+    private static String handleGet(RequestTokenizer words, Board board, ResponseSink out) {
         // GET with no arguments returns all notes
-        if (splitRequest.length == 1) {
-            return board.getNotes(null, null, null, null);
-        }
+        if (!words.next())
+            return board.writeNotes(GetQuery.ALL, out);
 
         // Handles GET PINS
-        if (splitRequest.length == 2 && splitRequest[1].equals("PINS")) {
-            return board.getPins();
+        if (words.is("PINS") && !words.hasNext()) {
+            return board.writePins(out);
+        }
+
+        // Handles GET SINCE <version>
+        if (words.is("SINCE")) {
+            if (!words.next() || words.hasNext() || !words.parseLong(words.start, words.stop) || words.longValue < 0)
+                return respond(out, "ERROR INVALID_FORMAT");
+            return board.writeChangesSince(words.longValue, out);
         }
 
+        GetQuery query = parseGetQuery(words, board);
+        if (query == null)
+            return respond(out, "ERROR INVALID_FORMAT");
+
+        return board.writeNotes(query, out);
+    }
+
+    // Parses the GET filters starting at the current word, returns null if they are not valid
+    private static GetQuery parseGetQuery(RequestTokenizer words, Board board) {
         // Use filters to get specific notes
         String color = null;
         Integer x = null, y = null;
         String refersTo = null;
 
-        for (int i = 1; i < splitRequest.length; i++) {
-            String p = splitRequest[i];
-
-            if (p.startsWith("color=")) {
+        do {
+            if (words.startsWith("color=")) {
                 if (color != null)
-                    return "ERROR INVALID_FORMAT";
-                color = p.substring(6);
-                if (color.isEmpty())
-                    return "ERROR INVALID_FORMAT";
+                    return null;
+                if (words.stop - words.start == 6)
+                    return null;
+                color = color(words, board, words.start + 6, words.stop);
 
-            } else if (p.startsWith("contains=")) {
+            } else if (words.startsWith("contains=")) {
                 if (x != null)
-                    return "ERROR INVALID_FORMAT";
-                if (i + 1 >= splitRequest.length)
-                    return "ERROR INVALID_FORMAT";
-
-                try {
-                    x = Integer.parseInt(p.substring(9));
-                    y = Integer.parseInt(splitRequest[++i]);
-                } catch (Exception e) {
-                    return "ERROR INVALID_FORMAT";
-                }
+                    return null;
+                if (!words.parseInt(words.start + 9, words.stop))
+                    return null;
+                x = words.intValue;
+                if (!words.next() || !words.parseInt(words.start, words.stop))
+                    return null;
+                y = words.intValue;
 
-            } else if (p.startsWith("refersTo=")) {
+            } else if (words.startsWith("refersTo=")) {
                 if (refersTo != null)
-                    return "ERROR INVALID_FORMAT";
+                    return null;
 
-                StringBuilder sb = new StringBuilder(p.substring(9));
-                for (int j = i + 1; j < splitRequest.length; j++) {
-                    sb.append(" ").append(splitRequest[j]);
-                }
+                // The rest of the words, joined by single spaces
+                StringBuilder sb = new StringBuilder(NoteStore.MAX_MESSAGE_LENGTH);
+                sb.append(words.string(words.start + 9, words.stop));
+                while (words.next())
+                    sb.append(' ').append(words.string(words.start, words.stop));
 
                 refersTo = sb.toString();
-                if (refersTo.trim().isEmpty() || refersTo.length() > Note.MAX_MESSAGE_LENGTH) {
-                    return "ERROR INVALID_FORMAT";
+                if (refersTo.trim().isEmpty() || refersTo.length() > NoteStore.MAX_MESSAGE_LENGTH) {
+                    return null;
                 }
                 break;
 
             } else {
-                return "ERROR INVALID_FORMAT";
+                return null;
             }
-        }
+        } while (words.next());
 
-        return board.getNotes(color, x, y, refersTo);
+        return new GetQuery(color, x, y, refersTo);
     }
 
-    // Handles the PIN command
-    private static String handlePin(String[] splitRequest, Board board) {
+    // Handles the PIN command, or with a null board only checks its format
+    private static String handlePin(RequestTokenizer words, Board board) {
         // PIN needs 2 parameters (x y)
-        if (splitRequest.length != 3) {
+        if (!words.next() || !words.parseInt(words.start, words.stop))
             return "ERROR INVALID_FORMAT";
-        }
-
-        try {
-            return board.addPin(Integer.parseInt(splitRequest[1]), Integer.parseInt(splitRequest[2]));
-        } catch (NumberFormatException e) {
+        int x = words.intValue;
+        if (!words.next() || !words.parseInt(words.start, words.stop) || words.hasNext())
             return "ERROR INVALID_FORMAT";
-        }
+
+        if (board == null) // only checking the format
+            return WELL_FORMED;
+        return board.addPin(x, words.intValue);
     }
 
-    // Handles the UNPIN command
-    private static String handleUnpin(String[] splitRequest, Board board) {
+    // Handles the UNPIN command, or with a null board only checks its format
+    private static String handleUnpin(RequestTokenizer words, Board board) {
         // UNPIN needs 2 parameters (x y)
-        if (splitRequest.length != 3)
+        if (!words.next() || !words.parseInt(words.start, words.stop))
+            return "ERROR INVALID_FORMAT";
+        int x = words.intValue;
+        if (!words.next() || !words.parseInt(words.start, words.stop) || words.hasNext())
             return "ERROR INVALID_FORMAT";
 
+        if (board == null) // only checking the format
+            return WELL_FORMED;
+        return board.unPin(x, words.intValue);
+    }
+
+    // Handles POSTMANY / PINMANY / UNPINMANY <n>: the next n lines on the connection are the items.
+    // Needs a session to collect them in, like SUBSCRIBE
+    private static String handleBatch(String command, RequestTokenizer words, Board board, Session session,
+                                      ResponseSink out) {
+        if (session == null || !words.next() || !words.parseInt(words.start, words.stop) || words.hasNext()
+                || words.intValue < 0 || words.intValue > BatchRequest.MAX_ITEMS)
+            return respond(out, "ERROR INVALID_FORMAT");
+
+        BatchRequest batch = new BatchRequest(command, words.intValue);
+        if (batch.isComplete()) // an empty batch is answered right away
+            return applyBatch(batch, board, out);
+        session.setBatch(batch);
+        return NO_RESPONSE;
+    }
+
+    // Adds a line to the session's batch, and applies the batch once it has all its items. A line that its
+    // command would reject as malformed is counted as failed right away instead of being kept until then
+    private static String addBatchItem(CharSequence line, Board board, Session session, ResponseSink out) {
+        BatchRequest batch = session.getBatch();
+        RequestTokenizer words = TOKENIZER.get();
+        boolean wellFormed;
+        try {
+            wellFormed = executeItem(batch.command, line, words, null) == WELL_FORMED;
+        } finally {
+            words.release();
+        }
+        if (wellFormed)
+            batch.add(line);
+        else
+            batch.reject();
+        if (!batch.isComplete())
+            return NO_RESPONSE;
+
+        session.setBatch(null);
+        return applyBatch(batch, board, out);
+    }
+
+    // Runs every item of a batch in one critical section, each exactly as its single command would run.
+    // Writes "OK n" followed by "ITEM <i> <response>" for each of the n items that did not succeed
+    // (i counts from 1), so a batch that fully succeeds is answered with one line
+    private static String applyBatch(BatchRequest batch, Board board, ResponseSink out) {
+        List<String> items = batch.getItems();
+        String[] responses = board.exclusive(() -> {
+            RequestTokenizer words = TOKENIZER.get();
+            String[] results = new String[items.size()];
+            try {
+                for (int i = 0; i < results.length; i++)
+                    results[i] = executeItem(batch.command, items.get(i), words, board);
+            } finally {
+                words.release();
+            }
+            return results;
+        });
+
+        int failed = 0;
+        for (String response : responses) {
+            if (!response.startsWith("OK"))
+                failed++;
+        }
+        String status = "OK " + failed;
+        out.line(status);
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i].startsWith("OK"))
+                continue;
+            sb.setLength(0);
+            sb.append("ITEM ").append(i + 1).append(" ").append(responses[i]);
+            out.line(sb);
+        }
+        return status;
+    }
+
+    // Runs one batch item, the arguments of the batch's single command. A null item was rejected as it
+    // arrived, a null board only checks the item's format (WELL_FORMED if it passes)
+    private static String executeItem(String command, CharSequence item, RequestTokenizer words, Board board) {
+        if (item == null || !words.reset(item))
+            return "ERROR INVALID_FORMAT";
         try {
-            return board.unPin(Integer.parseInt(splitRequest[1]), Integer.parseInt(splitRequest[2]));
-        } catch (NumberFormatException e) {
+            switch (command) {
+                case "POST":
+                    return handlePost(words, board);
+                case "PIN":
+                    return handlePin(words, board);
+                default:
+                    return handleUnpin(words, board);
+            }
+        } catch (Exception e) {
             return "ERROR INVALID_FORMAT";
         }
     }
-}
\ No newline at end of file
+
+    // Handles a line inside MULTI: EXEC runs the queued commands, DISCARD drops them, DISCONNECT still
+    // disconnects (dropping them too). Any other command is queued and answered with OK QUEUED, except
+    // MULTI and the batch commands, which cannot be part of a transaction
+    private static String handleQueued(CharSequence request, Board board, Session session, ResponseSink out) {
+        RequestTokenizer words = TOKENIZER.get();
+        String response;
+        try {
+            if (!words.reset(request)) {
+                response = "ERROR INVALID_FORMAT";
+            } else {
+                words.next();
+                boolean alone = !words.hasNext(); // EXEC, DISCARD and DISCONNECT have no parameters
+                if (words.is("EXEC")) {
+                    if (alone)
+                        return exec(session.endTransaction(), board, session, out);
+                    response = "ERROR INVALID_FORMAT";
+                } else if (words.is("DISCARD")) {
+                    if (alone)
+                        session.endTransaction();
+                    response = alone ? "OK TRANSACTION_DISCARDED" : "ERROR INVALID_FORMAT";
+                } else if (words.is("DISCONNECT")) {
+                    if (alone)
+                        session.endTransaction();
+                    response = alone ? "OK DISCONNECTING" : "ERROR INVALID_FORMAT";
+                } else if (words.is("MULTI") || words.is("POSTMANY") || words.is("PINMANY") || words.is("UNPINMANY")) {
+                    response = "ERROR INVALID_FORMAT";
+                } else {
+                    response = session.queue(request) ? "OK QUEUED" : "ERROR INVALID_FORMAT";
+                }
+            }
+        } finally {
+            words.release();
+        }
+        return respond(out, response);
+    }
+
+    // Runs the commands queued since MULTI in one critical section, each exactly as it would run on its own,
+    // so no other client's command lands between them. Writes "OK n" followed by the n lines of their
+    // responses, in order. Only what the commands read is captured inside the section: a GET keeps the ids it
+    // matched (or a view of the board) and its lines are written after the section ends
+    private static String exec(List<String> commands, Board board, Session session, ResponseSink out) {
+        ResponseSink.Buffer responses = new ResponseSink.Buffer();
+        board.exclusive(() -> {
+            for (String command : commands)
+                execute(command, board, session, responses);
+            return null;
+        });
+
+        String status = "OK " + responses.lineCount();
+        out.line(status);
+        responses.writeTo(out);
+        return status;
+    }
+
+    // The color named by text[from, to): the board's own String for a valid color, a copy otherwise
+    // (which the board then rejects)
+    private static String color(RequestTokenizer words, Board board, int from, int to) {
+        String color = board.validColor(words.text(), from, to);
+        return color != null ? color : words.string(from, to);
+    }
+}
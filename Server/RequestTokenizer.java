@@ -0,0 +1,171 @@
+package Server;
+
+/*
+RequestTokenizer class walks the whitespace-separated words of one request line in place.
+Used by RequestParser instead of String.split: words are index ranges into the request, compared and
+parsed where they are, so parsing a command allocates nothing but the values the board keeps (a note message).
+Splits exactly like trim() followed by split("\\s+"). Not thread safe, RequestParser keeps one per thread.
+*/
+
+final class RequestTokenizer {
+    private CharSequence text;
+    private int end;       // end of the trimmed request
+    private int position;  // where the search for the next word starts
+
+    // The current word is text[start, stop)
+    int start, stop;
+    // Set by parseInt / parseLong
+    int intValue;
+    long longValue;
+
+    /* Scanning */
+    // Starts on a new request, returns false if it is blank
+    boolean reset(CharSequence request) {
+        int s = 0, e = request.length();
+        // Same characters String.trim() removes, control characters included, as the request parser always has
+        while (s < e && request.charAt(s) <= ' ')
+            s++;
+        while (e > s && request.charAt(e - 1) <= ' ')
+            e--;
+        this.text = request;
+        this.position = s;
+        this.end = e;
+        this.start = this.stop = s;
+        return s < e;
+    }
+
+    // Drops the reference to the request once it has been handled
+    void release() {
+        this.text = null;
+    }
+
+    // Moves to the next word, returns false if there is none
+    boolean next() {
+        int p = skipSpaces(position);
+        if (p >= end) {
+            start = stop = position = end;
+            return false;
+        }
+        start = p;
+        while (p < end && !isSpace(text.charAt(p)))
+            p++;
+        stop = position = p;
+        return true;
+    }
+
+    // Checks if another word follows the current one
+    boolean hasNext() {
+        return skipSpaces(position) < end;
+    }
+
+    // Start of everything after the current word and its following spaces, the same text split(..., n)
+    // leaves in its last element. Equal to end() if nothing follows
+    int restStart() {
+        return skipSpaces(position);
+    }
+
+    int end() { return end; }
+    CharSequence text() { return text; }
+
+    /* Current word */
+    // Checks if the current word is exactly word
+    boolean is(String word) {
+        return stop - start == word.length() && regionMatches(start, word);
+    }
+
+    // Checks if the current word starts with prefix
+    boolean startsWith(String prefix) {
+        return stop - start >= prefix.length() && regionMatches(start, prefix);
+    }
+
+    // Checks if text[from, to) is empty or only characters trim() would remove
+    boolean isBlank(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) > ' ')
+                return false;
+        }
+        return true;
+    }
+
+    // Copies text[from, to) into a String, for the values that outlive the request
+    String string(int from, int to) {
+        return text.subSequence(from, to).toString();
+    }
+
+    // Parses text[from, to) the way Integer.parseInt does, into intValue. Returns false where it would throw
+    boolean parseInt(int from, int to) {
+        if (!parseLong(from, to, Integer.MIN_VALUE, Integer.MAX_VALUE))
+            return false;
+        intValue = (int) longValue;
+        return true;
+    }
+
+    // Parses text[from, to) the way Long.parseLong does, into longValue. Returns false where it would throw
+    boolean parseLong(int from, int to) {
+        return parseLong(from, to, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /* Helper methods */
+    // Parses an optionally signed run of ASCII digits within [min, max]. Other digits
+    // (Integer.parseInt accepts any Unicode digit) fall back to the library parser
+    private boolean parseLong(int from, int to, long min, long max) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        if (i >= to)
+            return false;
+
+        // Accumulated negatively, so the most negative value fits
+        long limit = negative ? min : -max;
+        long multiplyLimit = limit / 10;
+        long result = 0;
+        for (; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9')
+                return c > 127 && parseNonAscii(from, to, min, max);
+            int digit = c - '0';
+            if (result < multiplyLimit)
+                return false;
+            result *= 10;
+            if (result < limit + digit)
+                return false;
+            result -= digit;
+        }
+        longValue = negative ? result : -result;
+        return true;
+    }
+
+    private boolean parseNonAscii(int from, int to, long min, long max) {
+        try {
+            long value = Long.parseLong(string(from, to));
+            if (value < min || value > max)
+                return false;
+            longValue = value;
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private boolean regionMatches(int from, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (text.charAt(from + i) != s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private int skipSpaces(int p) {
+        while (p < end && isSpace(text.charAt(p)))
+            p++;
+        return p;
+    }
+
+    // The characters the regex \s matches
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+}
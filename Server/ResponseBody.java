@@ -0,0 +1,114 @@
+package Server;
+
+/*
+ResponseBody class is the run of lines a large response ends with (GET's NOTE lines, GET PINS' PIN lines),
+produced one line at a time as the connection asks for them instead of all at once.
+Everything a body reads was captured when the response was made (a snapshot, a view of the note store, the
+matching ids), so it can be written long after the board lock was released. A blocking connection writes it
+straight through, the socket write holding it back when the client reads slowly; an NIO connection only encodes
+as much as the socket has taken, so a GET never holds more than a chunk of its output however many notes match.
+*/
+
+public abstract class ResponseBody {
+
+    /* Queries */
+    // Lines not written yet
+    public abstract int remaining();
+
+    /* Writing */
+    // Appends the next line (without terminator) to sb
+    protected abstract void next(StringBuilder sb);
+
+    // Encodes lines into out until it holds at least untilSize bytes or none are left
+    void encode(AsciiCodec.Encoder out, int untilSize) {
+        StringBuilder sb = new StringBuilder(64);
+        while (remaining() > 0 && out.size() < untilSize)
+            encodeNext(out, sb);
+    }
+
+    // Encodes the next line into out, sb being scratch space. Bodies that can write their bytes directly
+    // override it to skip the StringBuilder
+    void encodeNext(AsciiCodec.Encoder out, StringBuilder sb) {
+        sb.setLength(0);
+        next(sb);
+        out.line(sb);
+    }
+
+    // Writes every remaining line to out, one line at a time
+    void writeTo(ResponseSink out) {
+        StringBuilder sb = new StringBuilder(64);
+        while (remaining() > 0) {
+            sb.setLength(0);
+            next(sb);
+            out.line(sb);
+        }
+    }
+
+    /* Bodies */
+    // A single line, for output queued behind a body still being written
+    static ResponseBody line(String line) {
+        return lines(PersistentList.<String>empty().append(line));
+    }
+
+    // The lines of a list, which must not change while they are written
+    static ResponseBody lines(PersistentList<String> lines) {
+        return new ResponseBody() {
+            private int next = 0;
+
+            @Override
+            public int remaining() { return lines.size() - next; }
+
+            @Override
+            protected void next(StringBuilder sb) {
+                sb.append(lines.get(next++));
+            }
+        };
+    }
+
+    // "<prefix>x y" for each packed (x << 32 | y) coordinate
+    static ResponseBody keys(String prefix, long[] keys) {
+        return new ResponseBody() {
+            private int next = 0;
+
+            @Override
+            public int remaining() { return keys.length - next; }
+
+            @Override
+            protected void next(StringBuilder sb) {
+                long key = keys[next++];
+                sb.append(prefix).append((int) (key >> 32)).append(" ").append((int) key);
+            }
+        };
+    }
+
+    // The lines of each body in turn
+    static ResponseBody concat(ResponseBody... bodies) {
+        return new ResponseBody() {
+            private int current = 0;
+
+            @Override
+            public int remaining() {
+                int n = 0;
+                for (int i = current; i < bodies.length; i++)
+                    n += bodies[i].remaining();
+                return n;
+            }
+
+            @Override
+            protected void next(StringBuilder sb) {
+                while (bodies[current].remaining() == 0)
+                    current++;
+                bodies[current].next(sb);
+            }
+
+            @Override
+            void encode(AsciiCodec.Encoder out, int untilSize) {
+                for (; current < bodies.length && out.size() < untilSize; current++) {
+                    bodies[current].encode(out, untilSize);
+                    if (bodies[current].remaining() > 0)
+                        return;
+                }
+            }
+        };
+    }
+}
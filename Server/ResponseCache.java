@@ -0,0 +1,81 @@
+package Server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ResponseCache class is a bounded cache of encoded GET responses, keyed by the query's filters.
+Each entry remembers the board version it was made at and is only used while the board is still at that
+version, so any mutation invalidates every entry at once. Bounded both by entry count and by total size in bytes.
+Lookups never lock: entries sit in a ConcurrentHashMap and only note when they were last used. Adding one is
+serialised and evicts the entries used longest ago (counted in adds, so recency is only approximate).
+*/
+
+public class ResponseCache {
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final ConcurrentHashMap<GetQuery, Entry> entries = new ConcurrentHashMap<>();
+    // Bumped by every put(), entries record its value when they are used
+    private volatile long tick = 0;
+    // Guarded by this
+    private long totalBytes = 0;
+
+    // Initializes an empty cache
+    public ResponseCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    // Largest single response worth caching, so one huge GET cannot flush everything else
+    public long maxResponseBytes() {
+        return maxBytes / 4;
+    }
+
+    // Returns the cached response to query made at version, or null
+    public CachedResponse get(GetQuery query, long version) {
+        Entry entry = entries.get(query);
+        if (entry == null || entry.version != version)
+            return null;
+        long now = tick;
+        if (entry.lastUsed != now)
+            entry.lastUsed = now;
+        return entry.response;
+    }
+
+    // Caches the response to query made at version, evicting the least recently used entries as needed
+    public synchronized void put(GetQuery query, long version, CachedResponse response) {
+        if (response.length() > maxResponseBytes())
+            return;
+
+        long now = ++tick;
+        Entry old = entries.put(query, new Entry(version, response, now));
+        if (old != null)
+            totalBytes -= old.response.length();
+        totalBytes += response.length();
+
+        while (entries.size() > maxEntries || totalBytes > maxBytes) {
+            Map.Entry<GetQuery, Entry> oldest = null;
+            for (Map.Entry<GetQuery, Entry> e : entries.entrySet()) {
+                if (oldest == null || e.getValue().lastUsed < oldest.getValue().lastUsed)
+                    oldest = e;
+            }
+            entries.remove(oldest.getKey());
+            totalBytes -= oldest.getValue().response.length();
+        }
+    }
+
+    private static class Entry {
+        final long version;
+        final CachedResponse response;
+        volatile long lastUsed;
+
+        Entry(long version, CachedResponse response, long lastUsed) {
+            this.version = version;
+            this.response = response;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
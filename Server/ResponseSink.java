@@ -0,0 +1,101 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ResponseSink interface is where a command writes its response, one line at a time.
+Lets large responses (GET, GET PINS) be written straight into a connection's output buffer
+instead of being built into one String first; their many lines come as a ResponseBody the sink pulls lines from.
+The sink adds the line terminator.
+*/
+
+public interface ResponseSink {
+
+    // Writes one response line (without terminator)
+    void line(CharSequence s);
+
+    // Writes a whole cached response. Sinks that can copy it into their output in one go override this,
+    // by default it is written line by line
+    default void cached(CachedResponse response) {
+        response.writeLines(this);
+    }
+
+    // Checks if the sink writes its lines out in the connection charset, as a cached response is encoded. Only those
+    // sinks are answered from the cache; for the others (which keep text) decoding it could differ from the
+    // original where the charset cannot encode every character
+    default boolean writesBytes() {
+        return false;
+    }
+
+    // Writes the lines of a body after whatever was written so far. Sinks that can wait for their connection to
+    // drain override this to produce them as it does, by default they are written right away
+    default void body(ResponseBody body) {
+        body.writeTo(this);
+    }
+
+    // Keeps a response as it was written (lines, cached responses and bodies, in order) to be written to another
+    // sink later, e.g. on another thread. Bodies stay lazy, they only read what they captured when they were made
+    class Buffer implements ResponseSink {
+        private final List<Object> parts = new ArrayList<>();
+        private int lines = 0;
+
+        @Override
+        public void line(CharSequence s) {
+            parts.add(s.toString());
+            lines++;
+        }
+
+        @Override
+        public void cached(CachedResponse response) {
+            parts.add(response);
+            lines += response.lineCount();
+        }
+
+        @Override
+        public void body(ResponseBody body) {
+            parts.add(body);
+            lines += body.remaining();
+        }
+
+        // Number of lines written so far
+        public int lineCount() { return lines; }
+
+        // Writes everything kept to out, in order, and empties the buffer
+        public void writeTo(ResponseSink out) {
+            for (Object part : parts) {
+                if (part instanceof String)
+                    out.line((String) part);
+                else if (part instanceof CachedResponse)
+                    out.cached((CachedResponse) part);
+                else
+                    out.body((ResponseBody) part);
+            }
+            clear();
+        }
+
+        public void clear() {
+            parts.clear();
+            lines = 0;
+        }
+    }
+
+    // Collects the lines into a single "\n"-separated String, used by the String-returning APIs
+    class Text implements ResponseSink {
+        private final StringBuilder sb = new StringBuilder();
+        private boolean first = true;
+
+        @Override
+        public void line(CharSequence s) {
+            if (!first)
+                sb.append('\n');
+            sb.append(s);
+            first = false;
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
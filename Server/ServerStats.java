@@ -0,0 +1,135 @@
+package Server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.jfr.consumer.RecordingStream;
+
+/*
+ServerStats class keeps server-wide counters and prints them periodically.
+Used to confirm a server mode behaves under load: open connections, board lock queue,
+the single-writer engine's queue depth when it is on,
+and for the virtual-thread mode, pinned virtual threads and carrier thread utilisation.
+
+Enabled with -Dbboard.stats=<seconds> (defaults to 10 in virtual mode, off otherwise).
+*/
+
+public class ServerStats {
+    private static final AtomicInteger openConnections = new AtomicInteger();
+    private static final AtomicLong totalConnections = new AtomicLong();
+    private static final AtomicLong pinnedEvents = new AtomicLong();
+
+    // JFR event emitted when a virtual thread blocks while pinned to its carrier (Java 21+)
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    // Pins shorter than this are not recorded, so counting them does not add to the cost of the short ones
+    private static final Duration PINNED_THRESHOLD = Duration.ofMillis(1);
+
+    private ServerStats() {
+    }
+
+    /* Connection counters */
+    public static void connectionOpened() {
+        openConnections.incrementAndGet();
+        totalConnections.incrementAndGet();
+    }
+
+    public static void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    /* Reporter */
+    // Starts a daemon thread printing one stats line every intervalSeconds, engine may be null
+    public static void startReporter(String mode, Board board, CommandEngine engine, int intervalSeconds,
+            boolean virtualThreads) {
+        if (intervalSeconds <= 0)
+            return;
+
+        if (virtualThreads)
+            startPinnedEventStream();
+
+        Thread t = new Thread(() -> {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long lastCarrierCpu = virtualThreads ? carrierCpuNanos(threads) : 0;
+            long lastTime = System.nanoTime();
+
+            while (true) {
+                try {
+                    Thread.sleep(intervalSeconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                StringBuilder sb = new StringBuilder("[stats] mode=").append(mode)
+                        .append(" open=").append(openConnections.get())
+                        .append(" total=").append(totalConnections.get())
+                        .append(" lockQueue=").append(board.lockQueueLength());
+                if (engine != null)
+                    sb.append(" engineQueue=").append(engine.queueDepth());
+
+                if (virtualThreads) {
+                    long now = System.nanoTime();
+                    long carrierCpu = carrierCpuNanos(threads);
+                    int carriers = carrierCount(threads);
+                    double util = carriers == 0 ? 0
+                            : (double) Math.max(0, carrierCpu - lastCarrierCpu) / ((now - lastTime) * (double) carriers);
+                    lastCarrierCpu = carrierCpu;
+                    lastTime = now;
+
+                    sb.append(" carriers=").append(carriers)
+                            .append(" carrierUtil=").append(Math.round(util * 100)).append("%")
+                            .append(" pinned=").append(pinnedEvents.get());
+                }
+                System.out.println(sb);
+            }
+        }, "bboard-stats");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /* Helper methods */
+    // Counts pinned virtual-thread events (only a count is reported, so no stack traces are taken),
+    // on JVMs without the event the count stays at 0
+    private static void startPinnedEventStream() {
+        try {
+            RecordingStream rs = new RecordingStream();
+            rs.enable(PINNED_EVENT).withThreshold(PINNED_THRESHOLD).withoutStackTrace();
+            rs.onEvent(PINNED_EVENT, e -> pinnedEvents.incrementAndGet());
+            rs.startAsync();
+        } catch (Exception e) {
+            System.err.println("Warning: pinned thread events unavailable: " + e.getMessage());
+        }
+    }
+
+    // Carrier threads of the virtual-thread scheduler are its ForkJoinPool workers
+    private static boolean isCarrier(ThreadInfo info) {
+        return info != null && info.getThreadName().startsWith("ForkJoinPool-")
+                && info.getThreadName().contains("-worker-");
+    }
+
+    private static int carrierCount(ThreadMXBean threads) {
+        int count = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (isCarrier(info))
+                count++;
+        }
+        return count;
+    }
+
+    // Total CPU time consumed so far by all carrier threads
+    private static long carrierCpuNanos(ThreadMXBean threads) {
+        if (!threads.isThreadCpuTimeSupported())
+            return 0;
+        long total = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (isCarrier(info)) {
+                long cpu = threads.getThreadCpuTime(info.getThreadId());
+                if (cpu > 0)
+                    total += cpu;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,92 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Session class holds the per-connection protocol state that RequestParser needs:
+the connection's SUBSCRIBE registration, a POSTMANY / PINMANY / UNPINMANY still collecting its items,
+and the commands queued since MULTI.
+Created by ClientHandler / NioServer for each client, onEvents is how the connection
+gets told that pushed events are waiting to be written.
+*/
+
+public class Session {
+    private final Board board;
+    private final Runnable onEvents;
+    private Subscription subscription;
+    private BatchRequest batch;
+    // Commands queued between MULTI and EXEC, null outside a transaction, and their total length
+    private List<String> transaction;
+    private int transactionBytes;
+
+    // Most commands one MULTI may queue
+    public static final int MAX_TRANSACTION_COMMANDS = 10_000;
+    // Most command text one MULTI may queue, counted as received (one char per byte for an ASCII-compatible charset)
+    public static final int MAX_TRANSACTION_BYTES = 1024 * 1024;
+
+    // Initializes the session for one connection to the board
+    public Session(Board board, Runnable onEvents) {
+        this.board = board;
+        this.onEvents = onEvents;
+    }
+
+    /* Getters */
+    public Subscription getSubscription() { return this.subscription; }
+    public BatchRequest getBatch() { return this.batch; }
+    public boolean inTransaction() { return this.transaction != null; }
+
+    /* Setters */
+    // Starts collecting the item lines of a batch command, null once it has been applied
+    public void setBatch(BatchRequest batch) { this.batch = batch; }
+
+    /* Transaction commands */
+    // Starts queueing commands (MULTI)
+    public void beginTransaction() {
+        this.transaction = new ArrayList<>();
+        this.transactionBytes = 0;
+    }
+
+    // Queues a command for EXEC, returns false (queueing nothing) if the transaction has no room for it.
+    // The command may be a reused view (AsciiCodec.Line), so it is copied
+    public boolean queue(CharSequence command) {
+        if (transaction.size() >= MAX_TRANSACTION_COMMANDS
+                || transactionBytes + command.length() > MAX_TRANSACTION_BYTES)
+            return false;
+        transactionBytes += command.length();
+        transaction.add(command.toString());
+        return true;
+    }
+
+    // Ends the transaction (EXEC / DISCARD), returns the queued commands
+    public List<String> endTransaction() {
+        List<String> commands = this.transaction;
+        this.transaction = null;
+        return commands;
+    }
+
+    /* Subscription commands */
+    // Registers for change events, writing the current board as the response.
+    // Subscribing again replaces the old registration with a fresh snapshot
+    public String subscribe(ResponseSink out) {
+        if (subscription != null)
+            subscription.close();
+        subscription = new Subscription(board, onEvents);
+        return board.subscribe(subscription, out);
+    }
+
+    // Stops change events for this connection
+    public String unsubscribe() {
+        if (subscription != null) {
+            subscription.close();
+            subscription = null;
+        }
+        return "OK UNSUBSCRIBED";
+    }
+
+    // Releases the session's board registrations when the connection ends
+    public void close() {
+        if (subscription != null)
+            subscription.close();
+    }
+}
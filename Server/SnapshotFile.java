@@ -0,0 +1,240 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/*
+SnapshotFile class reads and writes compact binary snapshots of the board, so a restart does not have to
+replay the whole journal. A snapshot holds the board's version, every note (in posting order)
+and every pin point, and where the journal ended at that version, so only the journal's tail is replayed
+after it. It is written from a copy the board takes under its read lock (writers only wait for the copy),
+to a temporary file that then replaces the old snapshot, so a crash never leaves a half-written one.
+Loading maps the file and rebuilds the board from it directly, without running each note through POST.
+
+Enabled with -Dbboard.snapshot=<file>, written every -Dbboard.snapshot.seconds=<s> and on shutdown.
+*/
+
+public final class SnapshotFile {
+    public static final int DEFAULT_INTERVAL_SECONDS = 60;
+
+    // The file holds MAGIC, the board's dimensions, version, the journal's base version and the file position
+    // the changes after this version start at in it, the color table, the notes
+    // (x, y, color index, message), the pin points (x, y, the indexes of the notes they pierce), and a CRC32
+    // of everything before it
+    private static final int MAGIC = 0x42425331; // "BBS1"
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private SnapshotFile() {
+    }
+
+    // A board's notes and pins as of one version: taken by Board.captureImage() under the board's read lock to be
+    // written, or read from a file for Board.restore(). Taken notes are a view of the board's store rather than a
+    // copy (see NoteStore), read notes are in a store of their own and not pinned yet
+    static final class Image {
+        final int boardWidth, boardHeight, noteWidth, noteHeight;
+        final long version;
+        final long journalOffset;  // the journal's committed end at version, -1 without a journal
+        // Where journalOffset is in the journal: its base version and the file position (-1 if it is not there),
+        // set by Journal.locate() before the image is written
+        long journalBase = 0;
+        long journalPosition = -1;
+        final NoteStore.Notes notes; // in posting order, colors indexing the board's colors
+        final long[] pinPoints;      // every pin point, packed (x << 32 | y), in GET PINS order
+        final int[] piercedEnds;     // pinPoints[i] pierces note pierced[j] for j in piercedEnds[i - 1] .. piercedEnds[i]
+        final int[] pierced;
+
+        Image(int boardWidth, int boardHeight, int noteWidth, int noteHeight, long version, long journalOffset,
+                NoteStore.Notes notes, long[] pinPoints, int[] piercedEnds, int[] pierced) {
+            this.boardWidth = boardWidth;
+            this.boardHeight = boardHeight;
+            this.noteWidth = noteWidth;
+            this.noteHeight = noteHeight;
+            this.version = version;
+            this.journalOffset = journalOffset;
+            this.notes = notes;
+            this.pinPoints = pinPoints;
+            this.piercedEnds = piercedEnds;
+            this.pierced = pierced;
+        }
+    }
+
+    /* Writing */
+    // Writes image to path, replacing the previous snapshot only once the new one is complete and on disk
+    static void write(Path path, Image image) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            out.reserve(4 * 5 + 8 + 8 + 8).putInt(MAGIC)
+                    .putInt(image.boardWidth).putInt(image.boardHeight).putInt(image.noteWidth).putInt(image.noteHeight)
+                    .putLong(image.version).putLong(image.journalBase).putLong(image.journalPosition);
+
+            NoteStore.Notes notes = image.notes;
+            out.reserve(4).putInt(notes.colorNames().size());
+            for (String color : notes.colorNames())
+                out.putString(color);
+
+            // Messages are copied straight from the store's UTF-8
+            out.reserve(4).putInt(notes.size());
+            for (int id = 0; id < notes.size(); id++) {
+                int start = notes.messageStart(id), length = notes.messageEnd(id) - start;
+                out.reserve(4 + 4 + 2 + 2 + length).putInt(notes.x(id)).putInt(notes.y(id))
+                        .putShort((short) notes.colorIndex(id))
+                        .putShort((short) length).put(notes.text(), start, length);
+            }
+
+            out.reserve(4).putInt(image.pinPoints.length);
+            int j = 0;
+            for (int i = 0; i < image.pinPoints.length; i++) {
+                long point = image.pinPoints[i];
+                out.reserve(4 + 4 + 4).putInt((int) (point >> 32)).putInt((int) point)
+                        .putInt(image.piercedEnds[i] - j);
+                for (; j < image.piercedEnds[i]; j++)
+                    out.reserve(4).putInt(image.pierced[j]);
+            }
+            out.finish();
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Loading */
+    // Rebuilds the snapshot at path into board, which must be empty. Returns where in the journal the changes
+    // after the snapshot start, or -1 if that is not known: it was written without a journal or before the journal
+    // was last compacted (at journalBase, see Journal.baseVersion()). Returns -1 without loading anything if there
+    // is no snapshot or it is older than journalBase, the journal then holds the whole board.
+    // Throws if the file is damaged or was written for a board of a different size or colors
+    public static long load(Path path, Board board, long journalBase) throws IOException {
+        if (!Files.exists(path))
+            return -1;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(path + " is too large to map as one snapshot");
+            if (size < 4 + 4)
+                throw new IOException(path + " is not a board snapshot");
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            CRC32 crc = new CRC32();
+            crc.update(in.duplicate().limit((int) size - 4));
+            if (in.getInt(0) != MAGIC || (int) crc.getValue() != in.getInt((int) size - 4))
+                throw new IOException(path + " is not a board snapshot, or is damaged");
+            in.position(4).limit((int) size - 4);
+
+            int boardWidth = in.getInt(), boardHeight = in.getInt(), noteWidth = in.getInt(), noteHeight = in.getInt();
+            if (boardWidth != board.boardWidth() || boardHeight != board.boardHeight()
+                    || noteWidth != board.noteWidth() || noteHeight != board.noteHeight())
+                throw new IOException(path + " was written for a " + boardWidth + "x" + boardHeight + " board with "
+                        + noteWidth + "x" + noteHeight + " notes");
+            long version = in.getLong();
+            long snapshotJournalBase = in.getLong();
+            long journalPosition = in.getLong();
+            if (version < journalBase)
+                return -1;
+
+            byte[] scratch = new byte[1024];
+            // Each color's index among the board's colors, -1 for a color the server no longer allows
+            String[] names = new String[in.getInt()];
+            int[] colors = new int[names.length];
+            for (int i = 0; i < colors.length; i++) {
+                names[i] = getString(in, scratch);
+                colors[i] = board.validColors().indexOf(names[i]);
+            }
+
+            // The notes go into a store of their own, which the board then takes over
+            NoteStore store = new NoteStore(board.validColors());
+            int noteCount = in.getInt();
+            for (int i = 0; i < noteCount; i++) {
+                int x = in.getInt(), y = in.getInt();
+                int colorIndex = in.getShort();
+                if (colors[colorIndex] < 0)
+                    throw new IOException(path + " has notes of color " + names[colorIndex]
+                            + ", which the server does not allow");
+                store.add(x, y, colors[colorIndex], in, in.getShort() & 0xFFFF);
+            }
+
+            long[] pinPoints = new long[in.getInt()];
+            int[] piercedEnds = new int[pinPoints.length];
+            int[] pierced = new int[16];
+            int j = 0;
+            for (int i = 0; i < pinPoints.length; i++) {
+                pinPoints[i] = Board.key(in.getInt(), in.getInt());
+                int count = in.getInt();
+                if (j + count > pierced.length)
+                    pierced = Arrays.copyOf(pierced, Math.max(pierced.length * 2, j + count));
+                for (int end = j + count; j < end; j++) {
+                    pierced[j] = in.getInt();
+                    if (pierced[j] < 0 || pierced[j] >= noteCount)
+                        throw new IOException(path + " is damaged: pin of note " + pierced[j]);
+                }
+                piercedEnds[i] = j;
+            }
+
+            board.restore(new Image(boardWidth, boardHeight, noteWidth, noteHeight, version, -1, store.notes(),
+                    pinPoints, piercedEnds, pierced));
+            return snapshotJournalBase == journalBase ? journalPosition : -1;
+        } catch (RuntimeException e) {
+            // A short or inconsistent file that still passed the CRC
+            throw new IOException(path + " is damaged: " + e, e);
+        }
+    }
+
+    /* Helper methods */
+    // A string stored as an unsigned short byte length and its UTF-8 bytes
+    private static String getString(ByteBuffer in, byte[] scratch) {
+        int length = in.getShort() & 0xFFFF;
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        in.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Writes through one buffer to the channel, keeping the CRC of everything written
+    private static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        private final CRC32 crc = new CRC32();
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // The buffer, with room for n more bytes
+        ByteBuffer reserve(int n) throws IOException {
+            if (buffer.remaining() < n)
+                drain();
+            return buffer;
+        }
+
+        void putString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            reserve(2 + bytes.length).putShort((short) bytes.length).put(bytes);
+        }
+
+        // Writes the CRC and everything still buffered
+        void finish() throws IOException {
+            drain();
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
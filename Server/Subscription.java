@@ -0,0 +1,84 @@
+package Server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Subscription class is one connection's SUBSCRIBE registration with the board.
+Queues pushed events for the connection to write out. The queue is bounded: a subscriber that falls
+too far behind gets a single "EVENT RESYNC" and is unsubscribed, it must SUBSCRIBE again for a fresh snapshot.
+*/
+
+public class Subscription implements BoardListener {
+    // Maximum number of undelivered events per subscriber
+    public static final int MAX_PENDING_EVENTS = 10_000;
+
+    public static final String RESYNC_EVENT = "EVENT RESYNC";
+    // Wakes a blocked take() when the subscription is closed, never written out
+    private static final String CLOSED = new String("CLOSED");
+
+    private final Board board;
+    private final Runnable onReady;
+    private final BlockingQueue<String> events = new ArrayBlockingQueue<>(MAX_PENDING_EVENTS + 1);
+    private volatile boolean closed = false;
+    // Set while events are queued that onReady has not been told about yet
+    private final AtomicBoolean unsignalled = new AtomicBoolean();
+
+    // Initializes the subscription. onReady is called (on the mutating thread, after it releases the board lock)
+    // once per mutation that queued events
+    public Subscription(Board board, Runnable onReady) {
+        this.board = board;
+        this.onReady = onReady;
+    }
+
+    /* Overrides */
+    @Override
+    public void onEvent(String event) {
+        if (closed)
+            return;
+
+        if (events.size() >= MAX_PENDING_EVENTS) {
+            // Too far behind: drop the backlog and tell the client to resubscribe
+            closed = true;
+            board.unsubscribe(this);
+            events.clear();
+            events.offer(RESYNC_EVENT);
+            // Unsubscribed, so onPublished() will not be called for it
+            onReady.run();
+        } else {
+            events.offer(event);
+            unsignalled.set(true);
+        }
+    }
+
+    @Override
+    public void onPublished() {
+        if (unsignalled.get() && unsignalled.getAndSet(false))
+            onReady.run();
+    }
+
+    /* Delivery */
+    // Next queued event, or null if none is waiting
+    public String poll() {
+        String event = events.poll();
+        return event == CLOSED ? null : event;
+    }
+
+    // Waits for the next event, returns null once the subscription is closed and drained
+    public String take() throws InterruptedException {
+        if (closed && events.isEmpty())
+            return null;
+        String event = events.take();
+        return event == CLOSED ? null : event;
+    }
+
+    // Stops the subscription, a thread blocked in take() returns null
+    public void close() {
+        if (!closed) {
+            closed = true;
+            board.unsubscribe(this);
+        }
+        events.offer(CLOSED);
+    }
+}